@@ -0,0 +1,68 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding one frame with {@link cn.edu.sustech.cs209.chatting.common.BinaryCodec}
+ * against ObjectOutputStream, for a text message and for a message carrying a file. The
+ * frame length, in bytes per frame, is printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+  @Param({"JAVA", "BINARY"})
+  WireFormat format;
+
+  @Param({"0", "65536"})
+  int fileBytes;
+
+  private Message message;
+  private byte[] frame;
+
+  @Setup
+  public void setUp() throws IOException {
+    message = new Message(System.currentTimeMillis(), "alice", "group", "hello, group");
+    message.setSeq(12345L);
+    message.setId("8d5e0c53-2c4a-4b8f-9d2e-5b1f3a7c9e10");
+    if (fileBytes > 0) {
+      byte[] file = new byte[fileBytes];
+      new Random(1).nextBytes(file);
+      message.setFileName("photo.jpg");
+      message.setFile(file);
+    }
+    frame = FrameCodec.encode(message, format);
+    System.out.println(format + " frame of " + fileBytes + " file bytes: " + frame.length
+        + " bytes");
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return FrameCodec.encode(message, format);
+  }
+
+  @Benchmark
+  public Object decode() throws IOException, ClassNotFoundException {
+    return FrameCodec.decode(frame, FrameCodec.HEADER_LENGTH,
+        frame.length - FrameCodec.HEADER_LENGTH);
+  }
+}
@@ -0,0 +1,132 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.Command;
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import cn.edu.sustech.cs209.chatting.server.FileRegion;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downloading a stored file over a loopback socket in {@link FrameCodec#FILE_CHUNK_SIZE}
+ * chunks: reading each chunk into a byte[] and encoding it into a message, as before files
+ * were served from disk, against sending each chunk as a {@link FileRegion}. The score is the
+ * time per whole file; divide {@code fileBytes} by it for the throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx512m"})
+@State(Scope.Thread)
+public class DownloadBenchmark {
+  @Param({"1048576", "67108864"})
+  int fileBytes;
+
+  private Path file;
+  private FileChannel channel;
+  private ServerSocketChannel listener;
+  private SocketChannel socket;
+  private Thread reader;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = Files.createTempFile("download", ".bin");
+    byte[] block = new byte[1 << 20];
+    new Random(1).nextBytes(block);
+    for (int written = 0; written < fileBytes; written += block.length) {
+      Files.write(file, block, StandardOpenOption.APPEND);
+    }
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+    listener = ServerSocketChannel.open().bind(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    socket = SocketChannel.open(listener.getLocalAddress());
+    SocketChannel peer = listener.accept();
+    // 对端只是尽快读走所有数据, 和一个不慢的客户端一样
+    reader = new Thread(() -> {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+      try {
+        while (peer.read(buffer) >= 0) {
+          buffer.clear();
+        }
+      } catch (IOException e) {
+        // 关闭时结束
+      }
+    }, "download-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    socket.close();
+    listener.close();
+    channel.close();
+    Files.deleteIfExists(file);
+  }
+
+  private Message chunkMessage(long position, long size) {
+    Message message = new Message(System.currentTimeMillis(), "Server", "alice",
+        position + "\t" + size, Command.FILE_CHUNK);
+    message.setId("0f343b0931126a20f133d67c2b018a3b5b9a4b1f6e2b5c3d7a8e9f0a1b2c3d4e");
+    return message;
+  }
+
+  @Benchmark
+  public void readIntoHeap() throws IOException {
+    long size = channel.size();
+    for (long position = 0; position < size; position += FrameCodec.FILE_CHUNK_SIZE) {
+      int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, size - position);
+      byte[] chunk = new byte[length];
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      Message message = chunkMessage(position, size);
+      message.setFile(chunk);
+      ByteBuffer frame = ByteBuffer.wrap(FrameCodec.encode(message, WireFormat.BINARY));
+      while (frame.hasRemaining()) {
+        socket.write(frame);
+      }
+    }
+  }
+
+  @Benchmark
+  public void transferTo() throws IOException {
+    long size = channel.size();
+    for (long position = 0; position < size; position += FrameCodec.FILE_CHUNK_SIZE) {
+      int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, size - position);
+      FileRegion region = new FileRegion(chunkMessage(position, size), channel, position, length,
+          () -> { });
+      region.writeTo(socket);
+      region.release();
+    }
+  }
+}
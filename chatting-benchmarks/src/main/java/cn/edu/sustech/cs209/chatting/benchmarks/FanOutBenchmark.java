@@ -0,0 +1,72 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import cn.edu.sustech.cs209.chatting.server.BroadcastFrame;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of sending one message to every member of a group: encoding it once per recipient,
+ * as the server did with writeObject, against sharing one {@link BroadcastFrame}. Divide the
+ * score by {@code members} for the CPU per delivered message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+  @Param({"1", "10", "100", "1000"})
+  int members;
+
+  @Param({"0", "65536"})
+  int fileBytes;
+
+  @Param({"JAVA", "BINARY"})
+  WireFormat format;
+
+  private Message message;
+
+  @Setup
+  public void setUp() {
+    message = new Message(System.currentTimeMillis(), "alice", "group", "hello, group");
+    message.setSeq(1L);
+    if (fileBytes > 0) {
+      byte[] file = new byte[fileBytes];
+      new Random(1).nextBytes(file);
+      message.setFileName("photo.jpg");
+      message.setFile(file);
+    }
+  }
+
+  @Benchmark
+  public void encodePerRecipient(Blackhole blackhole) throws IOException {
+    for (int i = 0; i < members; i++) {
+      blackhole.consume(FrameCodec.encode(message, format));
+    }
+  }
+
+  @Benchmark
+  public void sharedFrame(Blackhole blackhole) throws IOException {
+    BroadcastFrame frame = new BroadcastFrame(message);
+    for (int i = 0; i < members; i++) {
+      blackhole.consume(frame.frameFor(format));
+    }
+  }
+}
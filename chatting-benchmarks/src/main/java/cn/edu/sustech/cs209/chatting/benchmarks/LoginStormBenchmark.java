@@ -0,0 +1,102 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.GroupType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import cn.edu.sustech.cs209.chatting.server.GroupDirectory;
+import cn.edu.sustech.cs209.chatting.server.ServerMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Every user logging in at once, as after a restart: each login is sent every group it is a
+ * member of. The groups are either encoded for each login, as before the login cache, or
+ * taken from {@link GroupDirectory#loginFrameOf}. Every storm starts with a message in each
+ * group, so the cache starts cold.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoginStormBenchmark {
+  private static final int LOGIN_MESSAGES = 20;
+
+  @Param({"100", "1000"})
+  int users;
+
+  @Param({"10"})
+  int groups;
+
+  private GroupDirectory directory;
+  private final List<String> names = new ArrayList<>();
+
+  @Setup
+  public void setUp() {
+    directory = new GroupDirectory(100, LOGIN_MESSAGES, groups, new ServerMetrics());
+    for (int i = 0; i < users; i++) {
+      names.add("user" + i);
+    }
+    // 每个用户都在所有群组中
+    for (int g = 0; g < groups; g++) {
+      Group group = new Group(names.get(0), "group" + g, new ArrayList<>(names),
+          GroupType.GROUP, false);
+      directory.add(group);
+      for (int m = 0; m < 100; m++) {
+        post(group, "message " + m);
+      }
+    }
+  }
+
+  private void post(Group group, String text) {
+    Message message = new Message(null, names.get(0), group.getGroupName(), text);
+    synchronized (group) {
+      directory.stamp(group, message);
+      directory.addMessage(group, message);
+    }
+  }
+
+  private void chatBeforeStorm() {
+    for (Group group : directory.all()) {
+      post(group, "before the storm");
+    }
+  }
+
+  @Benchmark
+  public void encodePerLogin(Blackhole blackhole) throws IOException {
+    chatBeforeStorm();
+    for (String name : names) {
+      for (Group group : directory.groupsOf(name)) {
+        blackhole.consume(FrameCodec.encode(GroupDirectory.copyOf(group, LOGIN_MESSAGES),
+            WireFormat.BINARY));
+      }
+    }
+  }
+
+  @Benchmark
+  public void loginCache(Blackhole blackhole) throws IOException {
+    chatBeforeStorm();
+    for (String name : names) {
+      for (Group group : directory.groupsOf(name)) {
+        blackhole.consume(directory.loginFrameOf(group).frameFor(WireFormat.BINARY));
+      }
+    }
+  }
+}
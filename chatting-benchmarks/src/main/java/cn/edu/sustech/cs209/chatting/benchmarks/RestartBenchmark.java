@@ -0,0 +1,112 @@
+package cn.edu.sustech.cs209.chatting.benchmarks;
+
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.GroupType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.server.ChatServer;
+import cn.edu.sustech.cs209.chatting.server.DurabilityMode;
+import cn.edu.sustech.cs209.chatting.server.ServerConfig;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recovery of a server with n messages of history, as done on startup: reading the
+ * snapshot, replaying the message log and loading the newest messages of each group. The
+ * data directory either has its whole history in the log, as a server that never took a
+ * snapshot, or a snapshot with the log compacted behind it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RestartBenchmark {
+  private static final int GROUPS = 10;
+
+  public enum Recovery { LOG, SNAPSHOT }
+
+  @Param({"10000", "100000"})
+  int messages;
+
+  @Param({"LOG", "SNAPSHOT"})
+  Recovery recovery;
+
+  private Path dataDirectory;
+
+  private ServerConfig config() {
+    ServerConfig config = new ServerConfig();
+    config.setDataDirectory(dataDirectory.toFile());
+    config.setDurability(DurabilityMode.ASYNC);
+    return config;
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    dataDirectory = Files.createTempDirectory("restart-benchmark");
+    ChatServer server = new ChatServer(config());
+    server.readGroupInfo();
+    server.openMessageLog();
+    List<String> members = List.of("alice", "bob", "carol");
+    List<Group> groups = new ArrayList<>();
+    for (int g = 0; g < GROUPS; g++) {
+      Group group = new Group("alice", "group" + g, new ArrayList<>(members), GroupType.GROUP,
+          false);
+      server.getMessageLog().append(group).get();
+      groups.add(group);
+    }
+    for (int i = 0; i < messages; i++) {
+      Group group = groups.get(i % GROUPS);
+      Message message = new Message(null, members.get(i % members.size()),
+          group.getGroupName(), "message " + i);
+      server.getGroups().stamp(group, message);
+      server.getMessageLog().append(message);
+    }
+    // 关闭前日志写完, 快照时才能覆盖全部记录
+    server.getMessageLog().close();
+    server.openMessageLog();
+    if (recovery == Recovery.SNAPSHOT) {
+      server.saveGroupInfo();
+    }
+    server.getMessageLog().close();
+    server.getHistory().close();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(dataDirectory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public int recover() throws IOException {
+    ChatServer server = new ChatServer(config());
+    server.readGroupInfo();
+    server.openMessageLog();
+    server.loadRecentHistory();
+    server.getMessageLog().close();
+    server.getHistory().close();
+    return server.getGroups().size();
+  }
+}
@@ -0,0 +1,111 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Local cache of downloaded attachments, named by the SHA-256 of their content like on the
+ * server, so that a file is only downloaded once however many messages refer to it.
+ * The least recently used files are evicted once the cache outgrows its size limit.
+ */
+public class BlobCache {
+  private static final String PARTIAL_SUFFIX = ".part";
+
+  private final File directory;
+  private final long maxBytes;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param directory where the cached files are kept
+   * @param maxBytes  total size beyond which the least recently used files are evicted
+   */
+  public BlobCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    directory.mkdirs();
+  }
+
+  /**
+   * Creates the cache configured by {@code -Dchatting.client.cacheDir} and
+   * {@code -Dchatting.client.cacheBytes}.
+   *
+   * @return the cache
+   */
+  public static BlobCache fromSystemProperties() {
+    File defaultDirectory = new File(System.getProperty("user.home"), ".chatting/blobs");
+    return new BlobCache(
+        new File(System.getProperty("chatting.client.cacheDir", defaultDirectory.getPath())),
+        Long.getLong("chatting.client.cacheBytes", 1L << 30));
+  }
+
+  /**
+   * Looks a blob up, marking it as recently used.
+   *
+   * @param hash the SHA-256 of the content
+   * @return the cached file, or null if it is not cached
+   */
+  public File get(String hash) {
+    File file = new File(directory, hash);
+    if (!file.isFile()) {
+      return null;
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /**
+   * Returns the file a blob is downloaded into before it is complete.
+   *
+   * @param hash the SHA-256 of the content
+   * @return the partial file
+   */
+  public File partialOf(String hash) {
+    return new File(directory, hash + PARTIAL_SUFFIX);
+  }
+
+  /**
+   * Adds a completely downloaded blob, evicting others if the cache grew too large.
+   *
+   * @param hash    the SHA-256 of the content
+   * @param partial the downloaded file
+   * @return the cached file
+   * @throws IOException if the file cannot be moved into the cache
+   */
+  public File add(String hash, File partial) throws IOException {
+    File file = new File(directory, hash);
+    Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    evict(file);
+    return file;
+  }
+
+  private void evict(File keep) {
+    File[] files = directory.listFiles(file -> !file.getName().endsWith(PARTIAL_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    List<File> candidates = new ArrayList<>();
+    for (File file : files) {
+      total += file.length();
+      if (!file.equals(keep)) {
+        candidates.add(file);
+      }
+    }
+    candidates.sort(Comparator.comparingLong(File::lastModified));
+    for (File file : candidates) {
+      if (total <= maxBytes) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+      }
+    }
+  }
+}
@@ -1,24 +1,50 @@
 package cn.edu.sustech.cs209.chatting.client;
 
+import cn.edu.sustech.cs209.chatting.common.Command;
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
 import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.HistoryPage;
 import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * Represents a chat client.
  */
 public class ChatClient implements Runnable {
-  private Socket socket;
+  private static final int RECONNECT_ATTEMPTS = 5;
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int SEND_WINDOW = Integer.getInteger("chatting.client.window", 64);
+
+  private volatile Socket socket;
   private Controller controller;
-  private ObjectInputStream in;
-  private ObjectOutputStream out;
+  private volatile DataInputStream in;
+  private volatile DataOutputStream out;
+  private final Object writeLock = new Object(); // 重连时会替换 out, 写入统一用这把锁
+  private volatile boolean stopped = false;
   private InetSocketAddress inetSocketAddress;
+  private final WireFormat wireFormat = WireFormat.fromSystemProperties();
+  private final Map<Command, MessageHandler> handlers = new EnumMap<>(Command.class);
+  // 已发送但服务器还没确认的聊天消息, 按发送顺序, 重连后重传; 和 waiting 一样由 writeLock 保护
+  private final Map<String, Message> unacknowledged = new LinkedHashMap<>();
+  private final Deque<Message> waiting = new ArrayDeque<>(); // 发送窗口已满时排队的聊天消息
+  private FileTransfers fileTransfers;
+  private final OnlineUsers onlineUsers = new OnlineUsers();
+  private volatile boolean resuming; // 已发出 RESUME, 下一个 LOGIN_RESULT 是它的结果
   public String username;
 
   /**
@@ -73,6 +99,43 @@ public class ChatClient implements Runnable {
 
     this.inetSocketAddress = inetSocketAddress;
     this.controller = controller;
+    this.fileTransfers = new FileTransfers(this, controller);
+    registerHandlers();
+  }
+
+  /**
+   * Fills the opcode dispatch table for control messages from the server.
+   */
+  private void registerHandlers() {
+    handlers.put(Command.LOGIN_RESULT, this::handleLoginResult);
+    handlers.put(Command.ALL_CLIENT_NAMES_RESULT,
+        message -> controller.updateClientList(message.getData().split(" ")));
+    handlers.put(Command.SERVER_SHUTDOWN, message -> controller.onServerShutdown());
+    handlers.put(Command.CLIENT_COUNT,
+        message -> controller.updateCurrentOnlineCnt(message.getData()));
+    handlers.put(Command.ACK, this::handleAck);
+    handlers.put(Command.FILE_OFFSET, message -> fileTransfers.onOffset(message));
+    handlers.put(Command.FILE_CHUNK, message -> fileTransfers.onChunk(message));
+    handlers.put(Command.THUMBNAIL, message -> controller.onThumbnail(message));
+    handlers.put(Command.GROUP_REJECTED, message -> controller.onGroupRejected(message));
+    // 回复服务器的心跳, 否则空闲的连接会被当作断开
+    handlers.put(Command.HEARTBEAT, message -> sendMessage(new Message(
+        System.currentTimeMillis(), username, "Server", null, Command.HEARTBEAT)));
+    handlers.put(Command.PRESENCE_SNAPSHOT,
+        message -> onlineUsers.applySnapshot(message.getData()));
+    handlers.put(Command.PRESENCE_DELTA, message -> {
+      if (!onlineUsers.applyDelta(message.getData())) {
+        subscribePresence();
+      }
+    });
+  }
+
+  /**
+   * Handles one control message from the server.
+   */
+  @FunctionalInterface
+  private interface MessageHandler {
+    void handle(Message message) throws IOException;
   }
 
   /**
@@ -86,56 +149,174 @@ public class ChatClient implements Runnable {
   public ChatClient(String host, int port, Controller controller) throws IOException {
     this.inetSocketAddress = new InetSocketAddress(host, port);
     this.controller = controller;
+    this.fileTransfers = new FileTransfers(this, controller);
+    registerHandlers();
     socket = new Socket(host, port);
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
   }
 
   /**
    * The main loop of the ChatClient, listening for incoming messages and groups.
+   * When the connection drops after login, it reconnects and resumes the session.
    */
   @Override
   public void run() {
-    try {
-      out = new ObjectOutputStream(socket.getOutputStream());
-      in = new ObjectInputStream(socket.getInputStream());
-
-      while (true) {
-        Object receivedObject = in.readObject();
-        if (receivedObject instanceof Message) {
-          Message message = (Message) receivedObject;
-          handleServerMessage(message);
-        } else if (receivedObject instanceof Group) {
-          Group group = (Group) receivedObject;
-          handleServerGroup(group);
+    do {
+      try {
+        while (true) {
+          Object receivedObject = FrameCodec.readFrame(in);
+          if (receivedObject instanceof Message) {
+            Message message = (Message) receivedObject;
+            handleServerMessage(message);
+          } else if (receivedObject instanceof Group) {
+            Group group = (Group) receivedObject;
+            handleServerGroup(group);
+          } else if (receivedObject instanceof HistoryPage) {
+            controller.addHistoryPage((HistoryPage) receivedObject);
+          }
         }
+      } catch (SocketException e) {
+        System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
+      } catch (EOFException e) {
+        System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException(e);
+      } finally {
+        closeConnection();
       }
-    } catch (SocketException e) {
-      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
-    } catch (EOFException e) {
-      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
-    } catch (IOException e) {
-      e.printStackTrace();
-    } catch (ClassNotFoundException e) {
-      throw new RuntimeException(e);
-    } finally {
+    } while (reconnect());
+    controller.onServerShutdown();
+  }
+
+  /**
+   * Reconnects with exponential backoff and resumes the logged-in session, so that the
+   * server only resends what was missed.
+   *
+   * @return true if a new connection was established
+   */
+  private boolean reconnect() {
+    if (stopped || username == null) {
+      return false;
+    }
+    long backoff = 500;
+    for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !stopped; attempt++) {
       try {
-        in.close();
-        out.close();
-        socket.close();
-        controller.onServerShutdown();
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      backoff = Math.min(backoff * 2, 8000);
+      try {
+        Socket newSocket = new Socket();
+        newSocket.connect(inetSocketAddress, CONNECT_TIMEOUT_MILLIS);
+        synchronized (writeLock) {
+          socket = newSocket;
+          out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+          in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+        }
+        System.out.println("Reconnected to " + inetSocketAddress + " after " + attempt
+            + " attempt(s)");
+        controller.resumeSession();
+        return true;
       } catch (IOException e) {
-        e.printStackTrace();
+        System.out.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
       }
     }
+    return false;
+  }
+
+  private void closeConnection() {
+    try {
+      in.close();
+      out.close();
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   /**
-   * Sends a message to the server.
+   * Sends a message to the server. Chat messages are given an id and go through the send
+   * window.
    *
    * @param message the message to be sent
    * @throws IOException if an I/O error occurs during writing
    */
   public void sendMessage(Message message) throws IOException {
-    out.writeObject(message);
+    if (message.getCommand() == Command.CHAT) {
+      sendChatMessage(message);
+      return;
+    }
+    synchronized (writeLock) {
+      FrameCodec.writeFrame(out, message, wireFormat);
+    }
+  }
+
+  /**
+   * Sends a chat message without waiting for the previous ones to be acknowledged, as long
+   * as fewer than {@code chatting.client.window} are unacknowledged; further messages are
+   * queued until acknowledgements arrive. A message that cannot be written stays
+   * unacknowledged and is retransmitted after reconnecting.
+   *
+   * @param message the chat message to be sent
+   */
+  private void sendChatMessage(Message message) {
+    if (message.getId() == null) {
+      message.setId(UUID.randomUUID().toString());
+    }
+    synchronized (writeLock) {
+      if (unacknowledged.size() >= SEND_WINDOW) {
+        waiting.add(message);
+        return;
+      }
+      transmit(message);
+    }
+  }
+
+  private void transmit(Message message) {
+    unacknowledged.put(message.getId(), message);
+    try {
+      FrameCodec.writeFrame(out, message, wireFormat);
+    } catch (IOException e) {
+      System.out.println("Sending failed, will retry after reconnecting: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Handles the server's acknowledgement of a chat message: frees its slot in the send
+   * window and passes the assigned sequence number on to the chat.
+   *
+   * @param ack the acknowledgement, with the message id in data
+   */
+  private void handleAck(Message ack) {
+    synchronized (writeLock) {
+      unacknowledged.remove(ack.getData());
+      while (!waiting.isEmpty() && unacknowledged.size() < SEND_WINDOW) {
+        transmit(waiting.poll());
+      }
+    }
+    controller.onAcknowledged(ack);
+  }
+
+  /**
+   * Sends every unacknowledged chat message again after a reconnect. The server drops the
+   * ones it had already accepted and only acknowledges them again.
+   */
+  public void retransmitUnacknowledged() {
+    synchronized (writeLock) {
+      for (Message message : unacknowledged.values()) {
+        try {
+          FrameCodec.writeFrame(out, message, wireFormat);
+        } catch (IOException e) {
+          System.out.println("Retransmission failed: " + e.getMessage());
+          return;
+        }
+      }
+    }
   }
 
   /**
@@ -145,7 +326,9 @@ public class ChatClient implements Runnable {
    * @throws IOException if an I/O error occurs during writing
    */
   public void sendGroup(Group group) throws IOException {
-    out.writeObject(group);
+    synchronized (writeLock) {
+      FrameCodec.writeFrame(out, group, wireFormat);
+    }
   }
 
   /**
@@ -155,33 +338,44 @@ public class ChatClient implements Runnable {
    * @throws IOException if an I/O error occurs during handling
    */
   public void handleServerMessage(Message message) throws IOException {
-    if (message.getSentBy().equals("Server")) {
-      if (message.getData().startsWith("LoginResult")) {
-        controller.getLock().lock();
-        try {
-          controller.setLoginSuccess(message.getData().split(":")[1].equals("Success"));
-          controller.getLoginResult().signal();
-        } finally {
-          controller.getLock().unlock();
-        }
-        return;
-      }
-      if (message.getData().startsWith("allClientsNames")) {
-        controller.updateClientList(message.getData()
-            .substring("allClientsNames:".length()).split(" "));
-        return;
-      }
-      if (message.getData().equals("Server is shutting down")) {
-        controller.onServerShutdown();
-        return;
-      }
-      if (message.getData().startsWith("ClientCount:")) {
-        controller.updateCurrentOnlineCnt(message.getData()
-            .substring("ClientCount:".length()));
-        return;
+    Command command = message.getCommand();
+    if (command == Command.CHAT) {
+      if (message.getId() != null && message.getSeq() == null) {
+        // 确认收到私聊消息, 否则服务器会在断线后重新投递
+        sendMessage(new Message(System.currentTimeMillis(), username, "Server",
+            message.getId(), Command.ACK));
       }
+      controller.addNewMessage(message);
+      return;
+    }
+    MessageHandler handler = handlers.get(command);
+    if (handler != null) {
+      handler.handle(message);
+    }
+  }
+
+  private void handleLoginResult(Message message) {
+    boolean success = "Success".equals(message.getData());
+    if (resuming) {
+      // 重连后的结果, 没有登录对话框在等
+      resuming = false;
+      controller.onSessionResumed(success);
+      return;
+    }
+    controller.getLock().lock();
+    try {
+      controller.setLoginSuccess(success);
+      controller.getLoginResult().signal();
+    } finally {
+      controller.getLock().unlock();
     }
-    controller.addNewMessage(message);
+  }
+
+  /**
+   * Marks the next {@link Command#LOGIN_RESULT} as the answer to a {@link Command#RESUME}.
+   */
+  public void setResuming(boolean resuming) {
+    this.resuming = resuming;
   }
 
   /**
@@ -192,20 +386,34 @@ public class ChatClient implements Runnable {
    */
   public void handleServerGroup(Group group) throws IOException {
     // 将group添加到controller中的ListView<ChatGroup> chatList中
-    controller.addNewChat(new ChatGroup(group));
+    controller.addNewChat(group);
+  }
+
+  /**
+   * Subscribes to the online users, announcing the version already held so that the server
+   * only sends what changed since.
+   *
+   * @throws IOException if an I/O error occurs during writing
+   */
+  public void subscribePresence() throws IOException {
+    sendMessage(new Message(System.currentTimeMillis(), username, "Server",
+        onlineUsers.subscription(), Command.PRESENCE_SUBSCRIBE));
+  }
+
+  public OnlineUsers getOnlineUsers() {
+    return onlineUsers;
+  }
+
+  public FileTransfers getFileTransfers() {
+    return fileTransfers;
   }
 
   /**
    * Stops the ChatClient, closing all resources.
    */
   public void stop() {
-    try {
-      in.close();
-      out.close();
-      socket.close();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    stopped = true;
+    closeConnection();
   }
 
 }
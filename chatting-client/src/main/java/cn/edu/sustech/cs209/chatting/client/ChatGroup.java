@@ -3,7 +3,9 @@ package cn.edu.sustech.cs209.chatting.client;
 import cn.edu.sustech.cs209.chatting.common.Group;
 import cn.edu.sustech.cs209.chatting.common.GroupType;
 import cn.edu.sustech.cs209.chatting.common.Message;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
@@ -18,6 +20,12 @@ public class ChatGroup implements Comparable<ChatGroup> {
   private List<String> chatMembers;
   private ObservableList<Message> messages;
   private boolean hasUnreadMessages;
+  private boolean hasMoreHistory = true; // 服务器上是否还有更早的消息
+  private boolean loadingHistory = false; // 是否有尚未返回的历史请求
+  private long lastSeq = 0; // 收到的最大序号, 重连时据此请求错过的消息
+  private long lastSeqTimestamp = 0; // 最大序号对应消息的时间戳
+  private int unsequenced = 0; // 本地发送、还不知道序号的消息数
+  private final Set<String> messageIds = new HashSet<>(); // 已有消息的 id, 用来去掉重复到达的消息
 
   /**
    * Constructs a new ChatGroup with the specified creator, chat name, chat members, and group type.
@@ -48,6 +56,25 @@ public class ChatGroup implements Comparable<ChatGroup> {
     this.messages = FXCollections.observableArrayList(group.getGroupMessages());
     this.groupType = group.getGroupType();
     this.hasUnreadMessages = group.isHasUnreadMessages();
+    updateLastSeq(group.getGroupMessages());
+    rememberIds(group.getGroupMessages());
+  }
+
+  /**
+   * Replaces this ChatGroup's members and messages with a fresh copy from the server, which
+   * sends one when the client missed too much to catch up message by message.
+   *
+   * @param group the Group object sent by the server
+   */
+  public void replaceWith(Group group) {
+    this.chatMembers = group.getGroupMembers();
+    this.messages.setAll(group.getGroupMessages());
+    this.hasMoreHistory = true;
+    this.lastSeq = 0;
+    this.lastSeqTimestamp = 0;
+    updateLastSeq(group.getGroupMessages());
+    this.messageIds.clear();
+    rememberIds(group.getGroupMessages());
   }
 
   /**
@@ -76,12 +103,154 @@ public class ChatGroup implements Comparable<ChatGroup> {
   }
 
   /**
-   * Adds a message to this ChatGroup's list of messages.
+   * Adds a message to this ChatGroup's list of messages. Messages from the server are kept
+   * in sequence order: after a reconnect the missed messages may arrive after newer live
+   * ones. A message that is already in the list, recognised by its id, is not added again;
+   * if it is one this client sent itself, its sequence number is filled in.
    *
    * @param message the message to add
+   * @return false if the message was already in the list
    */
-  public void addMessage(Message message) {
-    messages.add(message);
+  public boolean addMessage(Message message) {
+    String id = message.getId();
+    if (id != null && !messageIds.add(id)) {
+      acknowledge(id, message.getSeq(), message.getTimestamp());
+      return false;
+    }
+    Long seq = message.getSeq();
+    if (seq == null) {
+      unsequenced++;
+      messages.add(message);
+      return true;
+    }
+    if (seq > lastSeq) {
+      messages.add(message);
+      updateLastSeq(List.of(message));
+      return true;
+    }
+    // 重连补发的消息可能晚于更新的实时消息到达, 按序号插入
+    int index = messages.size();
+    while (index > 0) {
+      Long previous = messages.get(index - 1).getSeq();
+      if (previous != null && previous.longValue() == seq) {
+        return false;
+      }
+      if (previous != null && previous < seq) {
+        break;
+      }
+      index--;
+    }
+    messages.add(index, message);
+    return true;
+  }
+
+  /**
+   * Fills in the sequence number and timestamp the server assigned to a message this client
+   * sent.
+   *
+   * @param id        the id of the message
+   * @param seq       the assigned sequence number, null for private messages
+   * @param timestamp the assigned timestamp
+   * @return true if a local message was updated
+   */
+  public boolean acknowledge(String id, Long seq, Long timestamp) {
+    if (seq == null || unsequenced == 0) {
+      return false;
+    }
+    for (int i = messages.size() - 1; i >= 0; i--) {
+      Message local = messages.get(i);
+      if (local.getSeq() == null && id.equals(local.getId())) {
+        local.setSeq(seq);
+        local.setTimestamp(timestamp);
+        unsequenced--;
+        updateLastSeq(List.of(local));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gives the file messages referring to an image the thumbnail the server made of it.
+   *
+   * @param hash      the SHA-256 of the image
+   * @param thumbnail the encoded thumbnail
+   * @return true if a local message was updated
+   */
+  public boolean attachThumbnail(String hash, byte[] thumbnail) {
+    boolean updated = false;
+    for (Message message : messages) {
+      if (message.getFile() == null && message.getFileName() != null
+          && hash.equals(message.getData())) {
+        message.setFile(thumbnail);
+        updated = true;
+      }
+    }
+    return updated;
+  }
+
+  private void rememberIds(List<Message> received) {
+    for (Message message : received) {
+      if (message.getId() != null) {
+        messageIds.add(message.getId());
+      }
+    }
+  }
+
+  private void updateLastSeq(List<Message> received) {
+    for (Message message : received) {
+      if (message.getSeq() != null && message.getSeq() > lastSeq) {
+        lastSeq = message.getSeq();
+        lastSeqTimestamp = message.getTimestamp();
+      }
+    }
+  }
+
+  public long getLastSeq() {
+    return lastSeq;
+  }
+
+  public long getLastSeqTimestamp() {
+    return lastSeqTimestamp;
+  }
+
+  /**
+   * Inserts an older page of history before the messages already loaded.
+   *
+   * @param olderMessages the older messages, oldest first
+   */
+  public void prependMessages(List<Message> olderMessages) {
+    messages.addAll(0, olderMessages);
+    rememberIds(olderMessages);
+  }
+
+  /**
+   * Gets the timestamp of the oldest loaded message, used as the cursor of the next history
+   * request.
+   *
+   * @return the timestamp of the first message, or 0 if no messages are loaded
+   */
+  public long getOldestMessageTimestamp() {
+    if (messages.isEmpty() || messages.get(0).getTimestamp() == null) {
+      return 0;
+    }
+    return messages.get(0).getTimestamp();
+  }
+
+  public boolean isHasMoreHistory() {
+    return hasMoreHistory;
+  }
+
+  public void setHasMoreHistory(boolean hasMoreHistory) {
+    this.hasMoreHistory = hasMoreHistory;
+  }
+
+  public boolean isLoadingHistory() {
+    return loadingHistory;
+  }
+
+  public void setLoadingHistory(boolean loadingHistory) {
+    this.loadingHistory = loadingHistory;
   }
 
   // Getter and setter methods for chatMembers, chatName, creator, groupType, and messages
@@ -1,7 +1,9 @@
 package cn.edu.sustech.cs209.chatting.client;
 
+import cn.edu.sustech.cs209.chatting.common.Command;
 import cn.edu.sustech.cs209.chatting.common.Group;
 import cn.edu.sustech.cs209.chatting.common.GroupType;
+import cn.edu.sustech.cs209.chatting.common.HistoryPage;
 import cn.edu.sustech.cs209.chatting.common.Message;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -18,12 +20,15 @@ import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseButton;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
@@ -57,18 +62,39 @@ public class Controller implements Initializable {
   @FXML
   Label currentOnlineCnt; //当前聊天组标签
 
+  @FXML
+  Label transferStatus; //文件传输状态
+
+  @FXML
+  ProgressBar transferProgress; //文件传输进度
+
   ChatClient client; // 负责处理与服务器的通信
 
   String[] allClientNames; // 存储所有在线客户端的名称
 
   private Popup emojiPopup;
 
+  private ScrollBar contentScrollBar; // chatContentList的垂直滚动条
+
   private List<String> emojiList;
 
   private final Lock lock = new ReentrantLock(); // 用于同步allClientNames数组的锁
   private final Condition namesUpdated = lock.newCondition();
   private final Condition loginResult = lock.newCondition();
   private boolean loginSuccess = false;
+  private String sessionPassword; // 断线重连时用来恢复会话
+
+  private static final int THUMBNAIL_IMAGE_CACHE = 200;
+  // 解码过的缩略图, 按内容哈希缓存, 滚动列表时不必重复解码; 只在界面线程中访问
+  private final Map<String, Image> thumbnailImages =
+      new LinkedHashMap<String, Image>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+          return size() > THUMBNAIL_IMAGE_CACHE;
+        }
+      };
+  // 已经向服务器请求过缩略图的图片哈希, 每张图只请求一次; 只在界面线程中访问
+  private final Set<String> thumbnailRequests = new HashSet<>();
 
   /**
    * 初始化聊天客户端界面，连接到聊天服务器并设置用户名。
@@ -100,6 +126,28 @@ public class Controller implements Initializable {
 
     chatContentList.setCellFactory(new MessageCellFactory());
 
+    // 滚动到顶部时向服务器请求更早的一页聊天记录
+    chatContentList.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+      for (Node node : chatContentList.lookupAll(".scroll-bar")) {
+        if (node instanceof ScrollBar
+            && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+          contentScrollBar = (ScrollBar) node;
+          contentScrollBar.valueProperty().addListener((obs, oldValue, newValue) -> {
+            if (newValue.doubleValue() <= contentScrollBar.getMin()) {
+              requestOlderHistory();
+            }
+          });
+        }
+      }
+    });
+    // 消息太少没有滚动条时, 向上滚动滚轮也会请求更早的消息
+    chatContentList.addEventFilter(ScrollEvent.SCROLL, event -> {
+      if (event.getDeltaY() > 0 && (contentScrollBar == null || !contentScrollBar.isVisible()
+          || contentScrollBar.getValue() <= contentScrollBar.getMin())) {
+        requestOlderHistory();
+      }
+    });
+
     chatList.setCellFactory(new ChatGroupCellFactory());
 
     chatList.getSelectionModel().selectedItemProperty()
@@ -282,10 +330,10 @@ public class Controller implements Initializable {
     //sendTo为
     Message message = new Message(System.currentTimeMillis(), 
         client.username, activeChat.getChatName(), messageText);
-    activeChat.getMessages().add(message);
+    client.sendMessage(message); // 先发送, 消息拿到 id 后再加入聊天
+    activeChat.addMessage(message);
     chatContentList.getItems().clear();
     chatContentList.getItems().setAll(activeChat.getMessages()); // 加载新选择的群组信息
-    client.sendMessage(message);
     updateGroupOrder();
     inputArea.clear();
   }
@@ -327,28 +375,18 @@ public class Controller implements Initializable {
     File file = fileChooser.showOpenDialog(chatContentList.getScene().getWindow());
 
     if (file != null) {
-      try {
-        ChatGroup activeChat = chatList.getSelectionModel().getSelectedItem();
-        Message message = new Message(System.currentTimeMillis(), 
-            client.username, activeChat.getChatName(), file.getName());
-
-        String fileName = file.getName();
-        byte[] fileContent = Files.readAllBytes(file.toPath());
-        message.setFileName(fileName);
-        message.setFile(fileContent);
-
-        activeChat.getMessages().add(message);
-        chatContentList.getItems().setAll(activeChat.getMessages());
-        client.sendMessage(message);
-      } catch (IOException e) {
-        e.printStackTrace();
-        // Handle the exception, show an error message or take other appropriate actions.
-      }
+      ChatGroup activeChat = chatList.getSelectionModel().getSelectedItem();
+      Message message = new Message(System.currentTimeMillis(), 
+          client.username, activeChat.getChatName(), file.getName());
+      message.setFileName(file.getName());
+      // 文件由后台线程分块上传, 不在界面线程中读入内存; 上传完成后服务器才发出这条文件消息
+      client.getFileTransfers().upload(message, file);
+      activeChat.addMessage(message);
+      chatContentList.getItems().setAll(activeChat.getMessages());
     }
 
   }
 
-
   private class MessageCellFactory implements Callback<ListView<Message>, ListCell<Message>> {
     @Override
     public ListCell<Message> call(ListView<Message> param) { //回调函数
@@ -366,7 +404,12 @@ public class Controller implements Initializable {
 
           HBox wrapper = new HBox(); //新建一个水平盒子
           Label nameLabel = new Label(msg.getSentBy()); //新建一个标签
-          Label msgLabel = new Label(msg.getData()); //新建一个标签
+          // 文件消息的 data 是内容的哈希, 显示文件名
+          Label msgLabel = new Label(msg.getFileName() != null ? msg.getFileName() : msg.getData());
+          if (msg.getFile() == null && isBlobReference(msg)
+              && msg.getFileName().toLowerCase().matches(".*\\.(png|jpe?g|gif|bmp)")) {
+            requestThumbnail(msg);
+          }
 
           nameLabel.setPrefSize(50, 20); //设置标签的大小
           nameLabel.setWrapText(true); //设置标签的文本是否自动换行
@@ -374,12 +417,18 @@ public class Controller implements Initializable {
 
           if (msg.getFile() != null) {
             //如果是png或者jpg格式的图片，就显示图片
-            if (msg.getFileName().endsWith(".png") || msg.getFileName().endsWith(".jpg")) {
+            if (msg.getFileName().toLowerCase().matches(".*\\.(png|jpe?g|gif|bmp)")) {
 
-              Image image = convertByteArrayToImage(msg.getFile());
-              ImageView imageView = new ImageView(image);
-              imageView.setFitWidth(200);
-              imageView.setPreserveRatio(true);
+              ImageView imageView;
+              if (isBlobReference(msg)) {
+                // 服务器生成的缩略图, 已经是预览大小
+                imageView = new ImageView(thumbnailImages.computeIfAbsent(msg.getData(),
+                    hash -> convertByteArrayToImage(msg.getFile())));
+              } else {
+                imageView = new ImageView(convertByteArrayToImage(msg.getFile()));
+                imageView.setFitWidth(200);
+                imageView.setPreserveRatio(true);
+              }
 
               if (client.username.equals(msg.getSentBy())) {
                 wrapper.setAlignment(Pos.TOP_RIGHT);
@@ -390,7 +439,10 @@ public class Controller implements Initializable {
               }
 
               imageView.setOnMouseClicked(event -> {
-                if (event.getButton() == MouseButton.PRIMARY && msg.getFile() != null) {
+                if (event.getButton() == MouseButton.PRIMARY && isBlobReference(msg)) {
+                  // 点击缩略图时才下载原图
+                  downloadOriginal(msg);
+                } else if (event.getButton() == MouseButton.PRIMARY && msg.getFile() != null) {
                   FileChooser fileChooser = new FileChooser();
                   fileChooser.setTitle("Save File");
                   fileChooser.setInitialFileName(msg.getFileName());
@@ -456,7 +508,8 @@ public class Controller implements Initializable {
           // 添加点击事件监听器
           msgLabel.setOnMouseClicked(event -> {
             System.out.println("Clicked on message: " + msg.getData());
-            if (event.getButton() == MouseButton.PRIMARY && msg.getFile() != null) {
+            if (event.getButton() == MouseButton.PRIMARY && msg.getFile() != null
+                && !isBlobReference(msg)) {
               // 提示用户选择文件保存位置
               FileChooser fileChooser = new FileChooser();
               fileChooser.setTitle("Save File");
@@ -483,6 +536,8 @@ public class Controller implements Initializable {
                   alert.showAndWait();
                 }
               }
+            } else if (event.getButton() == MouseButton.PRIMARY && msg.getFileName() != null) {
+              downloadOriginal(msg);
             }
           });
         }
@@ -579,6 +634,34 @@ public class Controller implements Initializable {
     }
   }
 
+  /**
+   * 向服务器发送控制命令。
+   *
+   * @param command 命令操作码
+   * @param sentBy  发送者 (登录和注册时为输入的用户名)
+   * @param data    命令参数
+   */
+  public void sendCommand(Command command, String sentBy, String data) {
+    try {
+      client.sendMessage(new Message(System.currentTimeMillis(), sentBy, "Server", data, command));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * 发送 LOGIN / RESUME / REGISTER, 并声明客户端会回复心跳, 服务器据此才关闭长时间无响应的连接。
+   */
+  private void sendLoginCommand(Command command, String sentBy, String password) {
+    Message message = new Message(System.currentTimeMillis(), sentBy, "Server", password, command);
+    message.setId(Command.HEARTBEAT_CAPABILITY);
+    try {
+      client.sendMessage(message);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
 
   public void sendGroup(ChatGroup chatGroup) {
     try {
@@ -660,7 +743,7 @@ public class Controller implements Initializable {
       return;
     }
 
-    sendMessage("AllClientNames", "Server");
+    sendCommand(Command.ALL_CLIENT_NAMES, client.username, null);
 
     lock.lock();
 
@@ -681,10 +764,9 @@ public class Controller implements Initializable {
     }
 
     // Send username and password to the server for login or registration
-    String operation = clickedButtonType.get() == loginButtonType ? "login" : "register";
-
-    String userAndPassword = operation + ":" + input.get().getKey() + ":" + input.get().getValue();
-    sendMessage(userAndPassword, "Server");
+    Command operation = clickedButtonType.get() == loginButtonType
+        ? Command.LOGIN : Command.REGISTER;
+    sendLoginCommand(operation, input.get().getKey(), input.get().getValue());
 
     lock.lock();
     try {
@@ -700,31 +782,29 @@ public class Controller implements Initializable {
     }
 
     client.username = input.get().getKey();
+    sessionPassword = input.get().getValue();
 
     updateCurrentUsername(client.username);
 
-    sendMessage("clientName:" + input.get().getKey(), "Server");
+    sendCommand(Command.CLIENT_NAME, client.username, input.get().getKey());
+    subscribePresence();
   }
 
-
-  public List<String> getFilteredUserList() {
-    sendMessage("AllClientNames", "Server");
-
-    lock.lock();
-    List<String> filteredUserList = new ArrayList<>();
+  /**
+   * 订阅在线用户列表，之后服务器只推送上线和下线的变化，选择用户时不再向服务器请求。
+   */
+  private void subscribePresence() {
     try {
-      namesUpdated.await();
-      for (String name : allClientNames) {
-        if (!name.equals(client.username)) {
-          filteredUserList.add(name);
-        }
-      }
-    } catch (InterruptedException e) {
+      client.subscribePresence();
+    } catch (IOException e) {
       e.printStackTrace();
-    } finally {
-      lock.unlock();
     }
+  }
 
+
+  public List<String> getFilteredUserList() {
+    List<String> filteredUserList = client.getOnlineUsers().names();
+    filteredUserList.remove(client.username);
     return filteredUserList;
   }
 
@@ -741,6 +821,68 @@ public class Controller implements Initializable {
     });
   }
 
+  /**
+   * 文件消息的 data 是服务器上文件内容的哈希; 旧版本的文件消息把整个文件放在 file 中
+   */
+  private static boolean isBlobReference(Message msg) {
+    return msg.getFileName() != null && msg.getData() != null
+        && msg.getData().matches("[0-9a-f]{64}");
+  }
+
+  /**
+   * 选择保存位置后从服务器分块下载文件原件; 本地缓存中已有的直接复制
+   */
+  private void downloadOriginal(Message msg) {
+    FileChooser fileChooser = new FileChooser();
+    fileChooser.setTitle("Save File");
+    fileChooser.setInitialFileName(msg.getFileName());
+    File file = fileChooser.showSaveDialog(null);
+    if (file != null) {
+      try {
+        client.getFileTransfers().download(msg, file);
+      } catch (IOException e) {
+        showAlert(Alert.AlertType.ERROR, "Error",
+            "Error occurred while saving the file: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * 图片消息没有缩略图时（例如历史记录或离线期间收到的消息），向服务器请求一次，收到后由
+   * {@link #onThumbnail} 补上。
+   */
+  private void requestThumbnail(Message msg) {
+    if (!thumbnailRequests.add(msg.getData())) {
+      return;
+    }
+    try {
+      client.sendMessage(new Message(System.currentTimeMillis(), client.username,
+          msg.getSendTo(), msg.getData(), Command.THUMBNAIL));
+    } catch (IOException e) {
+      thumbnailRequests.remove(msg.getData());
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * 服务器发来图片的缩略图，补到引用该图片的消息上。
+   *
+   * @param message THUMBNAIL 消息，data 为图片的哈希，file 为缩略图
+   */
+  public void onThumbnail(Message message) {
+    if (message.getData() == null || message.getFile() == null) {
+      return;
+    }
+    Platform.runLater(() -> {
+      for (ChatGroup chatGroup : chatList.getItems()) {
+        if (chatGroup.attachThumbnail(message.getData(), message.getFile())
+            && chatGroup == chatList.getSelectionModel().getSelectedItem()) {
+          chatContentList.refresh();
+        }
+      }
+    });
+  }
+
   private Image convertByteArrayToImage(byte[] imageData) {
     ByteArrayInputStream inputStream = new ByteArrayInputStream(imageData);
     return new Image(inputStream);
@@ -759,6 +901,45 @@ public class Controller implements Initializable {
   }
 
 
+  /**
+   * 与服务器重新建立连接后恢复会话：先重新登录，服务器接受后再由 {@link #onSessionResumed} 补齐消息。
+   */
+  public void resumeSession() {
+    Platform.runLater(() -> {
+      client.setResuming(true);
+      sendLoginCommand(Command.RESUME, client.username, sessionPassword);
+    });
+  }
+
+  /**
+   * 重新登录的结果。成功后告诉服务器每个聊天组收到的最后一条消息的序号和时间戳，
+   * 服务器只补发断线期间错过的消息，而不是重新发送整个群组；未登录时发出的请求会被服务器忽略，
+   * 所以这些都要等重新登录成功之后再发送。
+   *
+   * @param success whether the server accepted the session again
+   */
+  public void onSessionResumed(boolean success) {
+    Platform.runLater(() -> {
+      if (!success) {
+        showAlert(Alert.AlertType.ERROR, "Error",
+            "The server did not accept the session after reconnecting, please log in again.");
+        Platform.exit();
+        return;
+      }
+      StringBuilder state = new StringBuilder();
+      for (ChatGroup chatGroup : chatList.getItems()) {
+        state.append(chatGroup.getLastSeq()).append('\t')
+            .append(chatGroup.getLastSeqTimestamp()).append('\t')
+            .append(chatGroup.getChatName()).append('\n');
+      }
+      sendCommand(Command.SYNC, client.username, state.toString());
+      sendCommand(Command.CLIENT_NAME, client.username, client.username);
+      subscribePresence();
+      client.retransmitUnacknowledged();
+      client.getFileTransfers().resume();
+    });
+  }
+
   public void onServerShutdown() {
     Platform.runLater(() -> {
       Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -802,8 +983,19 @@ public class Controller implements Initializable {
     emojiPopup.getContent().add(emojiPane);
   }
 
-  public void addNewChat(ChatGroup chatGroup) {
+  public void addNewChat(Group group) {
     Platform.runLater(() -> {
+      for (ChatGroup existing : chatList.getItems()) {
+        if (existing.getChatName().equals(group.getGroupName())) {
+          // 重连时错过的消息太多, 服务器重新发送了整个群组
+          existing.replaceWith(group);
+          if (existing == chatList.getSelectionModel().getSelectedItem()) {
+            chatContentList.getItems().setAll(existing.getMessages());
+          }
+          return;
+        }
+      }
+      ChatGroup chatGroup = new ChatGroup(group);
       chatList.getItems().add(chatGroup);
       if (chatList.getSelectionModel().getSelectedItem() == null) {
         chatList.getSelectionModel().select(chatGroup);
@@ -812,11 +1004,71 @@ public class Controller implements Initializable {
     });
   }
 
+  /**
+   * 请求当前聊天组在已加载消息之前的一页历史记录。
+   * 同一时间每个聊天组只有一个未返回的请求，服务器表示没有更早的消息后不再请求。
+   */
+  public void requestOlderHistory() {
+    ChatGroup activeChat = chatList.getSelectionModel().getSelectedItem();
+    if (activeChat == null || !activeChat.isHasMoreHistory() || activeChat.isLoadingHistory()) {
+      return;
+    }
+    activeChat.setLoadingHistory(true);
+    long cursor = activeChat.getOldestMessageTimestamp();
+    try {
+      client.sendMessage(new Message(System.currentTimeMillis(), client.username,
+          activeChat.getChatName(), cursor == 0 ? "" : String.valueOf(cursor),
+          Command.HISTORY_REQUEST));
+    } catch (IOException e) {
+      activeChat.setLoadingHistory(false);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * 将服务器返回的一页历史记录插入到对应聊天组的开头，并保持当前的滚动位置。
+   *
+   * @param page 服务器返回的历史记录
+   */
+  public void addHistoryPage(HistoryPage page) {
+    Platform.runLater(() -> {
+      for (ChatGroup chatGroup : chatList.getItems()) {
+        if (!chatGroup.getChatName().equals(page.getGroupName())) {
+          continue;
+        }
+        chatGroup.prependMessages(page.getMessages());
+        chatGroup.setHasMoreHistory(page.hasMore());
+        chatGroup.setLoadingHistory(false);
+        if (chatGroup == chatList.getSelectionModel().getSelectedItem()) {
+          chatContentList.getItems().addAll(0, page.getMessages());
+          chatContentList.scrollTo(page.getMessages().size());
+        }
+      }
+    });
+  }
+
+  /**
+   * 服务器确认接受了本客户端发送的消息，为聊天组中的本地副本补上分配的序号和时间戳。
+   *
+   * @param ack 服务器的确认，data 为消息 id
+   */
+  public void onAcknowledged(Message ack) {
+    Platform.runLater(() -> {
+      for (ChatGroup chatGroup : chatList.getItems()) {
+        if (chatGroup.getChatName().equals(ack.getSendTo())
+            && chatGroup.acknowledge(ack.getData(), ack.getSeq(), ack.getTimestamp())
+            && chatGroup == chatList.getSelectionModel().getSelectedItem()) {
+          chatContentList.refresh();
+        }
+      }
+    });
+  }
+
   public void addNewMessage(Message message) {
     Platform.runLater(() -> {
       chatList.getItems().forEach(chatGroup -> {
-        if (chatGroup.getChatName().equals(message.getSendTo())) {
-          chatGroup.addMessage(message);
+        if (chatGroup.getChatName().equals(message.getSendTo())
+            && chatGroup.addMessage(message)) {
           chatGroup.setHasUnreadMessages(true);
           onReceiveMessage(message);
         }
@@ -824,6 +1076,48 @@ public class Controller implements Initializable {
     });
   }
 
+  /**
+   * 在状态栏显示文件传输的进度，传输完成后隐藏进度条。
+   *
+   * @param fileName 文件名
+   * @param done     已传输的字节数
+   * @param total    文件大小
+   * @param upload   是上传还是下载
+   */
+  public void updateTransferProgress(String fileName, long done, long total, boolean upload) {
+    Platform.runLater(() -> {
+      boolean finished = done >= total;
+      transferProgress.setVisible(!finished);
+      transferProgress.setProgress(total == 0 ? 1 : (double) done / total);
+      transferStatus.setText((upload ? "Uploading " : "Downloading ") + fileName
+          + (finished ? ": done" : ": " + (done * 100 / total) + "%"));
+    });
+  }
+
+  public void onTransferFailed(String fileName, String reason) {
+    Platform.runLater(() -> {
+      transferProgress.setVisible(false);
+      transferStatus.setText("Transfer of " + fileName + " failed: " + reason);
+    });
+  }
+
+  /**
+   * 服务器拒绝了新建的群组(同名群组已存在等), 从聊天列表中去掉它。
+   */
+  public void onGroupRejected(Message message) {
+    Platform.runLater(() -> {
+      chatList.getItems().removeIf(chatGroup ->
+          chatGroup.getChatName().equals(message.getSendTo()));
+      showAlert(Alert.AlertType.WARNING, "Chat Not Created",
+          "The server refused " + message.getSendTo() + ": " + message.getData());
+    });
+  }
+
+  public void onDownloadFinished(File file) {
+    Platform.runLater(() -> showAlert(Alert.AlertType.INFORMATION, "File Saved",
+        "The file has been saved to: " + file.getAbsolutePath()));
+  }
+
   public void updateCurrentUsername(String username) {
     Platform.runLater(() -> {
       currentUsername.setText("User: " + username);
@@ -0,0 +1,434 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import cn.edu.sustech.cs209.chatting.common.Command;
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked uploads and downloads of files. Files are read and written one chunk at a time and
+ * never held in memory as a whole; after a reconnect, unfinished transfers continue from the
+ * offset the other side already has.
+ *
+ * <p>Files are named by the SHA-256 of their content: an upload is skipped when the server
+ * already has the content, and a download when it is in the local {@link BlobCache}.
+ */
+public class FileTransfers {
+  private static final int UPLOAD_WINDOW_CHUNKS = 8; // 最多有这么多块还没被服务器确认
+  private static final long STALL_MILLIS = TimeUnit.SECONDS.toMillis(30); // 下载这么久没进展就重新请求
+  private static final ScheduledExecutorService WATCHDOG =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final ChatClient client;
+  private final Controller controller;
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+  private final BlobCache cache = BlobCache.fromSystemProperties();
+
+  /**
+   * Constructs the file transfers of a client.
+   *
+   * @param client     the client sending and receiving the chunks
+   * @param controller the Controller showing the progress
+   */
+  public FileTransfers(ChatClient client, Controller controller) {
+    this.client = client;
+    this.controller = controller;
+  }
+
+  /**
+   * An upload, sent by its own thread. The offsets the server replies with are the credit for
+   * sending further chunks.
+   */
+  private final class Upload implements Runnable {
+    final Message offer;
+    final File source;
+    final long size;
+    volatile Message request; // 算完哈希之前为 null
+    long sent = 0;
+    long acknowledged = -1; // 服务器回复 FILE_UPLOAD 之前为 -1
+    boolean failed = false;
+    int reportedPercent = -1;
+
+    Upload(Message offer, File source) {
+      this.offer = offer;
+      this.source = source;
+      this.size = source.length();
+    }
+
+    @Override
+    public void run() {
+      try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+        String hash = sha256(source);
+        offer.setData(hash);
+        Message request = new Message(System.currentTimeMillis(), offer.getSentBy(),
+            offer.getSendTo(), size + "\t" + hash, Command.FILE_UPLOAD);
+        request.setId(offer.getId());
+        request.setFileName(offer.getFileName());
+        this.request = request;
+        requestOffset();
+        while (true) {
+          long position;
+          int length;
+          synchronized (this) {
+            while (!failed && acknowledged != size && !canSend()) {
+              wait();
+            }
+            if (failed || acknowledged == size) {
+              break;
+            }
+            position = sent;
+            length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, size - sent);
+            sent += length;
+          }
+          Message chunk = new Message(System.currentTimeMillis(), client.username, "Server",
+              position + "\t" + size, Command.FILE_CHUNK);
+          chunk.setId(offer.getId());
+          chunk.setFile(read(channel, position, length));
+          try {
+            client.sendMessage(chunk);
+          } catch (IOException e) {
+            // 断线后由 resume 从服务器已收到的位置继续
+            System.out.println("Upload of " + source.getName() + " paused: " + e.getMessage());
+          }
+        }
+      } catch (IOException e) {
+        controller.onTransferFailed(source.getName(), e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        uploads.remove(offer.getId());
+      }
+    }
+
+    private boolean canSend() {
+      return acknowledged >= 0 && sent < size
+          && sent - acknowledged < (long) UPLOAD_WINDOW_CHUNKS * FrameCodec.FILE_CHUNK_SIZE;
+    }
+
+    /**
+     * Asks the server where to continue; chunks are only sent after it replied.
+     */
+    void requestOffset() {
+      Message request = this.request;
+      if (request == null) {
+        return; // 还在计算哈希, 算完后由 run 发送
+      }
+      synchronized (this) {
+        acknowledged = -1;
+      }
+      try {
+        client.sendMessage(request);
+      } catch (IOException e) {
+        System.out.println("Upload of " + source.getName() + " paused: " + e.getMessage());
+      }
+    }
+
+    synchronized void onOffset(long offset) {
+      notifyAll();
+      if (offset < 0) {
+        failed = true;
+        controller.onTransferFailed(source.getName(), "refused by the server");
+        return;
+      }
+      if (acknowledged < 0) {
+        sent = offset;
+        acknowledged = offset;
+      } else {
+        acknowledged = Math.max(acknowledged, offset);
+      }
+      int percent = percentOf(acknowledged, size);
+      if (percent != reportedPercent) {
+        reportedPercent = percent;
+        controller.updateTransferProgress(source.getName(), acknowledged, size, true);
+      }
+    }
+  }
+
+  /**
+   * A download into a partial file in the cache, added to the cache and copied to the target
+   * when complete.
+   */
+  private final class Download {
+    final String hash;
+    final String fileName;
+    final File target;
+    final File partial;
+    final FileChannel channel;
+    volatile long received;
+    volatile long progressedAt = System.currentTimeMillis();
+    long requestedFrom = -1;
+    int reportedPercent = -1;
+
+    Download(Message fileMessage, File target) throws IOException {
+      this.hash = fileMessage.getData();
+      this.fileName = fileMessage.getFileName();
+      this.target = target;
+      this.partial = cache.partialOf(hash);
+      this.channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      this.received = channel.size();
+    }
+
+    synchronized void request() {
+      requestedFrom = received;
+      progressedAt = System.currentTimeMillis();
+      Message request = new Message(System.currentTimeMillis(), client.username, "Server",
+          String.valueOf(received), Command.FILE_DOWNLOAD);
+      request.setId(hash);
+      try {
+        client.sendMessage(request);
+      } catch (IOException e) {
+        System.out.println("Download of " + fileName + " paused: " + e.getMessage());
+      }
+    }
+
+    /**
+     * Asks again from where the download is, unless that was already asked: chunks of the
+     * earlier request keep arriving for a while.
+     */
+    synchronized void requestMissing() {
+      if (requestedFrom != received) {
+        request();
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Starts uploading a file on a background thread; once the server has all of it, it sends
+   * {@code offer} to the chat as a file message.
+   *
+   * @param offer  the file message, with sendTo and fileName set; it is given an id, and the
+   *               hash of the file as its data once computed
+   * @param source the file to upload
+   */
+  public void upload(Message offer, File source) {
+    offer.setId(UUID.randomUUID().toString());
+    Upload upload = new Upload(offer, source);
+    uploads.put(offer.getId(), upload);
+    Thread thread = new Thread(upload, "file-upload");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Saves the file of a file message into {@code target}, from the cache if it is there,
+   * otherwise by downloading it, continuing a previous partial download of the same file.
+   *
+   * @param fileMessage the file message whose file is downloaded
+   * @param target      where to save the file
+   * @throws IOException if the partial file cannot be opened
+   */
+  public void download(Message fileMessage, File target) throws IOException {
+    File cached = cache.get(fileMessage.getData());
+    if (cached != null) {
+      copyToTarget(cached, target);
+      return;
+    }
+    Download download = new Download(fileMessage, target);
+    Download previous = downloads.put(download.hash, download);
+    if (previous != null) {
+      previous.close();
+    }
+    download.request();
+    watch(download);
+  }
+
+  /**
+   * Requests a download again whenever it made no progress for a while, e.g. because its
+   * chunks were lost along with a connection that is not yet known to be dead.
+   */
+  private void watch(Download download) {
+    WATCHDOG.schedule(() -> {
+      if (downloads.get(download.hash) != download) {
+        return; // 已完成, 失败或被新的下载替换
+      }
+      if (System.currentTimeMillis() - download.progressedAt >= STALL_MILLIS) {
+        System.out.println("Download of " + download.fileName + " stalled, requesting again");
+        download.request();
+      }
+      watch(download);
+    }, STALL_MILLIS / 3, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Continues every unfinished transfer after a reconnect.
+   */
+  public void resume() {
+    for (Upload upload : uploads.values()) {
+      upload.requestOffset();
+    }
+    for (Download download : downloads.values()) {
+      download.request();
+    }
+  }
+
+  /**
+   * Handles the server's reply to an upload or a refused download.
+   *
+   * @param message the FILE_OFFSET message
+   */
+  public void onOffset(Message message) {
+    long offset;
+    try {
+      offset = Long.parseLong(message.getData());
+    } catch (NumberFormatException e) {
+      return;
+    }
+    Upload upload = uploads.get(message.getId());
+    if (upload != null) {
+      upload.onOffset(offset);
+      return;
+    }
+    Download download = downloads.get(message.getId());
+    if (download != null && offset < 0) {
+      downloads.remove(message.getId());
+      download.close();
+      controller.onTransferFailed(download.fileName, "not available on the server");
+    }
+  }
+
+  /**
+   * Writes one chunk of a download.
+   *
+   * @param message the FILE_CHUNK message
+   * @throws IOException if the chunk cannot be written
+   */
+  public void onChunk(Message message) throws IOException {
+    Download download = downloads.get(message.getId());
+    if (download == null || message.getFile() == null || message.getData() == null) {
+      return;
+    }
+    String[] fields = message.getData().split("\t");
+    long offset;
+    long size;
+    try {
+      offset = Long.parseLong(fields[0]);
+      size = Long.parseLong(fields[1]);
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      return;
+    }
+    if (offset < download.received) {
+      return; // 重连前请求的旧数据块
+    }
+    if (offset > download.received) {
+      // 中间少了数据块, 从缺的位置重新请求
+      download.requestMissing();
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(message.getFile());
+    long received = download.received;
+    while (buffer.hasRemaining()) {
+      received += download.channel.write(buffer, received);
+    }
+    download.received = received;
+    download.progressedAt = System.currentTimeMillis();
+    int percent = percentOf(download.received, size);
+    if (percent != download.reportedPercent) {
+      download.reportedPercent = percent;
+      controller.updateTransferProgress(download.fileName, download.received, size, false);
+    }
+    if (download.received >= size) {
+      downloads.remove(download.hash);
+      finish(download);
+    }
+  }
+
+  /**
+   * Verifies a complete download against its hash and saves it, on its own thread: hashing a
+   * large file would hold up the thread reading from the server.
+   */
+  private void finish(Download download) {
+    Thread thread = new Thread(() -> {
+      try {
+        download.channel.force(true);
+        download.close();
+        if (!download.hash.equals(sha256(download.partial))) {
+          Files.deleteIfExists(download.partial.toPath());
+          controller.onTransferFailed(download.fileName, "corrupted in transfer");
+          return;
+        }
+        copyToTarget(cache.add(download.hash, download.partial), download.target);
+      } catch (IOException e) {
+        controller.onTransferFailed(download.fileName, e.getMessage());
+      }
+    }, "file-verify");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void copyToTarget(File blob, File target) {
+    Thread thread = new Thread(() -> {
+      try {
+        Files.copy(blob.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        controller.onDownloadFinished(target);
+      } catch (IOException e) {
+        controller.onTransferFailed(target.getName(), e.getMessage());
+      }
+    }, "file-copy");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static String sha256(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+    byte[] buffer = new byte[FrameCodec.FILE_CHUNK_SIZE];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, n);
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static int percentOf(long done, long size) {
+    return size == 0 ? 100 : (int) (done * 100 / size);
+  }
+
+  private static byte[] read(FileChannel channel, long position, int length)
+      throws IOException {
+    byte[] chunk = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("File ended early");
+      }
+    }
+    return chunk;
+  }
+}
@@ -0,0 +1,81 @@
+package cn.edu.sustech.cs209.chatting.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Local copy of the users online on the server. It is filled from the snapshot sent once the
+ * client subscribes and then kept up to date from the joins and leaves the server pushes, so
+ * that listing the online users needs no round trip.
+ */
+public class OnlineUsers {
+  private final Set<String> names = new TreeSet<>();
+  private long epoch = -1;
+  private long version;
+
+  /**
+   * Returns the data of a subscription: the epoch and version held, or null if none.
+   *
+   * @return the subscription data
+   */
+  public synchronized String subscription() {
+    return epoch < 0 ? null : epoch + "\t" + version;
+  }
+
+  /**
+   * Replaces the set with a snapshot from the server.
+   *
+   * @param data the {@code PRESENCE_SNAPSHOT} data
+   */
+  public synchronized void applySnapshot(String data) {
+    String[] lines = data.split("\n");
+    String[] header = lines[0].split("\t");
+    epoch = Long.parseLong(header[0]);
+    version = Long.parseLong(header[1]);
+    names.clear();
+    for (int i = 1; i < lines.length; i++) {
+      names.add(lines[i]);
+    }
+  }
+
+  /**
+   * Applies the joins and leaves that follow the version held; older ones are already in the
+   * set and skipped.
+   *
+   * @param data the {@code PRESENCE_DELTA} data
+   * @return false if the changes do not follow on from the version held, in which case the
+   *     client has to subscribe again
+   */
+  public synchronized boolean applyDelta(String data) {
+    String[] lines = data.split("\n");
+    if (epoch < 0 || Long.parseLong(lines[0]) != epoch) {
+      // 服务器重启过, 版本号不再有效
+      epoch = -1;
+      return false;
+    }
+    for (int i = 1; i < lines.length; i++) {
+      int tab = lines[i].indexOf('\t');
+      long changeVersion = Long.parseLong(lines[i].substring(0, tab));
+      if (changeVersion <= version) {
+        continue;
+      }
+      if (changeVersion > version + 1) {
+        return false;
+      }
+      String name = lines[i].substring(tab + 2);
+      if (lines[i].charAt(tab + 1) == '+') {
+        names.add(name);
+      } else {
+        names.remove(name);
+      }
+      version = changeVersion;
+    }
+    return true;
+  }
+
+  public synchronized List<String> names() {
+    return new ArrayList<>(names);
+  }
+}
@@ -0,0 +1,249 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the objects exchanged between client and server.
+ *
+ * <p>A payload is {@code version:u8 type:u8 body}. Strings are an {@code int} byte length
+ * (-1 for null) followed by UTF-8; byte arrays use the same length convention.
+ * Any change to a body layout must bump {@link #VERSION}; older versions stay decodable
+ * because the server also keeps these payloads on disk. New payload types do not need a
+ * bump, as a peer only receives the types it asks for.
+ *
+ * <ul>
+ *   <li>1: initial layout</li>
+ *   <li>2: Message starts with its {@link Command} opcode</li>
+ *   <li>3: Message ends with its group sequence number</li>
+ *   <li>4: Message ends with its id</li>
+ * </ul>
+ */
+public final class BinaryCodec {
+  public static final byte VERSION = 4;
+
+  static final byte TYPE_MESSAGE = 1;
+  static final byte TYPE_GROUP = 2;
+  static final byte TYPE_HISTORY_PAGE = 3;
+
+  private BinaryCodec() {
+  }
+
+  public static void encode(Object object, DataOutputStream out) throws IOException {
+    out.writeByte(VERSION);
+    if (object instanceof Message) {
+      out.writeByte(TYPE_MESSAGE);
+      writeMessage((Message) object, out);
+    } else if (object instanceof Group) {
+      out.writeByte(TYPE_GROUP);
+      writeGroup((Group) object, out);
+    } else if (object instanceof HistoryPage) {
+      out.writeByte(TYPE_HISTORY_PAGE);
+      writeHistoryPage((HistoryPage) object, out);
+    } else {
+      throw new IOException("Cannot encode " + (object == null ? null : object.getClass()));
+    }
+  }
+
+  public static Object decode(ByteBuffer in) throws IOException {
+    try {
+      byte version = in.get();
+      if (version < 1 || version > VERSION) {
+        throw new StreamCorruptedException("Unsupported wire version: " + version);
+      }
+      byte type = in.get();
+      switch (type) {
+        case TYPE_MESSAGE:
+          return readMessage(in, version);
+        case TYPE_GROUP:
+          return readGroup(in, version);
+        case TYPE_HISTORY_PAGE:
+          return readHistoryPage(in, version);
+        default:
+          throw new StreamCorruptedException("Unknown payload type: " + type);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new StreamCorruptedException("Truncated payload");
+    }
+  }
+
+  static void writeMessage(Message message, DataOutputStream out) throws IOException {
+    writeMessageHead(message, out);
+    writeBytes(message.getFile(), out);
+    writeMessageTail(message, out);
+  }
+
+  /**
+   * Writes the fields of a Message that come before its file content.
+   */
+  static void writeMessageHead(Message message, DataOutputStream out) throws IOException {
+    out.writeByte(message.getCommand().getCode());
+    Long timestamp = message.getTimestamp();
+    out.writeBoolean(timestamp != null);
+    out.writeLong(timestamp == null ? 0 : timestamp);
+    writeString(message.getSentBy(), out);
+    writeString(message.getSendTo(), out);
+    writeString(message.getData(), out);
+    writeString(message.getFileName(), out);
+  }
+
+  /**
+   * Writes the fields of a Message that come after its file content.
+   */
+  static void writeMessageTail(Message message, DataOutputStream out) throws IOException {
+    Long seq = message.getSeq();
+    out.writeBoolean(seq != null);
+    out.writeLong(seq == null ? 0 : seq);
+    writeString(message.getId(), out);
+  }
+
+  static Message readMessage(ByteBuffer in, byte version) throws IOException {
+    Command command = Command.CHAT;
+    if (version >= 2) {
+      byte code = in.get();
+      command = Command.fromCode(code);
+      if (command == null) {
+        throw new StreamCorruptedException("Unknown command: " + code);
+      }
+    }
+    boolean hasTimestamp = in.get() != 0;
+    long timestamp = in.getLong();
+    Message message = new Message(hasTimestamp ? timestamp : null,
+        readString(in), readString(in), readString(in), command);
+    message.setFileName(readString(in));
+    message.setFile(readBytes(in));
+    if (version >= 3) {
+      boolean hasSeq = in.get() != 0;
+      long seq = in.getLong();
+      message.setSeq(hasSeq ? seq : null);
+    }
+    if (version >= 4) {
+      message.setId(readString(in));
+    }
+    return message;
+  }
+
+  static void writeGroup(Group group, DataOutputStream out) throws IOException {
+    writeString(group.getGroupName(), out);
+    writeString(group.getCreator(), out);
+    out.writeByte(group.getGroupType() == null ? -1 : group.getGroupType().ordinal());
+    out.writeBoolean(group.isHasUnreadMessages());
+    List<String> members = group.getGroupMembers();
+    out.writeInt(members.size());
+    for (String member : members) {
+      writeString(member, out);
+    }
+    List<Message> messages = group.getGroupMessages();
+    out.writeInt(messages.size());
+    for (Message message : messages) {
+      writeMessage(message, out);
+    }
+  }
+
+  static Group readGroup(ByteBuffer in, byte version) throws IOException {
+    String groupName = readString(in);
+    String creator = readString(in);
+    byte type = in.get();
+    GroupType[] types = GroupType.values();
+    if (type < -1 || type >= types.length) {
+      throw new StreamCorruptedException("Unknown group type: " + type);
+    }
+    boolean hasUnreadMessages = in.get() != 0;
+    int memberCount = readCount(in);
+    List<String> members = new ArrayList<>(memberCount);
+    for (int i = 0; i < memberCount; i++) {
+      members.add(readString(in));
+    }
+    Group group = new Group(creator, groupName, members,
+        type < 0 ? null : types[type], hasUnreadMessages);
+    int messageCount = readCount(in);
+    for (int i = 0; i < messageCount; i++) {
+      group.addMessage(readMessage(in, version));
+    }
+    return group;
+  }
+
+  static void writeHistoryPage(HistoryPage page, DataOutputStream out) throws IOException {
+    writeString(page.getGroupName(), out);
+    out.writeBoolean(page.hasMore());
+    List<Message> messages = page.getMessages();
+    out.writeInt(messages.size());
+    for (Message message : messages) {
+      writeMessage(message, out);
+    }
+  }
+
+  static HistoryPage readHistoryPage(ByteBuffer in, byte version) throws IOException {
+    String groupName = readString(in);
+    boolean hasMore = in.get() != 0;
+    int messageCount = readCount(in);
+    List<Message> messages = new ArrayList<>(messageCount);
+    for (int i = 0; i < messageCount; i++) {
+      messages.add(readMessage(in, version));
+    }
+    return new HistoryPage(groupName, messages, hasMore);
+  }
+
+  static void writeString(String value, DataOutputStream out) throws IOException {
+    writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8), out);
+  }
+
+  static String readString(ByteBuffer in) throws IOException {
+    int length = readLength(in);
+    if (length < 0) {
+      return null;
+    }
+    if (!in.hasArray()) {
+      // 例如内存映射的文件, 只能先拷贝出来
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+        StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  static void writeBytes(byte[] value, DataOutputStream out) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  static byte[] readBytes(ByteBuffer in) throws IOException {
+    int length = readLength(in);
+    if (length < 0) {
+      return null;
+    }
+    byte[] value = new byte[length];
+    in.get(value);
+    return value;
+  }
+
+  private static int readLength(ByteBuffer in) throws IOException {
+    int length = in.getInt();
+    if (length < -1 || length > in.remaining()) {
+      throw new StreamCorruptedException("Invalid length: " + length);
+    }
+    return length;
+  }
+
+  private static int readCount(ByteBuffer in) throws IOException {
+    int count = in.getInt();
+    // 每个元素至少占 4 个字节, 以此挡住损坏的计数
+    if (count < 0 || count > in.remaining() / 4) {
+      throw new StreamCorruptedException("Invalid count: " + count);
+    }
+    return count;
+  }
+}
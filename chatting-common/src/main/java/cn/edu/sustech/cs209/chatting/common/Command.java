@@ -0,0 +1,64 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+/**
+ * Opcode of a {@link Message}. Chat messages carry {@link #CHAT}; everything else is
+ * control traffic between a client and the server, with its argument in {@code data}.
+ */
+public enum Command {
+  CHAT(0),                  // 普通聊天消息
+  REGISTER(1),              // sentBy=用户名, data=密码, id=客户端支持的功能, 以空格分隔
+  LOGIN(2),                 // sentBy=用户名, data=密码, id=客户端支持的功能, 以空格分隔
+  LOGIN_RESULT(3),          // data=Success / Failed
+  CLIENT_NAME(4),           // data=用户名
+  ALL_CLIENT_NAMES(5),      // 请求所有在线用户
+  ALL_CLIENT_NAMES_RESULT(6), // data=以空格分隔的用户名
+  CLIENT_COUNT(7),          // data=在线人数
+  SERVER_SHUTDOWN(8),
+  HISTORY_REQUEST(9),       // sendTo=群组名, data=游标(只要更早的消息, 空为最新), 回复 HistoryPage
+  RESUME(10),               // 断线重连时代替 LOGIN, 不推送群组; sentBy=用户名, data=密码, id 同 LOGIN
+  SYNC(11),                 // data=每行 "最后序号\t其时间戳\t群组名", 服务器补发错过的消息
+  ACK(12),                  // data=消息 id; 服务器发出表示已接受(群消息带上分配的序号和时间戳), 客户端发出表示已收到
+  // 文件分块传输, 上传时 id=传输 id, 也是文件消息的 id; 下载时 id=文件内容的 SHA-256
+  FILE_UPLOAD(13),          // 开始或继续上传; sendTo=聊天, fileName=文件名, data="文件大小\tSHA-256", 回复 FILE_OFFSET
+  FILE_OFFSET(14),          // data=服务器已收到的字节数, 上传从这里继续; -1 表示拒绝或文件不存在
+  FILE_CHUNK(15),           // data="偏移\t文件大小", file=这一块的内容
+  FILE_DOWNLOAD(16),        // 从 data 偏移处开始下载, 服务器回复一串 FILE_CHUNK
+  // 在线用户集合带版本号, 每次上线或下线加一; 版本号只在服务器的一次运行(epoch)内有效
+  PRESENCE_SUBSCRIBE(17),   // data="epoch\t版本号" 为客户端已有的集合, 空为没有; 之后服务器推送变化
+  PRESENCE_SNAPSHOT(18),    // data="epoch\t版本号", 之后每行一个在线用户名
+  PRESENCE_DELTA(19),       // data=epoch, 之后每行 "版本号\t+用户名" 或 "版本号\t-用户名"
+  HEARTBEAT(20),            // 服务器在连接空闲时发出, 客户端回复一个 HEARTBEAT; 长时间收不到数据的连接被关闭
+  THUMBNAIL(21),            // data=图片的 SHA-256; 客户端发出时请求缩略图, 服务器回复或在图片消息之后推送, file=缩略图
+  GROUP_REJECTED(22);       // 服务器拒绝新建的群组; sendTo=群组名, data=原因
+
+  /**
+   * Capability listed by a client that answers {@link #HEARTBEAT}; the server only closes idle
+   * connections of clients that listed it, since older ones never answer.
+   */
+  public static final String HEARTBEAT_CAPABILITY = "heartbeat";
+
+  private static final Command[] BY_CODE = new Command[values().length];
+
+  static {
+    for (Command command : values()) {
+      BY_CODE[command.code] = command;
+    }
+  }
+
+  private final byte code;
+
+  Command(int code) {
+    this.code = (byte) code;
+  }
+
+  public byte getCode() {
+    return code;
+  }
+
+  /**
+   * Looks an opcode up without allocating; returns null for unknown codes.
+   */
+  public static Command fromCode(byte code) {
+    return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+  }
+}
@@ -0,0 +1,134 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing shared by the client and every server transport.
+ * A frame is a 4-byte big-endian payload length followed by the payload, which is
+ * encoded in one of the {@link WireFormat}s and recognised by its first byte.
+ */
+public final class FrameCodec {
+  public static final int HEADER_LENGTH = 4;
+  public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+  /**
+   * File content carried by one {@link Command#FILE_CHUNK} frame.
+   */
+  public static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+  private FrameCodec() {
+  }
+
+  /**
+   * Encodes an object into a complete frame, header included.
+   *
+   * @param object the Message or Group to encode
+   * @param format the payload encoding
+   * @return the frame bytes, ready to be written to a socket as-is
+   * @throws IOException if the object cannot be encoded
+   */
+  public static byte[] encode(Object object, WireFormat format) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    bytes.write(new byte[HEADER_LENGTH]);
+    if (format == WireFormat.JAVA) {
+      try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+        oos.writeObject(object);
+      }
+    } else {
+      BinaryCodec.encode(object, new DataOutputStream(bytes));
+    }
+    byte[] frame = bytes.toByteArray();
+    int length = frame.length - HEADER_LENGTH;
+    frame[0] = (byte) (length >>> 24);
+    frame[1] = (byte) (length >>> 16);
+    frame[2] = (byte) (length >>> 8);
+    frame[3] = (byte) length;
+    return frame;
+  }
+
+  /**
+   * Encodes a binary Message frame around file content that is written separately, e.g.
+   * straight from a file on disk: the frame is the returned head, then {@code fileLength}
+   * bytes of content, then the returned tail.
+   *
+   * @param message    the Message, whose own file is ignored
+   * @param fileLength the length of the content
+   * @return the head, header included, and the tail of the frame
+   * @throws IOException if the message cannot be encoded
+   */
+  public static byte[][] encodeAroundFile(Message message, int fileLength) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+    head.write(new byte[HEADER_LENGTH]);
+    DataOutputStream headOut = new DataOutputStream(head);
+    headOut.writeByte(BinaryCodec.VERSION);
+    headOut.writeByte(BinaryCodec.TYPE_MESSAGE);
+    BinaryCodec.writeMessageHead(message, headOut);
+    headOut.writeInt(fileLength);
+    ByteArrayOutputStream tail = new ByteArrayOutputStream(64);
+    BinaryCodec.writeMessageTail(message, new DataOutputStream(tail));
+    byte[] headBytes = head.toByteArray();
+    int length = headBytes.length - HEADER_LENGTH + fileLength + tail.size();
+    checkLength(length);
+    headBytes[0] = (byte) (length >>> 24);
+    headBytes[1] = (byte) (length >>> 16);
+    headBytes[2] = (byte) (length >>> 8);
+    headBytes[3] = (byte) length;
+    return new byte[][] {headBytes, tail.toByteArray()};
+  }
+
+  /**
+   * Decodes a frame payload (without its header), whichever format it is in.
+   */
+  public static Object decode(byte[] payload, int offset, int length)
+      throws IOException, ClassNotFoundException {
+    if (length == 0) {
+      throw new StreamCorruptedException("Empty frame");
+    }
+    if (WireFormat.detect(payload[offset]) == WireFormat.JAVA) {
+      try (ObjectInputStream ois = new ObjectInputStream(
+          new ByteArrayInputStream(payload, offset, length))) {
+        return ois.readObject();
+      }
+    }
+    return BinaryCodec.decode(ByteBuffer.wrap(payload, offset, length));
+  }
+
+  /**
+   * Blocks until a whole frame has been read and returns its payload.
+   */
+  public static byte[] readPayload(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    checkLength(length);
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return payload;
+  }
+
+  /**
+   * Blocks until a whole frame has been read and returns the decoded object.
+   */
+  public static Object readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+    byte[] payload = readPayload(in);
+    return decode(payload, 0, payload.length);
+  }
+
+  public static void writeFrame(OutputStream out, Object object, WireFormat format)
+      throws IOException {
+    out.write(encode(object, format));
+    out.flush();
+  }
+
+  public static void checkLength(int length) throws IOException {
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new StreamCorruptedException("Invalid frame length: " + length);
+    }
+  }
+}
@@ -5,6 +5,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Group implements Serializable {
+  // 与已保存的 groups.txt 中的值相同
+  private static final long serialVersionUID = 766434446316243545L;
+
   private String groupName;
   private String creator;
   private GroupType groupType;
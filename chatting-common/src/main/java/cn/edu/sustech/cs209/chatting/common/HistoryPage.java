@@ -0,0 +1,45 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a group's history, sent in reply to {@link Command#HISTORY_REQUEST}.
+ * Messages are oldest first; the timestamp of the first one is the cursor for the next,
+ * older page.
+ */
+public class HistoryPage implements Serializable {
+  // 固定为之前默认计算出的值, 新旧版本的客户端和服务器之间仍能用 Java 序列化翻页
+  private static final long serialVersionUID = 2669067937224005145L;
+
+  private final String groupName;
+  private final List<Message> messages;
+  private final boolean hasMore;
+
+  public HistoryPage(String groupName, List<Message> messages, boolean hasMore) {
+    this.groupName = groupName;
+    this.messages = messages;
+    this.hasMore = hasMore;
+  }
+
+  public String getGroupName() {
+    return groupName;
+  }
+
+  public List<Message> getMessages() {
+    return messages;
+  }
+
+  /**
+   * Whether the group has messages older than this page.
+   */
+  public boolean hasMore() {
+    return hasMore;
+  }
+
+  @Override
+  public String toString() {
+    return "HistoryPage{" + "groupName=" + groupName + ", messages=" + messages.size()
+        + ", hasMore=" + hasMore + '}';
+  }
+}
@@ -4,6 +4,9 @@ import java.awt.image.BufferedImage;
 import java.io.Serializable;
 
 public class Message implements Serializable {
+    // 与已保存的 groups.txt 中的值相同, 增加字段后旧文件仍能读取
+    private static final long serialVersionUID = 3748478503662903401L;
+
     private Long timestamp;
 
     private String sentBy;
@@ -16,17 +19,32 @@ public class Message implements Serializable {
 
     private byte[] file;
 
+    private Command command;
+
+    private Long seq;
+
+    private String id;
+
     public Message(Long timestamp, String sentBy, String sendTo, String data) {
+        this(timestamp, sentBy, sendTo, data, Command.CHAT);
+    }
+
+    public Message(Long timestamp, String sentBy, String sendTo, String data, Command command) {
         this.timestamp = timestamp;
         this.sentBy = sentBy;
         this.sendTo = sendTo;
         this.data = data;
+        this.command = command;
     }
 
     public Long getTimestamp() {
         return timestamp;
     }
 
+    public void setTimestamp(Long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     public String getSentBy() {
         return sentBy;
     }
@@ -35,13 +53,56 @@ public class Message implements Serializable {
         return sendTo;
     }
 
+    /**
+     * Text of a chat message; for a file message, the SHA-256 of the file's content, under
+     * which the server stores it.
+     */
     public String getData() {
         return data;
     }
 
+    public void setData(String data) {
+        this.data = data;
+    }
+
     @Override
     public String toString() {
-        return "Message{" + "timestamp=" + timestamp + ", sentBy=" + sentBy + ", sendTo=" + sendTo + ", data=" + data + '}';
+        return "Message{" + "command=" + getCommand() + ", id=" + id + ", seq=" + seq + ", timestamp=" + timestamp + ", sentBy=" + sentBy + ", sendTo=" + sendTo + ", data=" + data + '}';
+    }
+
+    /**
+     * Messages persisted before opcodes existed have no command; they are chat messages.
+     */
+    public Command getCommand() {
+        return command == null ? Command.CHAT : command;
+    }
+
+    public void setCommand(Command command) {
+        this.command = command;
+    }
+
+    /**
+     * Position of a chat message in its group, assigned by the server; null for private
+     * messages and for messages not yet accepted by the server.
+     */
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * Globally unique id chosen by the sender of a chat message, used to acknowledge it and to
+     * drop retransmissions; null for control messages.
+     */
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
     }
 
     public byte[] getFile() {
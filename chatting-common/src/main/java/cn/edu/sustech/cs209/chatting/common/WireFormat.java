@@ -0,0 +1,28 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+/**
+ * Payload encodings understood by {@link FrameCodec}.
+ */
+public enum WireFormat {
+  JAVA,   // Java 序列化, 仅作为过渡期的兼容格式
+  BINARY; // BinaryCodec 紧凑二进制格式
+
+  /**
+   * Tells the encoding of a payload from its first byte: Java serialization streams
+   * always start with 0xACED, binary payloads start with their version byte.
+   */
+  public static WireFormat detect(byte firstByte) {
+    return firstByte == (byte) 0xAC ? JAVA : BINARY;
+  }
+
+  public static WireFormat parse(String value) {
+    return WireFormat.valueOf(value.trim().toUpperCase());
+  }
+
+  /**
+   * The format selected with {@code -Dchatting.wire}, binary by default.
+   */
+  public static WireFormat fromSystemProperties() {
+    return parse(System.getProperty("chatting.wire", BINARY.name()));
+  }
+}
@@ -0,0 +1,163 @@
+package cn.edu.sustech.cs209.chatting.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FrameCodecTest {
+
+  private static Object roundTrip(Object object, WireFormat format) throws Exception {
+    byte[] frame = FrameCodec.encode(object, format);
+    int length = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16)
+        | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+    assertEquals(frame.length - FrameCodec.HEADER_LENGTH, length);
+    assertEquals(format, WireFormat.detect(frame[FrameCodec.HEADER_LENGTH]));
+    return FrameCodec.decode(frame, FrameCodec.HEADER_LENGTH, length);
+  }
+
+  private static Message textMessage() {
+    Message message = new Message(1700000000000L, "alice", "g1", "你好, world");
+    message.setSeq(42L);
+    message.setId("m-1");
+    return message;
+  }
+
+  private static void assertSameMessage(Message expected, Message actual) {
+    assertEquals(expected.getTimestamp(), actual.getTimestamp());
+    assertEquals(expected.getSentBy(), actual.getSentBy());
+    assertEquals(expected.getSendTo(), actual.getSendTo());
+    assertEquals(expected.getData(), actual.getData());
+    assertEquals(expected.getCommand(), actual.getCommand());
+    assertEquals(expected.getFileName(), actual.getFileName());
+    assertArrayEquals(expected.getFile(), actual.getFile());
+    assertEquals(expected.getSeq(), actual.getSeq());
+    assertEquals(expected.getId(), actual.getId());
+  }
+
+  @Test
+  void textMessageRoundTrips() throws Exception {
+    for (WireFormat format : WireFormat.values()) {
+      Message message = textMessage();
+      assertSameMessage(message, (Message) roundTrip(message, format));
+    }
+  }
+
+  @Test
+  void nullFieldsRoundTrip() throws Exception {
+    Message message = new Message(null, null, null, null, Command.ALL_CLIENT_NAMES);
+    Message decoded = (Message) roundTrip(message, WireFormat.BINARY);
+    assertSameMessage(message, decoded);
+    assertNull(decoded.getTimestamp());
+    assertNull(decoded.getSeq());
+  }
+
+  @Test
+  void everyCommandRoundTrips() throws Exception {
+    for (Command command : Command.values()) {
+      Message message = new Message(1L, "a", "b", "c", command);
+      assertEquals(command, ((Message) roundTrip(message, WireFormat.BINARY)).getCommand());
+    }
+  }
+
+  @Test
+  void fileMessageRoundTrips() throws Exception {
+    Message message = textMessage();
+    message.setFileName("a.bin");
+    byte[] file = new byte[100_000];
+    Arrays.fill(file, (byte) 7);
+    message.setFile(file);
+    for (WireFormat format : WireFormat.values()) {
+      assertSameMessage(message, (Message) roundTrip(message, format));
+    }
+  }
+
+  @Test
+  void frameAroundFileMatchesWholeFrame() throws Exception {
+    Message message = textMessage();
+    message.setFileName("a.txt");
+    byte[] file = "content".getBytes(StandardCharsets.UTF_8);
+    byte[][] parts = FrameCodec.encodeAroundFile(message, file.length);
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    frame.write(parts[0]);
+    frame.write(file);
+    frame.write(parts[1]);
+    message.setFile(file);
+    assertArrayEquals(FrameCodec.encode(message, WireFormat.BINARY), frame.toByteArray());
+  }
+
+  @Test
+  void groupRoundTrips() throws Exception {
+    List<String> members = new ArrayList<>(List.of("alice", "bob"));
+    Group group = new Group("alice", "g1", members, GroupType.GROUP, true);
+    group.addMessage(textMessage());
+    group.addMessage(new Message(2L, "bob", "g1", "hi"));
+    for (WireFormat format : WireFormat.values()) {
+      Group decoded = (Group) roundTrip(group, format);
+      assertEquals("g1", decoded.getGroupName());
+      assertEquals("alice", decoded.getCreator());
+      assertEquals(GroupType.GROUP, decoded.getGroupType());
+      assertTrue(decoded.isHasUnreadMessages());
+      assertEquals(members, decoded.getGroupMembers());
+      assertEquals(2, decoded.getGroupMessages().size());
+      assertSameMessage(group.getGroupMessages().get(0), decoded.getGroupMessages().get(0));
+    }
+  }
+
+  @Test
+  void unknownGroupTypeIsRejected() throws Exception {
+    Group group = new Group("alice", "g1", new ArrayList<>(), GroupType.PRIVATE, false);
+    byte[] frame = FrameCodec.encode(group, WireFormat.BINARY);
+    // 版本, 类型, 两个字符串之后就是群组类型
+    int typeOffset = FrameCodec.HEADER_LENGTH + 2 + (4 + 2) + (4 + 5);
+    assertEquals(GroupType.PRIVATE.ordinal(), frame[typeOffset]);
+    for (byte type : new byte[] {(byte) GroupType.values().length, -2, Byte.MAX_VALUE}) {
+      frame[typeOffset] = type;
+      assertThrows(StreamCorruptedException.class,
+          () -> FrameCodec.decode(frame, FrameCodec.HEADER_LENGTH,
+              frame.length - FrameCodec.HEADER_LENGTH));
+    }
+  }
+
+  @Test
+  void historyPageRoundTrips() throws Exception {
+    HistoryPage page = new HistoryPage("g1", List.of(textMessage()), true);
+    HistoryPage decoded = (HistoryPage) roundTrip(page, WireFormat.BINARY);
+    assertEquals("g1", decoded.getGroupName());
+    assertTrue(decoded.hasMore());
+    assertSameMessage(page.getMessages().get(0), decoded.getMessages().get(0));
+  }
+
+  @Test
+  void truncatedPayloadIsRejected() throws Exception {
+    byte[] frame = FrameCodec.encode(textMessage(), WireFormat.BINARY);
+    for (int length = 1; length < frame.length - FrameCodec.HEADER_LENGTH; length++) {
+      int cut = length;
+      assertThrows(StreamCorruptedException.class,
+          () -> FrameCodec.decode(frame, FrameCodec.HEADER_LENGTH, cut));
+    }
+  }
+
+  @Test
+  void unsupportedVersionIsRejected() {
+    byte[] payload = {(byte) (BinaryCodec.VERSION + 1), BinaryCodec.TYPE_MESSAGE};
+    assertThrows(StreamCorruptedException.class,
+        () -> FrameCodec.decode(payload, 0, payload.length));
+  }
+
+  @Test
+  void oversizedFrameIsRejected() {
+    assertThrows(IOException.class, () -> FrameCodec.checkLength(FrameCodec.MAX_FRAME_LENGTH + 1));
+    assertThrows(IOException.class, () -> FrameCodec.checkLength(-1));
+  }
+}
@@ -0,0 +1,218 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed store of attachments under {@code dataDir/blobs}: every distinct content
+ * is kept once, as {@code <first two hex digits>/<SHA-256>}, however many messages refer to
+ * it.
+ *
+ * <p>An upload in progress is kept as {@code partial/<transfer id>.part}, so the length of
+ * the partial file is where an interrupted upload resumes. Once complete and verified, it
+ * becomes a blob, or is deleted if the same content is already stored.
+ *
+ * <p>Next to each blob, {@code <hash>.readers} lists who may download it, one reader per
+ * line, as recorded for each message referring to it.
+ */
+public class BlobStore {
+  // 传输 id 由客户端生成, 只接受 UUID, 不能拼出别的路径
+  private static final Pattern TRANSFER_ID = Pattern.compile("[0-9a-fA-F-]{36}");
+  private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+  private static final String PARTIAL_SUFFIX = ".part";
+  private static final String READERS_SUFFIX = ".readers";
+  // 这么久没续传的上传当作放弃了
+  private static final long STALE_PARTIAL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+  private final File directory;
+  private final File partialDirectory;
+  private final long maxFileBytes;
+  private final ServerMetrics metrics;
+
+  public BlobStore(File directory, long maxFileBytes, ServerMetrics metrics) {
+    this.directory = directory;
+    this.partialDirectory = new File(directory, "partial");
+    this.maxFileBytes = maxFileBytes;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Creates the directories if needed and deletes the partial files of uploads abandoned
+   * for a day; a more recent one is kept, so the upload can still be resumed.
+   *
+   * @return the number of partial files deleted
+   */
+  public int open() throws IOException {
+    partialDirectory.mkdirs();
+    if (!partialDirectory.isDirectory()) {
+      throw new IOException("Cannot create " + partialDirectory);
+    }
+    long staleBefore = System.currentTimeMillis() - STALE_PARTIAL_MILLIS;
+    File[] stale = partialDirectory.listFiles((dir, name) -> name.endsWith(PARTIAL_SUFFIX)
+        && new File(dir, name).lastModified() < staleBefore);
+    int deleted = 0;
+    if (stale != null) {
+      for (File partial : stale) {
+        if (partial.delete()) {
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  public static boolean isValidTransferId(String id) {
+    return id != null && TRANSFER_ID.matcher(id).matches();
+  }
+
+  public static boolean isValidHash(String hash) {
+    return hash != null && HASH.matcher(hash).matches();
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+  }
+
+  public static String hex(byte[] digest) {
+    return HexFormat.of().formatHex(digest);
+  }
+
+  public long getMaxFileBytes() {
+    return maxFileBytes;
+  }
+
+  /**
+   * Returns the blob with the given hash, or null if it is not stored.
+   */
+  public File get(String hash) {
+    if (!isValidHash(hash)) {
+      return null;
+    }
+    File file = fileOf(hash);
+    return file.isFile() ? file : null;
+  }
+
+  /**
+   * Opens the partial file of an upload for reading and writing, creating it if needed; its
+   * size is where the upload continues.
+   */
+  public FileChannel openPartial(String id) throws IOException {
+    return FileChannel.open(partialOf(id).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  public void deletePartial(String id) throws IOException {
+    Files.deleteIfExists(partialOf(id).toPath());
+  }
+
+  /**
+   * Turns a fully received and verified upload into the blob with the given hash.
+   *
+   * @return false if the blob was already stored and the upload was discarded
+   */
+  public boolean commit(String id, String hash) throws IOException {
+    File blob = fileOf(hash);
+    if (blob.isFile()) {
+      metrics.recordDuplicateBlob(blob.length());
+      deletePartial(id);
+      return false;
+    }
+    blob.getParentFile().mkdirs();
+    try {
+      Files.move(partialOf(id).toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // 同样的内容同时上传了两次
+      metrics.recordDuplicateBlob(blob.length());
+      deletePartial(id);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stores content received in one piece, from clients that still embed files in messages.
+   *
+   * @return the hash of the content
+   */
+  public String put(byte[] content) throws IOException {
+    String hash = hex(newDigest().digest(content));
+    File blob = fileOf(hash);
+    if (blob.isFile()) {
+      metrics.recordDuplicateBlob(content.length);
+    } else {
+      blob.getParentFile().mkdirs();
+      File temp = File.createTempFile(hash, PARTIAL_SUFFIX, partialDirectory);
+      Files.write(temp.toPath(), content);
+      try {
+        Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        Files.deleteIfExists(temp.toPath());
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Records that a blob may be downloaded by a reader, unless it may already. The record is
+   * forced to disk, since it is written before the message that refers to the blob is logged.
+   */
+  public synchronized void addReader(String hash, String reader) throws IOException {
+    if (readersOf(hash).contains(reader)) {
+      return;
+    }
+    File readers = readersFileOf(hash);
+    readers.getParentFile().mkdirs();
+    try (FileChannel channel = FileChannel.open(readers.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      ByteBuffer line = ByteBuffer.wrap((reader + "\n").getBytes(StandardCharsets.UTF_8));
+      while (line.hasRemaining()) {
+        channel.write(line);
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Returns the readers recorded for a blob, none if no message refers to it yet.
+   */
+  public synchronized Set<String> readersOf(String hash) throws IOException {
+    if (!isValidHash(hash)) {
+      return Set.of();
+    }
+    File readers = readersFileOf(hash);
+    if (!readers.isFile()) {
+      return Set.of();
+    }
+    return new HashSet<>(Files.readAllLines(readers.toPath(), StandardCharsets.UTF_8));
+  }
+
+  private File fileOf(String hash) {
+    return new File(new File(directory, hash.substring(0, 2)), hash);
+  }
+
+  private File readersFileOf(String hash) {
+    return new File(new File(directory, hash.substring(0, 2)), hash + READERS_SUFFIX);
+  }
+
+  private File partialOf(String id) {
+    return new File(partialDirectory, id + PARTIAL_SUFFIX);
+  }
+}
@@ -0,0 +1,116 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A client connection served by two threads of its own: {@link #run()} reads and dispatches
+ * frames, and {@link #drainOutbound()} is the single writer of the socket.
+ */
+public class BlockingClientHandler extends ClientHandler implements Runnable {
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  public BlockingClientHandler(ChatServer server, Socket socket) throws IOException {
+    super(server);
+    this.socket = socket;
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        byte[] payload = FrameCodec.readPayload(in);
+        handleFrame(payload, 0, payload.length);
+      }
+    } catch (SocketException e) {
+      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
+    } catch (EOFException e) {
+      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
+    } catch (ClosedChannelException e) {
+      // socket 由 channel 创建, 被其他线程关闭时抛出的是这个而不是 SocketException
+      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
+    } catch (IOException e) {
+      System.out.println("IO Exception");
+      e.printStackTrace();
+    } catch (ClassNotFoundException e) {
+      System.out.println("Class not found");
+    } finally {
+      // out 属于写线程, 这里只关闭 socket, 写线程会随队列关闭而退出
+      outbound.close();
+      try {
+        in.close();
+        socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      onDisconnect();
+    }
+  }
+
+  /**
+   * The single writer of a blocking connection: drains the outbound queue into the socket.
+   */
+  public void drainOutbound() {
+    try {
+      Object frame;
+      while ((frame = outbound.take()) != null) {
+        if (frame instanceof FileRegion) {
+          // 先把缓冲的帧写出去, 再由内核直接把文件内容发到 socket
+          out.flush();
+          FileRegion region = (FileRegion) frame;
+          try {
+            // 阻塞的 channel 在写完之前一直挂起这个线程, 写不完只能是出错了
+            if (!region.writeTo(socket.getChannel())) {
+              throw new IOException("File region not fully written to a blocking socket");
+            }
+          } finally {
+            region.release();
+          }
+          continue;
+        }
+        out.write((byte[]) frame);
+        if (outbound.isEmpty()) {
+          out.flush();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      closeConnection("write failed: " + e.getMessage());
+    }
+  }
+
+  @Override
+  protected boolean canSendFileRegions() {
+    return getWireFormat() == WireFormat.BINARY && socket.getChannel() != null;
+  }
+
+  @Override
+  public void closeConnection(String reason) {
+    System.out.println("Closing connection of " + getClientName() + ": " + reason);
+    outbound.close();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public Socket getSocket() {
+    return socket;
+  }
+}
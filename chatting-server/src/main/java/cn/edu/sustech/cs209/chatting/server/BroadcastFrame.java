@@ -0,0 +1,31 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.IOException;
+
+/**
+ * One object sent to many sessions. It is encoded at most once per wire format,
+ * and every session speaking that format gets the same frame bytes.
+ */
+public class BroadcastFrame {
+  private final Object payload;
+  private final byte[][] frames = new byte[WireFormat.values().length][];
+
+  public BroadcastFrame(Object payload) {
+    this.payload = payload;
+  }
+
+  public Object getPayload() {
+    return payload;
+  }
+
+  public synchronized byte[] frameFor(WireFormat format) throws IOException {
+    byte[] frame = frames[format.ordinal()];
+    if (frame == null) {
+      frame = FrameCodec.encode(payload, format);
+      frames[format.ordinal()] = frame;
+    }
+    return frame;
+  }
+}
@@ -1,53 +1,172 @@
 package cn.edu.sustech.cs209.chatting.server;
 
+import cn.edu.sustech.cs209.chatting.common.Command;
 import cn.edu.sustech.cs209.chatting.common.Group;
 import cn.edu.sustech.cs209.chatting.common.Message;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 public class ChatServer {
+  private static final long TIMER_TICK_MILLIS = 100;
+
+  private final ServerConfig config;
   private int port;
   private ServerSocket serverSocket;
   private ExecutorService executorService;
-  private Set<ClientHandler> clients;
-  private Set<Group> groups;
-  private Map<String, String> usersCredentials;
+  private NioTransport nioTransport;
+  private final ScheduledExecutorService scheduler;
+  // 时间轮单独一个线程推进, 不被调度线程上的快照和广播拖慢
+  private final ScheduledExecutorService timerThread =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "timer-wheel");
+        thread.setDaemon(true);
+        return thread;
+      });
+  // 登录时校验口令很耗 CPU, 线程数固定为 CPU 核数, 登录风暴时排队而不是开出上千个线程
+  private final ExecutorService credentialExecutor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "credential-check");
+        thread.setDaemon(true);
+        return thread;
+      });
+  // NIO 连接的上传写盘在这里进行, 不占用事件循环
+  private final ExecutorService fileExecutor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "file-io");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ServerMetrics metrics = new ServerMetrics();
+  private MessageLog messageLog;
+  private final HistoryStore history;
+  private final OfflineInbox inbox;
+  private final BlobStore blobs;
+  private final ThumbnailStore thumbnails;
+  private final SessionRegistry sessions;
+  private final GroupDirectory groups;
+  private final Map<String, DedupWindow> dedupWindows = new ConcurrentHashMap<>();
+  private final CredentialStore credentials;
+  private final AtomicBoolean presenceScheduled = new AtomicBoolean();
+  private long presenceBroadcastVersion; // 只在调度线程中访问
+  private final TimerWheel timers = new TimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, 512);
 
   public ChatServer(int port) {
-    this.port = port;
-    this.clients = Collections.synchronizedSet(new HashSet<>());
-    this.groups = Collections.synchronizedSet(new HashSet<>());
-    this.usersCredentials = Collections.synchronizedMap(new HashMap<>());
+    this(portConfig(port));
+  }
+
+  public ChatServer(ServerConfig config) {
+    this.config = config;
+    this.port = config.getPort();
+    this.sessions = new SessionRegistry(new PresenceSet(config.getPresenceHistory()));
+    this.groups = new GroupDirectory(config.getHistoryRecentLimit(),
+        config.getHistoryLoginMessages(), config.getLoginCacheGroups(), metrics);
+    this.history = new HistoryStore(new File(config.getDataDirectory(), "history"),
+        config.getHistorySegmentBytes(), config.getHistoryOpenGroups());
+    this.inbox = new OfflineInbox(new File(config.getDataDirectory(), "inbox"),
+        config.getInboxCapacity(), TimeUnit.HOURS.toMillis(config.getInboxTtlHours()), metrics);
+    this.blobs = new BlobStore(new File(config.getDataDirectory(), "blobs"),
+        config.getFileMaxBytes(), metrics);
+    this.thumbnails = new ThumbnailStore(new File(config.getDataDirectory(), "thumbnails"),
+        blobs, config.getThumbnailSize(), metrics);
+    this.credentials = new CredentialStore(new File(config.getDataDirectory(), "users.log"),
+        config.getCredentialIterations());
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "server-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static ServerConfig portConfig(int port) {
+    ServerConfig config = ServerConfig.fromSystemProperties();
+    config.setPort(port);
+    return config;
   }
 
   public void startServer() {
     try {
       //Server started on host: 10.25.0.92, port: 8888
-      serverSocket = new ServerSocket();
+      // 所有模式都通过 channel 接受连接, 这样下载可以用 transferTo 直接从文件发送
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverSocket = serverChannel.socket();
       serverSocketSetting();
 
       System.out.println("Server started on host: "
           + serverSocket.getInetAddress().getHostAddress()
-          + ", port: " + serverSocket.getLocalPort());
+          + ", port: " + serverSocket.getLocalPort() + ", mode: " + config.getMode());
 
-      executorService = Executors.newCachedThreadPool();
+      long recoveryStart = System.nanoTime();
 
       readGroupInfo();
 
-      readUsersCredentials();
+      openMessageLog();
+
+      loadRecentHistory();
+
+      int accounts = credentials.open(
+          new File(config.getDataDirectory(), "usersCredentials.txt"));
+      System.out.println("Loaded " + accounts + " accounts");
+
+      inbox.open();
+
+      int partials = blobs.open();
+      if (partials > 0) {
+        System.out.println("Deleted " + partials + " abandoned partial uploads");
+      }
+
+      thumbnails.open();
+
+      int spills = SpillFile.sweep(config.getSpillDirectory());
+      if (spills > 0) {
+        System.out.println("Deleted " + spills + " spill files left by a previous run");
+      }
+
+      System.out.println("Recovered " + groups.size() + " groups in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recoveryStart) + " ms");
+
+      if (config.getSnapshotIntervalSeconds() > 0) {
+        scheduler.scheduleWithFixedDelay(this::saveGroupInfo, config.getSnapshotIntervalSeconds(),
+            config.getSnapshotIntervalSeconds(), TimeUnit.SECONDS);
+      }
+
+      if (config.getMetricsIntervalSeconds() > 0) {
+        scheduler.scheduleAtFixedRate(this::reportMetrics, config.getMetricsIntervalSeconds(),
+            config.getMetricsIntervalSeconds(), TimeUnit.SECONDS);
+      }
+
+      timerThread.scheduleAtFixedRate(timers::advance, TIMER_TICK_MILLIS, TIMER_TICK_MILLIS,
+          TimeUnit.MILLISECONDS);
+
+      scheduler.scheduleWithFixedDelay(this::evictDedupWindows, 1, 1, TimeUnit.MINUTES);
+
+      if (config.getMode() == ServerMode.NIO) {
+        nioTransport = new NioTransport(this, config.getEventLoopThreads());
+        nioTransport.serve(serverChannel);
+        return;
+      }
+
+      executorService = config.getMode() == ServerMode.VIRTUAL
+          ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
 
       while (true) {
         Socket socket = serverSocket.accept();
 
         System.out.println("New client connected: " + socket.getInetAddress().getHostAddress());
 
-        ClientHandler clientHandler = new ClientHandler(this, socket);
-        clients.add(clientHandler);
+        BlockingClientHandler clientHandler = new BlockingClientHandler(this, socket);
+        addClient(clientHandler);
         executorService.execute(clientHandler);
+        executorService.execute(clientHandler::drainOutbound);
       }
     } catch (SocketTimeoutException e) {
       System.out.println("Server timeout");
@@ -55,10 +174,27 @@ public class ChatServer {
       e.printStackTrace();
     } finally {
       try {
-        for (ClientHandler client : clients) {
+        for (ClientHandler client : sessions.connections()) {
           removeClient(client);
         }
-        executorService.shutdown();
+        if (executorService != null) {
+          executorService.shutdown();
+        }
+        if (nioTransport != null) {
+          nioTransport.shutdown();
+        }
+        scheduler.shutdown();
+        timerThread.shutdown();
+        thumbnails.shutdown();
+        fileExecutor.shutdown();
+        credentialExecutor.shutdown();
+        if (messageLog != null) {
+          saveGroupInfo();
+          messageLog.close();
+        }
+        credentials.close();
+        inbox.close();
+        history.close();
         serverSocket.close();
       } catch (IOException e) {
         e.printStackTrace();
@@ -66,12 +202,47 @@ public class ChatServer {
     }
   }
 
+  /**
+   * Looks the JDK 21 factory up reflectively so the server still builds and runs on 17,
+   * where it falls back to platform threads.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      System.err.println("Virtual threads need JDK 21+, running on "
+          + System.getProperty("java.version") + " with platform threads instead");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  public void addClient(ClientHandler clientHandler) {
+    sessions.connect(clientHandler);
+  }
+
   public void removeClient(ClientHandler clientHandler) {
-    clients.remove(clientHandler);
+    sessions.disconnect(clientHandler);
+    String name = clientHandler.getClientName();
+    DedupWindow window = name == null ? null : dedupWindows.get(name);
+    if (window != null && !sessions.isOnline(name)) {
+      window.release(System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Forgets the message ids of users offline for longer than the dedup TTL; a client only
+   * retransmits shortly after reconnecting, so the windows of users who left are not kept.
+   */
+  void evictDedupWindows() {
+    long expired = System.currentTimeMillis()
+        - TimeUnit.MINUTES.toMillis(config.getDedupTtlMinutes());
+    dedupWindows.entrySet().removeIf(entry -> !sessions.isOnline(entry.getKey())
+        && entry.getValue().getReleasedAt() < expired);
   }
 
   public void serverSocketSetting() throws IOException {
-    serverSocket.bind(new InetSocketAddress("10.25.0.92", port),
+    serverSocket.bind(new InetSocketAddress(config.getHost(), port),
         10); //服务器端绑定本地的 IP 地址和端口号
     serverSocket.setReuseAddress(true); // 设置端口复用
     serverSocket.setReceiveBufferSize(64 * 1024 * 1024); // 设置接收缓冲区为 64M
@@ -79,107 +250,316 @@ public class ChatServer {
     serverSocket.setPerformancePreferences(10, 10, 1);
   }
 
-  public void saveGroupInfo() {
+  /**
+   * Writes a snapshot of all groups and compacts the message log behind it: the log is
+   * rotated, the history archived from the older files is forced to disk, and those files
+   * are deleted once the snapshot is in place.
+   */
+  public synchronized void saveGroupInfo() {
     try {
-      // 保存群聊信息到本地resource文件夹中的group.txt文件中
-      String filePath = "chatting-server/src/main/resources/groups.txt";
-      File file = new File(filePath);
-      if (!file.exists()) {
-        file.createNewFile();
-      }
-
-      try (FileOutputStream fos = new FileOutputStream(file);
-           ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-        oos.writeObject(groups);
-      }
+      long start = System.nanoTime();
+      List<File> sealed = messageLog.rotate();
+      history.flush();
+      GroupSnapshot.write(new File(config.getDataDirectory(), "snapshot.bin"), groups);
+      messageLog.delete(sealed);
+      System.out.println("Snapshot of " + groups.size() + " groups written, compacted "
+          + sealed.size() + " log files in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
-  public void readGroupInfo() {
-    String filePath = "chatting-server/src/main/resources/groups.txt";
-    File file = new File(filePath);
+  /**
+   * Reads the snapshot, or the groups.txt of older versions if there is none yet. A file that
+   * cannot be read stops the server: starting without its groups would let the next snapshot
+   * replace it and the log compaction delete what it covered.
+   */
+  public void readGroupInfo() throws IOException {
+    File snapshot = new File(config.getDataDirectory(), "snapshot.bin");
+    if (snapshot.exists()) {
+      try {
+        GroupSnapshot.read(snapshot, groups);
+      } catch (IOException e) {
+        throw new IOException("Cannot read " + snapshot + "; restore it from a backup, the server"
+            + " will not start without it", e);
+      }
+      return;
+    }
+    // 还没有快照时读取旧版本的 groups.txt
+    File file = new File(config.getDataDirectory(), "groups.txt");
     if (file.exists() && file.length() > 0) {
       try (FileInputStream fis = new FileInputStream(file);
            ObjectInputStream ois = new ObjectInputStream(fis)) {
-        // 读取群组信息
-        groups = (Set<Group>) ois.readObject();
+        // 读取群组信息, 旧版本保存在其中的聊天记录导入历史存储
+        Set<Group> saved = (Set<Group>) ois.readObject();
+        for (Group group : saved) {
+          history.importLegacy(group.getGroupName(), group.getGroupMessages());
+        }
+        groups.addAll(saved);
       } catch (IOException | ClassNotFoundException e) {
-        e.printStackTrace();
+        throw new IOException("Cannot read " + file + "; the server will not start without it",
+            e);
       }
     }
   }
 
-  public void saveUsersCredentials() throws IOException {
-    String filePath = "chatting-server/src/main/resources/usersCredentials.txt";
-    File file = new File(filePath);
-    if (!file.exists()) {
-      file.createNewFile();
-    }
-    try (FileOutputStream fos = new FileOutputStream(file);
-         ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-      oos.writeObject(usersCredentials);
+  /**
+   * Replays the message log on top of the snapshot and keeps it open for appending.
+   */
+  public void openMessageLog() throws IOException {
+    MessageLog log = new MessageLog(config.getDataDirectory(), config.getDurability(),
+        config.getCommitWindowMillis(), metrics, this::onCommitted);
+    long records = log.open(this::applyLogRecord);
+    // 回放完才赋值, 回放失败时关闭服务器不会写快照
+    messageLog = log;
+    System.out.println("Replayed " + records + " records from the message log");
+  }
+
+  private void applyLogRecord(long lsn, Object record) {
+    if (record instanceof Message) {
+      groups.observe(((Message) record).getSendTo(), (Message) record);
     }
+    onCommitted(lsn, record);
   }
 
-  public void readUsersCredentials() throws IOException {
-    String filePath = "chatting-server/src/main/resources/usersCredentials.txt";
-    File file = new File(filePath);
-    if (file.exists() && file.length() > 0) {
-      try (FileInputStream fis = new FileInputStream(file);
-           ObjectInputStream ois = new ObjectInputStream(fis)) {
-        usersCredentials = (Map<String, String>) ois.readObject();
-      } catch (IOException | ClassNotFoundException e) {
-        e.printStackTrace();
+  /**
+   * Applies a record to the group directory once the log has committed it, so that a record
+   * whose write fails is never seen; it runs before the file can be rotated away, so a
+   * snapshot taken after the rotation includes it.
+   */
+  private void onCommitted(long lsn, Object record) {
+    if (record instanceof Group) {
+      groups.add((Group) record);
+    } else if (record instanceof Message) {
+      Message message = (Message) record;
+      Group group = groups.get(message.getSendTo());
+      if (group != null) {
+        archive(lsn, message);
+        groups.addMessage(group, message);
       }
     }
   }
 
-  public void registerUser(String username, String password) throws IOException {
-    usersCredentials.put(username, password);
-    saveUsersCredentials();
-    System.out.println("User " + username + " registered");
+  /**
+   * Copies a committed group message into the history store.
+   */
+  public void archive(long lsn, Message message) {
+    try {
+      history.append(message.getSendTo(), lsn, message);
+    } catch (IOException e) {
+      System.err.println("Error archiving message " + lsn + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Keeps only the newest messages of each group in memory; older ones are read from the
+   * history store on demand.
+   */
+  public void loadRecentHistory() throws IOException {
+    for (Group group : groups.all()) {
+      groups.setRecent(group, history.recent(group.getGroupName(),
+          config.getHistoryRecentLimit()));
+    }
+  }
+
+  public MessageLog getMessageLog() {
+    return messageLog;
+  }
+
+  public HistoryStore getHistory() {
+    return history;
+  }
+
+  public OfflineInbox getInbox() {
+    return inbox;
+  }
+
+  public BlobStore getBlobs() {
+    return blobs;
+  }
+
+  public ThumbnailStore getThumbnails() {
+    return thumbnails;
   }
 
-  public boolean validateUser(String username, String password) {
-    String storedPassword = usersCredentials.get(username);
-    return storedPassword != null && storedPassword.equals(password);
+  /**
+   * Registers a new user; the future is completed with false if the name is taken.
+   */
+  public CompletableFuture<Boolean> registerUser(String username, String password) {
+    return credentials.register(username, password).thenApply(registered -> {
+      if (registered) {
+        System.out.println("User " + username + " registered");
+      }
+      return registered;
+    });
   }
 
-  public Set<ClientHandler> getClients() {
-    return clients;
+  /**
+   * Returns the window of recently received message ids of a user.
+   */
+  public DedupWindow getDedupWindow(String username) {
+    return dedupWindows.computeIfAbsent(username,
+        name -> new DedupWindow(config.getDedupWindow()));
   }
 
-  public Set<Group> getGroups() {
+  public boolean isRegistered(String username) {
+    return credentials.contains(username);
+  }
+
+  public boolean validateUser(String username, String password) throws IOException {
+    return credentials.validate(username, password);
+  }
+
+  public ServerConfig getConfig() {
+    return config;
+  }
+
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  public ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Runs steps of NIO connections that block on the disk.
+   */
+  public ExecutorService getFileExecutor() {
+    return fileExecutor;
+  }
+
+  /**
+   * Checks passwords of NIO connections; bounded by the CPU count, since each check hashes.
+   */
+  public ExecutorService getCredentialExecutor() {
+    return credentialExecutor;
+  }
+
+  /**
+   * Returns the timer wheel for connection deadlines, advanced by the scheduler.
+   */
+  public TimerWheel getTimers() {
+    return timers;
+  }
+
+  public void reportMetrics() {
+    int totalDepth = 0;
+    List<ClientHandler> deepest = new ArrayList<>();
+    for (ClientHandler client : sessions.connections()) {
+      int depth = client.getOutboundDepth();
+      totalDepth += depth;
+      if (depth > 0) {
+        deepest.add(client);
+      }
+    }
+    deepest.sort(Comparator.comparingInt(ClientHandler::getOutboundDepth).reversed());
+    String perSession = deepest.stream().limit(10)
+        .map(client -> client.getClientName() + "=" + client.getOutboundDepth())
+        .collect(Collectors.joining(", "));
+    System.out.println("Metrics: connections=" + sessions.connectionCount()
+        + ", timers=" + timers.pending()
+        + ", outboundDepth=" + totalDepth + " [" + perSession + "]"
+        + ", inboxDepth=" + inbox.totalDepth() + " (" + inbox.nonEmptyInboxes() + " users), "
+        + metrics);
+  }
+
+  public SessionRegistry getSessions() {
+    return sessions;
+  }
+
+  public GroupDirectory getGroups() {
     return groups;
   }
 
+  /**
+   * Notes that the connection count or the online users changed. Changes are coalesced: the
+   * count, and the joins and leaves to clients that subscribed to them, are sent at most once
+   * per {@code chatting.presence.intervalMs}, so a reconnect storm of n clients costs n frames
+   * per interval instead of n per login.
+   */
   public void updateClientsCnt() {
-    synchronized (clients) {
-      for (ClientHandler client : clients) {
-        try {
-          if (isClientConnected(client)) {
-            client.sendClientCount(clients.size());
-          } else {
-            clients.remove(client);
-          }
-        } catch (IOException e) {
-          System.err.println("Error sending client count: " + e.getMessage());
-          clients.remove(client);
+    if (!scheduler.isShutdown() && presenceScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(this::broadcastClientCount, config.getPresenceIntervalMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void broadcastClientCount() {
+    // 先清除标记, 广播期间的变化再排下一次
+    presenceScheduled.set(false);
+    // 会话表的遍历不加锁, 人数消息对所有客户端都相同, 每种格式只编码一次
+    // 断开的连接由读写失败发现, 不再逐个探测
+    BroadcastFrame broadcast = new BroadcastFrame(new Message(System.currentTimeMillis(),
+        "Server", "All", String.valueOf(sessions.connectionCount()), Command.CLIENT_COUNT));
+    BroadcastFrame changes = presenceChanges();
+    int sent = 0;
+    for (ClientHandler client : sessions.connections()) {
+      try {
+        client.enqueue(broadcast);
+        if (changes != null && client.isPresenceSubscribed()) {
+          client.enqueue(changes);
+          sent++;
         }
+        sent++;
+      } catch (IOException e) {
+        System.err.println("Error sending client count: " + e.getMessage());
       }
     }
+    metrics.recordPresenceBroadcast(sent);
+  }
+
+  /**
+   * Returns the joins and leaves since the previous broadcast, or the whole set if there were
+   * more than the presence log keeps; null if nothing changed.
+   */
+  private BroadcastFrame presenceChanges() {
+    PresenceSet presence = sessions.getPresence();
+    long version = presence.getVersion();
+    if (version == presenceBroadcastVersion) {
+      return null;
+    }
+    String delta = presence.delta(presenceBroadcastVersion, version);
+    presenceBroadcastVersion = version;
+    return new BroadcastFrame(delta != null
+        ? new Message(System.currentTimeMillis(), "Server", "All", delta, Command.PRESENCE_DELTA)
+        : new Message(System.currentTimeMillis(), "Server", "All", presence.snapshot(),
+            Command.PRESENCE_SNAPSHOT));
   }
 
-  private boolean isClientConnected(ClientHandler client) {
+  /**
+   * Subscribes a client to the online users. A client that already holds a version of them
+   * is sent what changed since, if the presence log still reaches back to it; any other gets
+   * the whole set. Runs on the scheduler, like the broadcasts that follow, so that the
+   * client receives the changes in order.
+   *
+   * @param known the epoch and version the client holds, or null
+   */
+  public void subscribePresence(ClientHandler client, String known) {
+    PresenceSet presence = sessions.getPresence();
+    String delta = null;
+    String[] fields = known == null ? new String[0] : known.split("\t");
+    if (fields.length == 2 && fields[0].equals(String.valueOf(presence.getEpoch()))) {
+      try {
+        delta = presence.delta(Long.parseLong(fields[1]), presence.getVersion());
+      } catch (NumberFormatException e) {
+        delta = null;
+      }
+    }
+    client.setPresenceSubscribed(true);
     try {
-      return client.getSocket().getInputStream().available() >= 0;
-    } catch (SocketException e) {
-      return false;
+      if (delta != null) {
+        client.sendMessageToClient(new Message(System.currentTimeMillis(), "Server",
+            client.getClientName(), delta, Command.PRESENCE_DELTA));
+        metrics.getPresenceDeltas().increment();
+      } else {
+        client.sendMessageToClient(new Message(System.currentTimeMillis(), "Server",
+            client.getClientName(), presence.snapshot(), Command.PRESENCE_SNAPSHOT));
+        metrics.getPresenceSnapshots().increment();
+      }
     } catch (IOException e) {
-      System.err.println("Error checking client connection: " + e.getMessage());
-      return false;
+      System.err.println("Error sending online users: " + e.getMessage());
     }
   }
 
@@ -1,214 +1,1304 @@
 package cn.edu.sustech.cs209.chatting.server;
 
+import cn.edu.sustech.cs209.chatting.common.Command;
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
 import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.HistoryPage;
 import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
 import java.io.*;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.Optional;
-
-public class ClientHandler implements Runnable {
-  private ChatServer server;
-  private Socket socket;
-  private ObjectInputStream in;
-  private ObjectOutputStream out;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The protocol side of one client connection: login, message routing, file transfers and
+ * everything else a session does, whichever transport carries its frames. Subclasses read
+ * frames into {@link #handleFrame} and write what {@link #outbound} holds.
+ */
+public abstract class ClientHandler {
+  /**
+   * Handlers of control commands sent to the server, indexed by opcode.
+   */
+  private static final Map<Command, CommandHandler> COMMAND_HANDLERS =
+      new EnumMap<>(Command.class);
+  private static final long DELIVERY_BACKOFF_MILLIS = 50;
+  // 下载时最多有这么多块在发送队列中等待, 其余的等客户端读走再读盘
+  private static final int DOWNLOAD_QUEUED_CHUNKS = 16;
+  // BlobStore 中记录的可下载文件的人: 用户本人或群组的当前成员
+  private static final String USER_READER = "user:";
+  private static final String GROUP_READER = "group:";
+
+  static {
+    COMMAND_HANDLERS.put(Command.REGISTER, ClientHandler::handleUserRegistration);
+    COMMAND_HANDLERS.put(Command.LOGIN, ClientHandler::handleUserLogin);
+    COMMAND_HANDLERS.put(Command.CLIENT_NAME, ClientHandler::handleClientNameCommand);
+    COMMAND_HANDLERS.put(Command.ALL_CLIENT_NAMES, ClientHandler::handleAllClientNames);
+    COMMAND_HANDLERS.put(Command.HISTORY_REQUEST, ClientHandler::handleHistoryRequest);
+    COMMAND_HANDLERS.put(Command.RESUME, ClientHandler::handleUserResume);
+    COMMAND_HANDLERS.put(Command.SYNC, ClientHandler::handleSync);
+    COMMAND_HANDLERS.put(Command.ACK, ClientHandler::handleAck);
+    COMMAND_HANDLERS.put(Command.FILE_UPLOAD, ClientHandler::handleFileUpload);
+    COMMAND_HANDLERS.put(Command.FILE_CHUNK, ClientHandler::handleFileChunk);
+    COMMAND_HANDLERS.put(Command.FILE_DOWNLOAD, ClientHandler::handleFileDownload);
+    COMMAND_HANDLERS.put(Command.PRESENCE_SUBSCRIBE, ClientHandler::handlePresenceSubscribe);
+    COMMAND_HANDLERS.put(Command.THUMBNAIL, ClientHandler::handleThumbnailRequest);
+  }
+
+  @FunctionalInterface
+  interface CommandHandler {
+    void handle(ClientHandler session, Message message) throws IOException;
+  }
+
+  protected final ChatServer server;
+  protected final OutboundQueue outbound;
   private String clientName;
+  // 回复时使用客户端最近一次发来的帧的格式
+  private volatile WireFormat wireFormat;
+  private boolean hasReceivedClientName = false;
+  private volatile boolean presenceSubscribed;
+  private volatile long lastReadNanos = System.nanoTime();
+  private volatile TimerWheel.Timeout idleCheck;
+  private volatile boolean answersHeartbeats; // 登录时声明了 heartbeat 功能
+  // 已发出但客户端还没确认收到的私聊消息, 断线时放回收件箱
+  private final Map<String, Message> unacknowledged = new LinkedHashMap<>();
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
 
-  public ClientHandler(ChatServer server, Socket socket) {
-    this.server = server;
-    this.socket = socket;
+  /**
+   * A chunked upload in progress on this connection. The content is hashed as it arrives,
+   * so it can be checked against the hash the client announced.
+   */
+  private static final class Upload {
+    final String id;
+    final Message offer;
+    final long size;
+    final String hash;
+    final MessageDigest digest = BlobStore.newDigest();
+    FileChannel channel; // open 之前为 null
+    long position;
+    Message fileMessage; // 上传完成并校验通过后才有
+
+    Upload(String id, Message offer, long size, String hash) {
+      this.id = id;
+      this.offer = offer;
+      this.size = size;
+      this.hash = hash;
+    }
+
+    /**
+     * Opens the partial file and hashes what it already holds. Blocks on the disk.
+     */
+    void open(BlobStore blobs) throws IOException {
+      channel = blobs.openPartial(id);
+      if (channel.size() > size) {
+        channel.truncate(0);
+      }
+      // 续传时先把已收到的部分计入摘要
+      ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.FILE_CHUNK_SIZE);
+      while (position < channel.size()) {
+        buffer.clear();
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        buffer.flip();
+        digest.update(buffer);
+        position += read;
+      }
+    }
   }
 
-  @Override
-  public void run() {
-    try {
-      in = new ObjectInputStream(socket.getInputStream());
-      out = new ObjectOutputStream(socket.getOutputStream());
-
-      Boolean hasReceivedClientName = false;
-
-      while (true) {
-        // 分辨客户端发送的object是什么类型
-        Object receivedObject = in.readObject();
-        if (receivedObject instanceof Message) {
-          Message message = (Message) receivedObject;
-          if (message.getFile() != null) {
-            handleMessageWithFile(message);
+  /**
+   * A download being queued. Only a few of its chunks wait in the outbound queue at a time,
+   * so a slow reader holds back the disk reads instead of filling the server's heap. Where
+   * possible the chunks are queued as {@link FileRegion}s, whose content never enters the
+   * heap, and each one written tops the queue up again.
+   */
+  private final class Download {
+    final String id;
+    final FileChannel channel;
+    // 队列释放区域时可能持有队列锁, 所以计数不能用 Download 的锁
+    final AtomicInteger queuedRegions = new AtomicInteger();
+    long position;
+
+    Download(String id, FileChannel channel, long position) {
+      this.id = id;
+      this.channel = channel;
+      this.position = position;
+    }
+
+    synchronized void fill() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      try {
+        long size = channel.size();
+        while (!outbound.isClosed() && position < size
+            && outbound.depth() < DOWNLOAD_QUEUED_CHUNKS) {
+          int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, size - position);
+          Message reply = new Message(System.currentTimeMillis(), "Server", clientName,
+              position + "\t" + size, Command.FILE_CHUNK);
+          reply.setId(id);
+          if (canSendFileRegions()) {
+            queuedRegions.incrementAndGet();
+            enqueueRegion(new FileRegion(reply, channel, position, length, this::onReleased));
           } else {
-            handleClientMessage(message);
+            byte[] chunk = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+              if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File " + id + " ended early");
+              }
+            }
+            reply.setFile(chunk);
+            sendMessageToClient(reply);
           }
-        } else if (receivedObject instanceof Group) {
-          Group group = (Group) receivedObject;
-          handleClientGroup(group);
+          position += length;
+        }
+        if (queuedRegions.get() > 0) {
+          return; // 排队的块写出后会再次调用 fill
         }
-        if (clientName != null && !hasReceivedClientName) {
-          // 连接成功后，发送最近的聊天记录给客户端
-          initializeClient();
-          hasReceivedClientName = true;
+        if (outbound.isClosed() || position >= size) {
+          channel.close();
+          return;
+        }
+        // 队列被其他帧占满, 稍后再试
+        server.getScheduler().schedule(this::fill, DELIVERY_BACKOFF_MILLIS,
+            TimeUnit.MILLISECONDS);
+      } catch (IOException e) {
+        System.err.println("Error sending file " + id + ": " + e.getMessage());
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // 已经在报告读取错误
         }
       }
-    } catch (SocketException e) {
-      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
-    } catch (EOFException e) {
-      System.out.println("Client disconnected: " + socket.getInetAddress().getHostAddress());
-    } catch (IOException e) {
-      System.out.println("IO Exception");
-      e.printStackTrace();
-    } catch (ClassNotFoundException e) {
-      System.out.println("Class not found");
-    } finally {
+    }
+
+    /**
+     * Called by the writer, or the queue dropping it, once a region is done with.
+     */
+    void onReleased() {
+      queuedRegions.decrementAndGet();
+      server.getScheduler().execute(this::fill);
+    }
+  }
+
+  protected ClientHandler(ChatServer server) {
+    this.server = server;
+    ServerConfig config = server.getConfig();
+    this.outbound = new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(),
+        config.getSpillDirectory(), server.getMetrics(), server.getFileExecutor(),
+        this::onFrameQueued);
+    this.wireFormat = config.getWireFormat();
+  }
+
+  /**
+   * Decodes one frame payload, remembering its wire format, and dispatches it.
+   */
+  public void handleFrame(byte[] payload, int offset, int length)
+      throws IOException, ClassNotFoundException {
+    lastReadNanos = System.nanoTime();
+    wireFormat = WireFormat.detect(payload[offset]);
+    handleObject(FrameCodec.decode(payload, offset, length));
+  }
+
+  /**
+   * A step of handling a frame that blocks on the disk.
+   */
+  @FunctionalInterface
+  protected interface BlockingStep {
+    void run() throws IOException;
+  }
+
+  /**
+   * Runs {@code io}, which blocks on the disk, and then {@code then} on the thread handling
+   * this connection's frames, with no other frame of the connection handled in between, so
+   * its messages keep their order. A connection with a reader thread of its own runs both in
+   * place.
+   */
+  protected void runBlocking(BlockingStep io, BlockingStep then) throws IOException {
+    runBlocking(server.getFileExecutor(), io, then);
+  }
+
+  /**
+   * Like {@link #runBlocking(BlockingStep, BlockingStep)}, running {@code io} on the given
+   * executor where the connection has no thread of its own.
+   */
+  protected void runBlocking(Executor executor, BlockingStep io, BlockingStep then)
+      throws IOException {
+    io.run();
+    then.run();
+  }
+
+  /**
+   * Dispatches one decoded frame, whichever transport it arrived on.
+   */
+  public void handleObject(Object receivedObject) throws IOException {
+    // 分辨客户端发送的object是什么类型
+    if (receivedObject instanceof Message) {
+      Message message = (Message) receivedObject;
+      if (message.getFile() != null && message.getCommand() == Command.CHAT) {
+        handleMessageWithFile(message);
+      } else {
+        handleClientMessage(message);
+      }
+    } else if (receivedObject instanceof Group) {
+      Group group = (Group) receivedObject;
+      handleClientGroup(group);
+    }
+    if (clientName != null && !hasReceivedClientName) {
+      // 连接成功后，发送最近的聊天记录给客户端
+      initializeClient();
+      hasReceivedClientName = true;
+    }
+  }
+
+  /**
+   * Starts watching the connection for silence. A connection that sent nothing for
+   * {@code chatting.heartbeat.interval} is sent a HEARTBEAT, which a live client answers; one
+   * silent for {@code chatting.heartbeat.idleTimeout} is presumed dead and closed, which also
+   * ends the threads of a blocking connection whose peer vanished without closing it. Only
+   * connections of clients that listed {@link Command#HEARTBEAT_CAPABILITY} when logging in
+   * are watched.
+   */
+  public void watchIdle() {
+    ServerConfig config = server.getConfig();
+    if (config.getIdleTimeoutSeconds() > 0) {
+      scheduleIdleCheck(TimeUnit.SECONDS.toNanos(
+          Math.min(config.getHeartbeatIntervalSeconds(), config.getIdleTimeoutSeconds())));
+    }
+  }
+
+  private void scheduleIdleCheck(long delayNanos) {
+    idleCheck = server.getTimers().schedule(this::checkIdle, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  // 每个连接只有一个检查在时间轮上, 收到数据时不重新排, 到期时按最后收到数据的时间决定
+  private void checkIdle() {
+    if (outbound.isClosed()) {
+      return;
+    }
+    ServerConfig config = server.getConfig();
+    long interval = TimeUnit.SECONDS.toNanos(config.getHeartbeatIntervalSeconds());
+    long timeout = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+    long idle = System.nanoTime() - lastReadNanos;
+    if (idle >= timeout) {
+      server.getMetrics().getIdleSessionsReaped().increment();
+      closeConnection("idle timeout, nothing received for "
+          + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+      return;
+    }
+    if (idle >= interval) {
+      try {
+        sendMessageToClient(new Message(System.currentTimeMillis(), "Server", clientName,
+            null, Command.HEARTBEAT));
+        server.getMetrics().getHeartbeatsSent().increment();
+      } catch (IOException e) {
+        System.err.println("Error sending heartbeat: " + e.getMessage());
+      }
+      scheduleIdleCheck(Math.min(interval, timeout - idle));
+    } else {
+      scheduleIdleCheck(Math.min(interval, timeout) - idle);
+    }
+  }
+
+  protected void onDisconnect() {
+    TimerWheel.Timeout check = idleCheck;
+    if (check != null) {
+      check.cancel();
+    }
+    server.removeClient(this);
+    server.updateClientsCnt();
+    requeueUnacknowledged();
+    // 未完成的上传保留部分文件, 客户端重连后从断点继续; 太久没有继续的在启动时清理
+    for (Upload upload : uploads.values()) {
       try {
-        in.close();
-        out.close();
-        socket.close();
+        if (upload.channel != null) {
+          upload.channel.close();
+        }
       } catch (IOException e) {
         e.printStackTrace();
       }
-      server.removeClient(this);
-      server.updateClientsCnt();
     }
+    uploads.clear();
+  }
+
+  /**
+   * Puts private messages the client never confirmed back into its user's inbox, so that a
+   * connection dropping with messages in flight does not lose them.
+   */
+  private void requeueUnacknowledged() {
+    List<Message> pending;
+    synchronized (unacknowledged) {
+      pending = new ArrayList<>(unacknowledged.values());
+      unacknowledged.clear();
+    }
+    if (clientName == null || pending.isEmpty()) {
+      return;
+    }
+    try {
+      server.getInbox().restore(clientName, pending);
+    } catch (IOException e) {
+      System.err.println("Error requeueing messages of " + clientName + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Queues one already encoded frame for this client; never blocks on the network.
+   */
+  public void enqueueFrame(byte[] frame) {
+    if (outbound.offer(frame)) {
+      onFrameQueued();
+    } else {
+      server.getMetrics().getSlowConsumerDisconnects().increment();
+      closeConnection("outbound queue full");
+    }
+  }
+
+  /**
+   * Queues a frame whose content is sent straight from a file.
+   */
+  public void enqueueRegion(FileRegion region) {
+    if (outbound.offer(region)) {
+      onFrameQueued();
+    } else {
+      server.getMetrics().getSlowConsumerDisconnects().increment();
+      closeConnection("outbound queue full");
+    }
+  }
+
+  /**
+   * Whether file content can be sent from disk by {@link #enqueueRegion}; it needs the binary
+   * wire format and a socket with a channel.
+   */
+  protected abstract boolean canSendFileRegions();
+
+  /**
+   * Called after a frame was queued; transports that need a wake-up override it.
+   */
+  protected void onFrameQueued() {
+  }
+
+  /**
+   * Closes the connection from any thread. The read side notices and cleans up.
+   */
+  public abstract void closeConnection(String reason);
+
+  public boolean isPresenceSubscribed() {
+    return presenceSubscribed;
+  }
+
+  public void setPresenceSubscribed(boolean presenceSubscribed) {
+    this.presenceSubscribed = presenceSubscribed;
+  }
+
+  /**
+   * Queues an object shared by many recipients, in this session's wire format.
+   */
+  public void enqueue(BroadcastFrame broadcast) throws IOException {
+    enqueueFrame(broadcast.frameFor(wireFormat));
+  }
+
+  public WireFormat getWireFormat() {
+    return wireFormat;
+  }
+
+  public int getOutboundDepth() {
+    return outbound.depth();
   }
 
   public void sendMessageToClient(Message message) throws IOException {
-    out.writeObject(message);
+    enqueueFrame(FrameCodec.encode(message, wireFormat));
   }
 
   public void sendGroupToClient(Group group) throws IOException {
-    out.writeObject(group);
+    enqueueFrame(FrameCodec.encode(group, wireFormat));
+  }
+
+  public void sendHistoryPageToClient(HistoryPage page) throws IOException {
+    enqueueFrame(FrameCodec.encode(page, wireFormat));
+  }
+
+  /**
+   * Sends a private message and remembers it until the client acknowledges it.
+   */
+  public void sendPrivateMessageToClient(Message message) throws IOException {
+    Message spilled = null;
+    if (message.getId() != null) {
+      synchronized (unacknowledged) {
+        unacknowledged.put(message.getId(), message);
+        // 不确认的旧客户端不能让这里无限增长, 最早的一条放回收件箱, 下次登录时再投递
+        if (unacknowledged.size() > server.getConfig().getOutboundCapacity()) {
+          String eldest = unacknowledged.keySet().iterator().next();
+          spilled = unacknowledged.remove(eldest);
+        }
+      }
+    }
+    if (spilled != null && clientName != null) {
+      server.getInbox().restore(clientName, List.of(spilled));
+    }
+    sendMessageToClient(message);
+  }
+
+  /**
+   * Looks up the handler of a control command, null if the server does not handle it.
+   * Routing a message takes this lookup and one comparison, without scanning or allocating.
+   */
+  static CommandHandler handlerOf(Command command) {
+    return COMMAND_HANDLERS.get(command);
   }
 
   public void handleClientMessage(Message message) throws IOException {
-    if (message.getSendTo().equals("Server")) {
-      if (message.getData().startsWith("register:")) {
-        handleUserRegistration(message);
-        return;
+    Command command = message.getCommand();
+    if (command != Command.CHAT) {
+      CommandHandler handler = handlerOf(command);
+      if (handler != null) {
+        handler.handle(this, message);
       }
-      if (message.getData().startsWith("login:")) {
-        handleUserLogin(message);
-        return;
+      return;
+    }
+    String id = message.getId();
+    if (id != null && !server.getDedupWindow(message.getSentBy()).add(id)) {
+      // 重传的消息只重新确认, 不再处理; 还没被接受的由原来的确认覆盖
+      Message ack = server.getDedupWindow(message.getSentBy()).ackOf(id);
+      if (ack != null) {
+        sendMessageToClient(ack);
       }
-      // 如果客户端发送了“clientName:”， 则服务器端将客户端的名字设置为发送的名字
-      if (message.getData().startsWith("clientName:")) {
-        clientName = message.getData().substring("clientName:".length());
-        server.updateClientsCnt();
-        return;
+      server.getMetrics().getDuplicatesDropped().increment();
+      return;
+    }
+    // 按名字在群组目录中查找群组
+    Group group = server.getGroups().get(message.getSendTo());
+    // 如果群组名字存在，则将消息发送给群组中的所有客户端
+    if (group != null) {
+      // 由服务器重新打时间戳并追加到消息日志, 提交落盘后才加入server这边的group并转发
+      // 打时间戳和写日志在同一把锁内, 保证日志中同一群组的时间戳递增
+      // 用 ReentrantLock 而不是群组的监视器: 同步写盘时不钉住虚拟线程, 读群组的线程也不用等写盘
+      CompletableFuture<Long> committed;
+      ReentrantLock sequenceLock = server.getGroups().sequenceLock(group);
+      sequenceLock.lock();
+      try {
+        server.getGroups().stamp(group, message);
+        committed = server.getMessageLog().append(message);
+      } finally {
+        sequenceLock.unlock();
       }
+      broadcastWhenCommitted(committed, group.getGroupMembers(), message.getSentBy(), message);
+      committed.whenComplete((lsn, error) -> {
+        if (error == null) {
+          acknowledge(message);
+        } else if (id != null) {
+          server.getDedupWindow(message.getSentBy()).forget(id);
+        }
+      });
+      return;
+    }
+    // 如果群组名字不存在，则将消息发送给指定的客户端
+    if (message.getSendTo().equals(message.getSentBy())) {
+      acknowledge(message);
+      return;
+    }
+    String recipient = message.getSendTo();
+    if (server.getSessions().sessionsOf(recipient).isEmpty() && server.isRegistered(recipient)) {
+      // 对方不在线, 存入离线收件箱, 登录时再投递; 追加文件不在事件循环线程上做
+      boolean[] queued = new boolean[1];
+      runBlocking(() -> queued[0] = server.getInbox().offer(recipient, message,
+          () -> server.getSessions().sessionsOf(recipient).isEmpty()), () -> {
+            if (queued[0]) {
+              acknowledgeWhenForced(recipient, message);
+            } else {
+              // 刚刚登录了
+              deliverPrivately(recipient, message);
+            }
+          });
+      return;
+    }
+    deliverPrivately(recipient, message);
+  }
 
-      // 如果客户端发送了“AllClientNames”， 则服务器端返回所有客户端的名字
-      if (message.getData().equals("AllClientNames")) {
-        StringBuilder allClientNames = new StringBuilder();
-        for (ClientHandler clientHandler : server.getClients()) {
-          allClientNames.append(clientHandler.clientName).append(" ");
+  private void deliverPrivately(String recipient, Message message) throws IOException {
+    for (ClientHandler clientHandler : server.getSessions().sessionsOf(recipient)) {
+      clientHandler.sendPrivateMessageToClient(message);
+    }
+    acknowledge(message);
+  }
+
+  /**
+   * Acknowledges a message queued in an offline inbox once the inbox is on disk, since the
+   * inbox holds its only copy.
+   */
+  private void acknowledgeWhenForced(String recipient, Message message) throws IOException {
+    server.getInbox().force(recipient).whenComplete((ignored, error) -> {
+      if (error == null) {
+        acknowledge(message);
+      } else {
+        System.err.println("Error forcing inbox of " + recipient + ": " + error.getMessage());
+        if (message.getId() != null) {
+          server.getDedupWindow(message.getSentBy()).forget(message.getId());
         }
-        Message message1 = new Message(System.currentTimeMillis(), 
-            "Server", message.getSentBy(), "allClientsNames:" + allClientNames.toString());
-        sendMessageToClient(message1);
-        return;
       }
+    });
+  }
+
+  /**
+   * Tells the sender's sessions that a message was accepted, with the sequence number and
+   * timestamp the server assigned to it.
+   */
+  private void acknowledge(Message message) {
+    String id = message.getId();
+    if (id == null) {
+      return;
+    }
+    Message ack = new Message(message.getTimestamp(), "Server", message.getSendTo(), id,
+        Command.ACK);
+    ack.setSeq(message.getSeq());
+    server.getDedupWindow(message.getSentBy()).acknowledge(id, ack);
+    // 发送者可能已经重连, 确认发给它当前的会话
+    for (ClientHandler clientHandler : server.getSessions().sessionsOf(message.getSentBy())) {
+      try {
+        clientHandler.sendMessageToClient(ack);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
 
+  /**
+   * The client confirms having received the private messages whose ids are in {@code data},
+   * one per line.
+   */
+  public void handleAck(Message message) {
+    if (message.getData() == null) {
       return;
     }
-    // 使用stream获取server中的群组，其名字与message中的sendTo相同
-    Optional<Group> group = server.getGroups().stream()
-        .filter(g -> g.getGroupName().equals(message.getSendTo())).findFirst();
-    // 如果群组名字存在，则将消息发送给群组中的所有客户端
-    if (group.isPresent()) {
-      for (ClientHandler clientHandler : server.getClients()) {
-        if (clientHandler.clientName.equals(message.getSentBy())) {
-          continue;
-        }
-        if (group.get().getGroupMembers().contains(clientHandler.clientName)) {
-          clientHandler.sendMessageToClient(message);
-        }
+    synchronized (unacknowledged) {
+      for (String id : message.getData().split("\n")) {
+        unacknowledged.remove(id);
       }
-      // Message也要保留在server这边的group中
-      group.get().addMessage(message);
-      server.saveGroupInfo(); // 保存群组信息到文件
-      System.out.println(group);
+    }
+  }
+
+  /**
+   * Moves this session's entry in the session registry to the given username.
+   */
+  private void bindClientName(String name) {
+    if (name.equals(clientName)) {
       return;
     }
-    // 如果群组名字不存在，则将消息发送给指定的客户端
-    for (ClientHandler clientHandler : server.getClients()) {
-      if (clientHandler.clientName.equals(message.getSentBy())) {
+    server.getSessions().unregister(clientName, this);
+    clientName = name;
+    server.getSessions().register(name, this);
+    if (answersHeartbeats && idleCheck == null) {
+      watchIdle();
+    }
+  }
+
+  /**
+   * Reads the capabilities a client lists in the id of its login or registration; older
+   * clients list none.
+   */
+  private void noteCapabilities(Message message) {
+    String capabilities = message.getId();
+    if (capabilities != null
+        && Arrays.asList(capabilities.split(" ")).contains(Command.HEARTBEAT_CAPABILITY)) {
+      answersHeartbeats = true;
+    }
+  }
+
+  /**
+   * Sends the same object to every online session of the given members except {@code skip}.
+   * The frame is encoded once per wire format and the same bytes are queued for every recipient.
+   * Messages for members who are offline go to their inbox instead, appended by the inbox
+   * writer so that the log writer completing the commit does not wait for the files.
+   */
+  private void broadcastToMembers(List<String> members, String skip, Object payload)
+      throws IOException {
+    BroadcastFrame broadcast = new BroadcastFrame(payload);
+    for (String member : members) {
+      if (member.equals(skip)) {
+        continue;
+      }
+      // 群消息已经写入日志, 收件箱里的副本不必单独落盘
+      // 收件箱还有没写完的消息时, 在线的成员也要排在它们后面
+      if (payload instanceof Message && server.isRegistered(member)
+          && server.getInbox().offerLater(member, (Message) payload,
+              () -> server.getSessions().sessionsOf(member).isEmpty(),
+              messages -> deliverQueued(member, messages))) {
         continue;
       }
-      if (clientHandler.clientName.equals(message.getSendTo())) {
-        clientHandler.sendMessageToClient(message);
+      for (ClientHandler clientHandler : server.getSessions().sessionsOf(member)) {
+        clientHandler.enqueue(broadcast);
       }
     }
   }
 
+  /**
+   * Sends a member who logged in the group messages that were waiting to be appended to its
+   * inbox.
+   */
+  private void deliverQueued(String member, List<Message> messages) {
+    for (ClientHandler clientHandler : server.getSessions().sessionsOf(member)) {
+      try {
+        for (Message message : messages) {
+          clientHandler.sendMessageToClient(message);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Broadcasts a logged record once the message log has committed it, so that no client sees
+   * a record that could be lost in a crash. The handler thread does not wait for the commit;
+   * the fan-out runs on whichever thread completes it.
+   */
+  private void broadcastWhenCommitted(CompletableFuture<Long> committed, List<String> members,
+                                      String skip, Object payload) {
+    committed.whenComplete((lsn, error) -> {
+      if (error != null) {
+        System.err.println("Dropping broadcast of uncommitted record: " + error.getMessage());
+        return;
+      }
+      try {
+        broadcastToMembers(members, skip, payload);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
   public void handleUserRegistration(Message message) throws IOException {
-    String[] data = message.getData().split(":");
-    String username = data[1];
-    String password = data[2];
-
-    server.registerUser(username, password);
-    // You may also send a confirmation message to the client if needed
-    Message loginResult = new Message(System.currentTimeMillis(), 
-        "Server", message.getSentBy(), "LoginResult:Success");
+    String username = message.getSentBy();
+    String password = message.getData();
+    noteCapabilities(message);
+
+    if (username == null || password == null) {
+      sendRegistrationResult(username, false);
+      return;
+    }
+    // 已有的用户名不能再注册; 哈希和写盘在账户的写线程上完成
+    server.registerUser(username, password).whenComplete((registered, error) -> {
+      if (error != null) {
+        System.err.println("Error registering " + username + ": " + error.getMessage());
+      }
+      try {
+        sendRegistrationResult(username, error == null && registered);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  private void sendRegistrationResult(String username, boolean success) throws IOException {
+    Message loginResult = new Message(System.currentTimeMillis(),
+        "Server", username, success ? "Success" : "Failed", Command.LOGIN_RESULT);
     sendMessageToClient(loginResult);
   }
 
   public void handleUserLogin(Message message) throws IOException {
-    String[] data = message.getData().split(":");
-    String username = data[1];
-    String password = data[2];
+    login(message, false);
+  }
 
-    boolean success = server.validateUser(username, password);
+  /**
+   * Logs a reconnecting client in without pushing its groups; it follows up with
+   * {@link Command#SYNC} and only receives what it missed.
+   */
+  public void handleUserResume(Message message) throws IOException {
+    login(message, true);
+  }
+
+  private void login(Message message, boolean resume) throws IOException {
+    String username = message.getSentBy();
+    String password = message.getData();
+    noteCapabilities(message);
+
+    // 校验口令要算哈希, 不在事件循环上做
+    boolean[] valid = new boolean[1];
+    runBlocking(server.getCredentialExecutor(),
+        () -> valid[0] = server.validateUser(username, password),
+        () -> finishLogin(username, valid[0], resume));
+  }
+
+  private void finishLogin(String username, boolean success, boolean resume)
+      throws IOException {
     if (success) {
-      clientName = username;
+      bindClientName(username);
+      if (resume) {
+        hasReceivedClientName = true;
+      }
     }
     // Send a login result message to the client
-    Message loginResult = new Message(System.currentTimeMillis(), 
-        "Server", message.getSentBy(), "LoginResult:" + (success ? "Success" : "Failed"));
+    Message loginResult = new Message(System.currentTimeMillis(),
+        "Server", username, success ? "Success" : "Failed", Command.LOGIN_RESULT);
     sendMessageToClient(loginResult);
+    if (success && resume) {
+      // 重连时群消息由 SYNC 补齐, 收件箱里只需投递私聊消息
+      deliverInbox(new HashMap<>(), true);
+    }
+  }
+
+  // 客户端登录完成后发送自己的名字, 服务器端将该连接绑定到这个名字
+  public void handleClientNameCommand(Message message) throws IOException {
+    bindClientName(message.getData());
+    server.updateClientsCnt();
+  }
+
+  // 订阅在线用户, 之后只收到上线和下线的变化; 在调度线程上处理, 和合并后的广播保持先后顺序
+  public void handlePresenceSubscribe(Message message) {
+    String known = message.getData();
+    server.getScheduler().execute(() -> server.subscribePresence(this, known));
   }
 
+  // 返回所有在线客户端的名字, 客户端登录前用来检查用户名; 登录后改用 PRESENCE_SUBSCRIBE
+  public void handleAllClientNames(Message message) throws IOException {
+    StringBuilder allClientNames = new StringBuilder();
+    for (String name : server.getSessions().onlineUsers()) {
+      allClientNames.append(name).append(" ");
+    }
+    sendMessageToClient(new Message(System.currentTimeMillis(), "Server", message.getSentBy(),
+        allClientNames.toString(), Command.ALL_CLIENT_NAMES_RESULT));
+  }
+
+  /**
+   * Replies with the page of a group's history just before the cursor in {@code data}, read
+   * from the history store. Only members may read a group's history.
+   */
+  public void handleHistoryRequest(Message message) throws IOException {
+    String groupName = message.getSendTo();
+    Group group = server.getGroups().get(groupName);
+    if (group == null || !group.getGroupMembers().contains(clientName)) {
+      sendHistoryPageToClient(new HistoryPage(groupName, new ArrayList<>(), false));
+      return;
+    }
+    long before = Long.MAX_VALUE;
+    String cursor = message.getData();
+    if (cursor != null && !cursor.isEmpty()) {
+      try {
+        before = Long.parseLong(cursor);
+      } catch (NumberFormatException e) {
+        // 总要回复, 否则客户端一直等着这一页
+        System.err.println("Invalid history cursor from " + clientName + ": " + cursor);
+        sendHistoryPageToClient(new HistoryPage(groupName, new ArrayList<>(), false));
+        return;
+      }
+    }
+    int pageSize = server.getConfig().getHistoryPageSize();
+    // 多取一条用来判断是否还有更早的消息
+    List<Message> messages;
+    try {
+      messages = server.getHistory().before(groupName, before, pageSize + 1);
+    } catch (IOException e) {
+      // 空页但 hasMore 为真, 客户端之后还可以再请求
+      System.err.println("Error reading history of " + groupName + ": " + e.getMessage());
+      sendHistoryPageToClient(new HistoryPage(groupName, new ArrayList<>(), true));
+      return;
+    }
+    boolean hasMore = messages.size() > pageSize;
+    if (hasMore) {
+      messages = new ArrayList<>(messages.subList(1, messages.size()));
+    }
+    sendHistoryPageToClient(new HistoryPage(groupName, messages, hasMore));
+  }
+
+  /**
+   * Catches a reconnecting client up. For every group the client already has, it sent the
+   * sequence number and timestamp of the last message it received, and only newer messages
+   * are resent; groups it does not know yet are sent as on login.
+   */
+  public void handleSync(Message message) throws IOException {
+    if (clientName == null || message.getData() == null) {
+      return;
+    }
+    Map<String, long[]> known = new HashMap<>();
+    for (String line : message.getData().split("\n")) {
+      String[] fields = line.split("\t", 3);
+      if (fields.length < 3) {
+        continue;
+      }
+      try {
+        known.put(fields[2], new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid sync entry from " + clientName + ": " + line);
+      }
+    }
+    for (Group group : server.getGroups().groupsOf(clientName)) {
+      long[] last = known.get(group.getGroupName());
+      if (last == null) {
+        enqueue(server.getGroups().loginFrameOf(group));
+      } else {
+        sendMissedMessages(group, last[0], last[1]);
+      }
+    }
+  }
+
+  private void sendMissedMessages(Group group, long lastSeq, long lastTimestamp)
+      throws IOException {
+    int maxMessages = server.getConfig().getSyncMaxMessages();
+    List<Message> missed = null;
+    synchronized (group) {
+      List<Message> tail = group.getGroupMessages();
+      Long firstSeq = tail.isEmpty() ? null : tail.get(0).getSeq();
+      // 内存中的最近消息覆盖了错过的范围时不用读历史存储
+      if (tail.isEmpty() || (firstSeq != null && firstSeq <= lastSeq + 1)) {
+        missed = new ArrayList<>();
+        for (Message message : tail) {
+          if (message.getSeq() != null && message.getSeq() > lastSeq) {
+            missed.add(message);
+          }
+        }
+      }
+    }
+    if (missed == null) {
+      missed = server.getHistory().after(group.getGroupName(), lastTimestamp, maxMessages + 1);
+    }
+    if (missed.size() > maxMessages) {
+      // 错过的太多, 退回到和登录时一样重新发送群组
+      enqueue(server.getGroups().loginFrameOf(group));
+      return;
+    }
+    for (Message message : missed) {
+      sendMessageToClient(message);
+    }
+  }
+
+  /**
+   * Creates a group sent by its creator. A group is only ever created, never replaced: its
+   * name keys its history and who may download its files, so a group named like an existing
+   * one is refused, as is one sent by anyone but a logged-in creator.
+   */
   public void handleClientGroup(Group group) throws IOException {
-    server.getGroups().add(group);
-    server.saveGroupInfo(); // 保存群组信息到文件
+    String name = group.getGroupName();
+    if (clientName == null || !clientName.equals(group.getCreator()) || name == null
+        || group.getGroupMembers() == null) {
+      rejectGroup(name, "only a logged-in user can create a group, as its creator");
+      return;
+    }
+    if (!server.getGroups().reserve(name)) {
+      rejectGroup(name, "a group with this name already exists");
+      return;
+    }
+    // 日志提交后才加入群组目录, 写盘失败的群组不会出现
+    CompletableFuture<Long> committed;
+    try {
+      committed = server.getMessageLog().append(group);
+    } catch (IOException e) {
+      server.getGroups().release(name);
+      throw e;
+    }
+    // 提交时已加入目录, 之后才释放名字
+    committed.whenComplete((lsn, error) -> server.getGroups().release(name));
     // 将收到的群组发送给群组包含的所有客户端
-    for (ClientHandler clientHandler : server.getClients()) {
-      if (clientHandler.clientName.equals(group.getCreator())) {
-        continue;
+    broadcastWhenCommitted(committed, group.getGroupMembers(), group.getCreator(), group);
+  }
+
+  private void rejectGroup(String groupName, String reason) throws IOException {
+    System.err.println("Rejected group " + groupName + " from " + clientName + ": " + reason);
+    sendMessageToClient(new Message(System.currentTimeMillis(), "Server", groupName, reason,
+        Command.GROUP_REJECTED));
+  }
+
+  private void sendFileOffset(String id, long offset) throws IOException {
+    Message reply = new Message(System.currentTimeMillis(), "Server", clientName,
+        String.valueOf(offset), Command.FILE_OFFSET);
+    reply.setId(id);
+    sendMessageToClient(reply);
+  }
+
+  /**
+   * Starts or resumes an upload, replying with the number of bytes already received. The
+   * client announces the hash of the content: if the blob store has it already, nothing is
+   * uploaded and the file message is sent right away.
+   */
+  public void handleFileUpload(Message message) throws IOException {
+    String id = message.getId();
+    BlobStore blobs = server.getBlobs();
+    String[] fields = message.getData() == null ? new String[0] : message.getData().split("\t");
+    long size = parseOffset(message.getData());
+    String hash = fields.length > 1 ? fields[1] : null;
+    if (clientName == null || !BlobStore.isValidTransferId(id) || !BlobStore.isValidHash(hash)
+        || message.getFileName() == null || message.getSendTo() == null || size < 0
+        || size > blobs.getMaxFileBytes()) {
+      sendFileOffset(id, -1);
+      return;
+    }
+    File blob = blobs.get(hash);
+    if (blob != null && blob.length() == size && !uploads.containsKey(id) && mayDownload(hash)) {
+      // 同样的内容已经存过而且用户本来就能下载, 不用再上传; 重复的请求由消息 id 去重
+      // 否则只凭哈希就能拿到别人的文件, 必须真正上传一遍
+      if (server.getDedupWindow(clientName).ackOf(id) == null) {
+        server.getMetrics().recordDuplicateBlob(size);
       }
-      if (group.getGroupMembers().contains(clientHandler.clientName)) {
-        clientHandler.sendGroupToClient(group);
+      Message fileMessage = fileMessageOf(id, message, hash);
+      runBlocking(() -> addReaders(fileMessage), () -> {
+        sendFileOffset(id, size);
+        postFileMessage(fileMessage);
+      });
+      return;
+    }
+    Upload existing = uploads.get(id);
+    Upload upload = existing != null ? existing : new Upload(id, message, size, hash);
+    uploads.put(id, upload);
+    runBlocking(() -> {
+      if (upload.channel == null) {
+        upload.open(blobs);
+      }
+      if (upload.position == upload.size) {
+        completeUpload(upload);
       }
+    }, () -> afterUpload(upload));
+  }
+
+  /**
+   * Writes one chunk of an upload at its offset and replies with the new offset, which is
+   * the client's credit for sending more.
+   */
+  public void handleFileChunk(Message message) throws IOException {
+    String id = message.getId();
+    Upload upload = id == null ? null : uploads.get(id);
+    byte[] chunk = message.getFile();
+    if (upload == null || upload.channel == null || chunk == null) {
+      return;
+    }
+    long offset = parseOffset(message.getData());
+    if (offset != upload.position || upload.position + chunk.length > upload.size) {
+      sendFileOffset(id, upload.position);
+      return;
     }
+    runBlocking(() -> {
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      while (buffer.hasRemaining()) {
+        upload.position += upload.channel.write(buffer, upload.position);
+      }
+      upload.digest.update(chunk);
+      if (upload.position == upload.size) {
+        completeUpload(upload);
+      }
+    }, () -> afterUpload(upload));
   }
 
-  public void handleMessageWithFile(Message message) throws IOException {
-    // TODO 检查文件类型、大小
+  /**
+   * Forces a fully received upload to disk, checks it against its hash and stores it as a
+   * blob. Blocks on the disk.
+   */
+  private void completeUpload(Upload upload) throws IOException {
+    uploads.remove(upload.id);
+    upload.channel.force(true);
+    upload.channel.close();
+    if (!BlobStore.hex(upload.digest.digest()).equals(upload.hash)) {
+      server.getBlobs().deletePartial(upload.id);
+      System.err.println("Upload " + upload.id + " from " + clientName
+          + " does not match its hash");
+      return;
+    }
+    server.getBlobs().commit(upload.id, upload.hash);
+    Message fileMessage = fileMessageOf(upload.id, upload.offer, upload.hash);
+    addReaders(fileMessage);
+    upload.fileMessage = fileMessage;
+  }
+
+  /**
+   * Replies to a chunk or to the start of an upload once it is written, and sends the file
+   * message once the upload is complete.
+   */
+  private void afterUpload(Upload upload) throws IOException {
+    if (upload.position < upload.size) {
+      sendFileOffset(upload.id, upload.position);
+    } else if (upload.fileMessage == null) {
+      sendFileOffset(upload.id, -1);
+    } else {
+      sendFileOffset(upload.id, upload.size);
+      postFileMessage(upload.fileMessage);
+    }
+  }
+
+  /**
+   * Builds the message referring to an uploaded blob.
+   */
+  private Message fileMessageOf(String id, Message offer, String hash) {
+    Message fileMessage = new Message(System.currentTimeMillis(), clientName,
+        offer.getSendTo(), hash);
+    fileMessage.setFileName(offer.getFileName());
+    fileMessage.setId(id);
+    return fileMessage;
+  }
+
+  /**
+   * Records that the sender and the receivers of a file message, all members of a group, may
+   * download its blob. Blocks on the disk.
+   */
+  private void addReaders(Message fileMessage) throws IOException {
+    Group group = server.getGroups().get(fileMessage.getSendTo());
+    server.getBlobs().addReader(fileMessage.getData(), USER_READER + clientName);
+    server.getBlobs().addReader(fileMessage.getData(), group != null
+        ? GROUP_READER + group.getGroupName() : USER_READER + fileMessage.getSendTo());
+  }
+
+  /**
+   * Logs, broadcasts and acknowledges a message referring to a blob like any chat message,
+   * right away so that it keeps its place among the sender's messages. The thumbnail of an
+   * image follows once made, so that members see a preview without downloading the original.
+   */
+  private void postFileMessage(Message fileMessage) throws IOException {
+    handleClientMessage(fileMessage);
+    if (!ThumbnailStore.isImage(fileMessage.getFileName())) {
+      return;
+    }
+    Group group = server.getGroups().get(fileMessage.getSendTo());
+    Set<String> recipients = new HashSet<>();
+    recipients.add(clientName);
+    if (group != null) {
+      recipients.addAll(group.getGroupMembers());
+    } else {
+      recipients.add(fileMessage.getSendTo());
+    }
+    sendThumbnail(fileMessage.getData(), fileMessage.getSendTo(), recipients);
+  }
+
+  /**
+   * Sends the thumbnail of an image blob to the online sessions of the given users once it is
+   * made. Nothing is sent if the blob is not a readable image; clients show the file name.
+   */
+  private void sendThumbnail(String hash, String chat, Collection<String> recipients) {
+    server.getThumbnails().thumbnailOf(hash).whenComplete((thumbnail, error) -> {
+      if (error != null) {
+        System.err.println("Error making thumbnail of " + hash + ": " + error.getMessage());
+        return;
+      }
+      if (thumbnail == null) {
+        return;
+      }
+      Message update = new Message(System.currentTimeMillis(), "Server", chat, hash,
+          Command.THUMBNAIL);
+      update.setFile(thumbnail);
+      BroadcastFrame frame = new BroadcastFrame(update);
+      for (String recipient : recipients) {
+        for (ClientHandler clientHandler : server.getSessions().sessionsOf(recipient)) {
+          try {
+            clientHandler.enqueue(frame);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends the thumbnail of the image whose hash is in {@code data}, for image messages that
+   * arrived without one, e.g. from history or while the client was offline.
+   */
+  public void handleThumbnailRequest(Message message) throws IOException {
+    String hash = message.getData();
+    if (clientName == null || server.getBlobs().get(hash) == null || !mayDownload(hash)) {
+      return;
+    }
+    String username = clientName;
+    server.getThumbnails().thumbnailOf(hash).whenComplete((thumbnail, error) -> {
+      if (thumbnail == null || !username.equals(clientName)) {
+        return;
+      }
+      Message reply = new Message(System.currentTimeMillis(), "Server", message.getSendTo(),
+          hash, Command.THUMBNAIL);
+      reply.setFile(thumbnail);
+      try {
+        sendMessageToClient(reply);
+      } catch (IOException e) {
+        System.err.println("Error sending thumbnail to " + username + ": " + e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Streams a blob to the client from the offset in {@code data}, so that an interrupted
+   * download can continue where it stopped. The blob is named by its hash in {@code id}, and
+   * is only sent to users who sent or received a message referring to it.
+   */
+  public void handleFileDownload(Message message) throws IOException {
+    String hash = message.getId();
+    File file = server.getBlobs().get(hash);
+    long offset = parseOffset(message.getData());
+    if (clientName == null || file == null || offset < 0 || offset > file.length()
+        || !mayDownload(hash)) {
+      sendFileOffset(hash, -1);
+      return;
+    }
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    Download download = new Download(hash, channel, offset);
+    server.getScheduler().execute(download::fill);
+  }
+
+  /**
+   * Tells whether this user sent or received a message referring to a blob, directly or as
+   * a current member of the group it was sent to.
+   */
+  private boolean mayDownload(String hash) throws IOException {
+    for (String reader : server.getBlobs().readersOf(hash)) {
+      if (reader.equals(USER_READER + clientName)) {
+        return true;
+      }
+      if (reader.startsWith(GROUP_READER)) {
+        String groupName = reader.substring(GROUP_READER.length());
+        for (Group group : server.getGroups().groupsOf(clientName)) {
+          if (group.getGroupName().equals(groupName)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
 
-    handleClientMessage(message);
+  /**
+   * Parses the leading number of a file transfer argument, or -1 if there is none.
+   */
+  private static long parseOffset(String data) {
+    if (data == null) {
+      return -1;
+    }
+    int tab = data.indexOf('\t');
+    try {
+      return Long.parseLong(tab < 0 ? data : data.substring(0, tab));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Handles a file embedded in a message by an older client: the content goes to the blob
+   * store and the message only keeps its hash, like a file sent in chunks.
+   */
+  public void handleMessageWithFile(Message message) throws IOException {
+    runBlocking(() -> {
+      message.setData(server.getBlobs().put(message.getFile()));
+      message.setFile(null);
+      addReaders(message);
+    }, () -> postFileMessage(message));
   }
 
   public void initializeClient() {
-    for (Group group : server.getGroups()) {
-      if (group.getGroupMembers().contains(clientName)) {
-        // 发送群组给客户端
-        try {
-          sendGroupToClient(group);
-        } catch (IOException e) {
-          e.printStackTrace();
+    Map<String, Long> sentFrom = new HashMap<>();
+    for (Group group : server.getGroups().groupsOf(clientName)) {
+      // 只发送群组信息和最近几条消息, 更早的由客户端按页请求; 同一群组的编码结果在成员间共享
+      BroadcastFrame frame = server.getGroups().loginFrameOf(group);
+      Group copy = (Group) frame.getPayload();
+      List<Message> messages = copy.getGroupMessages();
+      sentFrom.put(copy.getGroupName(), messages.isEmpty() ? null : messages.get(0).getSeq());
+      try {
+        enqueue(frame);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    deliverInbox(sentFrom, false);
+  }
+
+  /**
+   * Hands the messages queued while this user was offline to the session. Group messages are
+   * only delivered for groups in {@code sentFrom} and only if older than the first message
+   * already sent along with the group; with {@code privateOnly}, none are. Messages leave the
+   * inbox as they are handed over.
+   */
+  private void deliverInbox(Map<String, Long> sentFrom, boolean privateOnly) {
+    String username = clientName;
+    List<OfflineInbox.Entry> queued;
+    try {
+      queued = server.getInbox().peek(username);
+    } catch (IOException e) {
+      System.err.println("Error reading inbox of " + username + ": " + e.getMessage());
+      return;
+    }
+    if (queued.isEmpty()) {
+      return;
+    }
+    List<OfflineInbox.Entry> pending = new ArrayList<>();
+    for (OfflineInbox.Entry entry : queued) {
+      Message message = entry.getMessage();
+      if (message.getSeq() == null) {
+        pending.add(entry);
+      } else if (!privateOnly && sentFrom.containsKey(message.getSendTo())) {
+        Long firstSent = sentFrom.get(message.getSendTo());
+        if (firstSent == null || message.getSeq() < firstSent) {
+          pending.add(entry);
         }
       }
     }
+    // 跳过的消息随最后一批一起从收件箱去掉
+    long end = queued.get(queued.size() - 1).getPosition() + 1;
+    server.getScheduler().execute(() -> deliverInboxBatch(username, pending, 0, end));
   }
 
-  public void sendClientCount(int count) throws IOException {
-    Message message = new Message(System.currentTimeMillis(),
-        "Server", "All", "ClientCount:" + count);
-    sendMessageToClient(message);
+  /**
+   * Queues one batch of inbox messages and schedules the next, backing off while the client
+   * is slow to read so that a large inbox does not overflow its outbound queue. The inbox is
+   * trimmed up to {@code end} after the last batch, or up to the last message handed over
+   * when the session goes away first.
+   */
+  private void deliverInboxBatch(String username, List<OfflineInbox.Entry> pending, int from,
+                                 long end) {
+    ServerConfig config = server.getConfig();
+    if (outbound.isClosed() || !username.equals(clientName)) {
+      if (from > 0) {
+        trimInbox(username, pending.get(from - 1).getPosition() + 1);
+      }
+      return;
+    }
+    if (outbound.depth() > config.getOutboundCapacity() / 2) {
+      server.getScheduler().schedule(() -> deliverInboxBatch(username, pending, from, end),
+          DELIVERY_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+      return;
+    }
+    int to = Math.min(from + config.getInboxBatchSize(), pending.size());
+    try {
+      for (int i = from; i < to; i++) {
+        Message message = pending.get(i).getMessage();
+        if (message.getSeq() == null) {
+          sendPrivateMessageToClient(message);
+        } else {
+          sendMessageToClient(message);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    server.getMetrics().getInboxDelivered().add(to - from);
+    if (to < pending.size()) {
+      server.getScheduler().execute(() -> deliverInboxBatch(username, pending, to, end));
+    } else {
+      trimInbox(username, end);
+    }
+  }
+
+  private void trimInbox(String username, long position) {
+    try {
+      server.getInbox().trim(username, position);
+    } catch (IOException e) {
+      System.err.println("Error trimming inbox of " + username + ": " + e.getMessage());
+    }
   }
 
   public String getClientName() {
     return clientName;
   }
 
-  public Socket getSocket() {
-    return socket;
-  }
+  public abstract Socket getSocket();
 }
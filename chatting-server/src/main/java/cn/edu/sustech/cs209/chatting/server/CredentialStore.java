@@ -0,0 +1,396 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Append-only store of user accounts in {@code dataDir/users.log}: registering a user appends
+ * one record and never rewrites the others, whatever the number of accounts.
+ *
+ * <p>The file starts with a magic number, followed by records {@code length:int crc:int
+ * payload}, the payload being the username and a salted PBKDF2 hash of the password. Only the
+ * position of each user's record is kept in memory; the hash is read from the file when the
+ * user logs in. On startup the file is scanned once to rebuild the index, a torn record left
+ * by a crash is truncated, and the file is rewritten if it has superseded records or is in
+ * the older format, which kept passwords in plain text.
+ *
+ * <p>Hashing a new password, appending it and forcing it to disk are done by a writer thread,
+ * which batches the fsyncs of registrations arriving together.
+ */
+public class CredentialStore {
+  static final int HEADER_LENGTH = 4 + 4;
+  // 旧格式的文件以第一条记录的长度开头, 是正数
+  static final int MAGIC = 0xCA5A0002;
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int SALT_LENGTH = 16;
+  private static final int HASH_BITS = 256;
+
+  private final File file;
+  private final int iterations;
+  private final ConcurrentHashMap<String, Long> positions = new ConcurrentHashMap<>();
+  // ReentrantLock 而不是 synchronized, 避免写盘时钉住虚拟线程
+  private final ReentrantLock lock = new ReentrantLock();
+  private final List<CompletableFuture<Boolean>> unforced = new ArrayList<>();
+  private final SecureRandom random = new SecureRandom();
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "credentials-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private FileChannel channel;
+  private long end;
+
+  /**
+   * @param file       the account file
+   * @param iterations PBKDF2 iterations for new hashes; every login repeats them
+   */
+  public CredentialStore(File file, int iterations) {
+    this.file = file;
+    this.iterations = iterations;
+  }
+
+  /**
+   * Opens the store, importing the accounts of the serialized map an older version kept in
+   * {@code legacy} if the store does not exist yet.
+   *
+   * @return the number of accounts
+   */
+  public int open(File legacy) throws IOException {
+    if (!file.exists() && legacy.isFile() && legacy.length() > 0) {
+      importLegacy(legacy);
+    }
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    end = load();
+    if (legacy.exists()) {
+      // 导入完成后才移走旧文件, 中途崩溃时下次启动重新导入
+      Files.move(legacy.toPath(), new File(legacy.getPath() + ".migrated").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    return positions.size();
+  }
+
+  public boolean contains(String username) {
+    return username != null && positions.containsKey(username);
+  }
+
+  /**
+   * Registers a new user on the writer thread.
+   *
+   * @return a future completed with false if the name is taken, or with true once the
+   *     account is on disk
+   */
+  public CompletableFuture<Boolean> register(String username, String password) {
+    CompletableFuture<Boolean> registered = new CompletableFuture<>();
+    if (contains(username)) {
+      registered.complete(false);
+      return registered;
+    }
+    writer.execute(() -> {
+      try {
+        byte[] record = encode(username, newHash(password));
+        lock.lock();
+        try {
+          if (positions.containsKey(username)) {
+            registered.complete(false);
+            return;
+          }
+          ByteBuffer buffer = ByteBuffer.wrap(record);
+          long position = end;
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+          positions.put(username, end);
+          end = position;
+          unforced.add(registered);
+          if (unforced.size() == 1) {
+            // 排在它前面的注册都写完后才 fsync, 一次落盘多个
+            writer.execute(this::forceNow);
+          }
+        } finally {
+          lock.unlock();
+        }
+      } catch (IOException e) {
+        registered.completeExceptionally(e);
+      }
+    });
+    return registered;
+  }
+
+  private void forceNow() {
+    List<CompletableFuture<Boolean>> waiting;
+    lock.lock();
+    try {
+      waiting = new ArrayList<>(unforced);
+      unforced.clear();
+    } finally {
+      lock.unlock();
+    }
+    IOException failure = null;
+    try {
+      channel.force(false);
+    } catch (IOException e) {
+      failure = e;
+    }
+    for (CompletableFuture<Boolean> registered : waiting) {
+      if (failure == null) {
+        registered.complete(true);
+      } else {
+        registered.completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * Checks a password against the user's record. Hashing takes a while on purpose, so this
+   * should not run on an event loop.
+   */
+  public boolean validate(String username, String password) throws IOException {
+    Long position = username == null ? null : positions.get(username);
+    if (position == null || password == null) {
+      return false;
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(readPayload(position)));
+    in.readUTF();
+    int rounds = in.readInt(); // 记录哈希时的迭代次数, 调整配置不影响已有账户
+    byte[] salt = new byte[SALT_LENGTH];
+    in.readFully(salt);
+    byte[] hash = new byte[HASH_BITS / 8];
+    in.readFully(hash);
+    return MessageDigest.isEqual(hash, pbkdf2(password, salt, rounds));
+  }
+
+  /**
+   * Waits for pending registrations.
+   */
+  public void close() throws IOException {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  /**
+   * Indexes every intact record, truncating a torn tail, and compacts the file if needed.
+   *
+   * @return the length of the intact records
+   */
+  private long load() throws IOException {
+    if (channel.size() == 0) {
+      ByteBuffer magic = ByteBuffer.allocate(4).putInt(0, MAGIC);
+      while (magic.hasRemaining()) {
+        channel.write(magic, magic.position());
+      }
+      channel.force(false);
+      return 4;
+    }
+    boolean plain = channel.size() < 4 || readInt(0) != MAGIC;
+    long position = plain ? 0 : 4;
+    int records = 0;
+    Map<String, String> passwords = new LinkedHashMap<>();
+    CRC32 crc = new CRC32();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      in.skipNBytes(position);
+      while (true) {
+        int length;
+        int checksum;
+        byte[] payload;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length < 0 || length > file.length() - position - HEADER_LENGTH) {
+            break;
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+        } catch (EOFException e) {
+          break;
+        }
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+        String username = fields.readUTF();
+        if (plain) {
+          passwords.put(username, fields.readUTF());
+        }
+        positions.put(username, position);
+        records++;
+        position += HEADER_LENGTH + length;
+      }
+    }
+    if (position < channel.size()) {
+      System.out.println("Truncating " + (channel.size() - position)
+          + " bytes of a torn record from " + file.getName());
+      channel.truncate(position);
+    }
+    if (plain || records > positions.size()) {
+      compact(plain ? passwords : null);
+      return load();
+    }
+    return position;
+  }
+
+  /**
+   * Rewrites the file with one record per user, hashing the passwords of a file in the older
+   * format.
+   */
+  private void compact(Map<String, String> passwords) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(out, ByteBuffer.allocate(4).putInt(0, MAGIC));
+      for (Map.Entry<String, Long> account : positions.entrySet()) {
+        byte[] record;
+        if (passwords != null) {
+          record = encode(account.getKey(), newHash(passwords.get(account.getKey())));
+        } else {
+          byte[] payload = readPayload(account.getValue());
+          record = new byte[HEADER_LENGTH + payload.length];
+          System.arraycopy(payload, 0, record, HEADER_LENGTH, payload.length);
+          seal(record);
+        }
+        writeFully(out, ByteBuffer.wrap(record));
+      }
+      out.force(true);
+    }
+    channel.close();
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    System.out.println("Compacted " + positions.size() + " accounts in " + file.getName()
+        + (passwords != null ? ", passwords hashed" : ""));
+    positions.clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void importLegacy(File legacy) throws IOException {
+    Map<String, String> accounts;
+    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacy))) {
+      accounts = (Map<String, String>) ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Cannot read " + legacy, e);
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(out, ByteBuffer.allocate(4).putInt(0, MAGIC));
+      for (Map.Entry<String, String> account : accounts.entrySet()) {
+        writeFully(out, ByteBuffer.wrap(encode(account.getKey(), newHash(account.getValue()))));
+      }
+      out.force(true);
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    System.out.println("Imported " + accounts.size() + " accounts from " + legacy.getName());
+  }
+
+  private byte[] readPayload(long position) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    readFully(header, position);
+    byte[] payload = new byte[header.getInt(0)];
+    readFully(ByteBuffer.wrap(payload), position + HEADER_LENGTH);
+    return payload;
+  }
+
+  private int readInt(long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    readFully(buffer, position);
+    return buffer.getInt(0);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Account record ends early in " + file.getName());
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Hashes a password with a new random salt.
+   *
+   * @return {@code iterations:int salt hash}
+   */
+  private byte[] newHash(String password) throws IOException {
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    ByteBuffer hash = ByteBuffer.allocate(4 + SALT_LENGTH + HASH_BITS / 8);
+    hash.putInt(iterations).put(salt).put(pbkdf2(password, salt, iterations));
+    return hash.array();
+  }
+
+  private static byte[] pbkdf2(String password, byte[] salt, int iterations)
+      throws IOException {
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(
+          new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS)).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot hash a password with " + ALGORITHM, e);
+    }
+  }
+
+  private static byte[] encode(String username, byte[] hash) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeUTF(username);
+    out.write(hash);
+    byte[] record = bytes.toByteArray();
+    seal(record);
+    return record;
+  }
+
+  /**
+   * Fills in the header of a record whose payload is in place.
+   */
+  private static void seal(byte[] record) {
+    CRC32 crc = new CRC32();
+    crc.update(record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+    ByteBuffer header = ByteBuffer.wrap(record, 0, HEADER_LENGTH);
+    header.putInt(record.length - HEADER_LENGTH);
+    header.putInt((int) crc.getValue());
+  }
+}
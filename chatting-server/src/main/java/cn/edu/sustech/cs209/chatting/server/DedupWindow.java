@@ -0,0 +1,74 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ids of the messages a user sent most recently, with the acknowledgement sent for each, so
+ * that a retransmitted message is only acknowledged again instead of being delivered twice.
+ *
+ * <p>The window is kept per user rather than per connection because retransmissions happen
+ * after a reconnect, on a new connection. Only the newest {@code capacity} ids are
+ * remembered.
+ */
+public class DedupWindow {
+  private final Map<String, Message> acks;
+  private volatile long releasedAt; // 用户最后一个连接断开的时间
+
+  public DedupWindow(int capacity) {
+    this.acks = new LinkedHashMap<>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Records a newly received id.
+   *
+   * @return false if the id was seen already, i.e. the message is a retransmission
+   */
+  public synchronized boolean add(String id) {
+    if (acks.containsKey(id)) {
+      return false;
+    }
+    acks.put(id, null);
+    return true;
+  }
+
+  /**
+   * Remembers the acknowledgement sent for an id, to be sent again for retransmissions.
+   */
+  public synchronized void acknowledge(String id, Message ack) {
+    if (acks.containsKey(id)) {
+      acks.put(id, ack);
+    }
+  }
+
+  /**
+   * Returns the acknowledgement of an id, or null while the message is not accepted yet.
+   */
+  public synchronized Message ackOf(String id) {
+    return acks.get(id);
+  }
+
+  /**
+   * Forgets an id whose message could not be accepted, so that a retransmission is processed.
+   */
+  public synchronized void forget(String id) {
+    acks.remove(id);
+  }
+
+  /**
+   * Notes that the last session of the user ended, from when the window may be evicted.
+   */
+  public void release(long now) {
+    releasedAt = now;
+  }
+
+  public long getReleasedAt() {
+    return releasedAt;
+  }
+}
@@ -0,0 +1,14 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+/**
+ * When an appended record counts as committed to the message log.
+ */
+public enum DurabilityMode {
+  SYNC,         // 每条记录单独 write + fsync
+  GROUP_COMMIT, // 在提交窗口内攒批, 每批一次 write + fsync
+  ASYNC;        // 立即视为提交, 后台按窗口批量写盘
+
+  public static DurabilityMode parse(String value) {
+    return DurabilityMode.valueOf(value.trim().toUpperCase());
+  }
+}
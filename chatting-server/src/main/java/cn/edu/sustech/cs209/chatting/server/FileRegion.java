@@ -0,0 +1,98 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A frame whose file content is sent straight from a blob on disk with
+ * {@link FileChannel#transferTo}, so that it never passes through the Java heap. It is queued
+ * in an {@link OutboundQueue} next to encoded frames and written by the same writer.
+ *
+ * <p>The regions of one download share its channel, which the download closes; each region
+ * reports back once it is written or discarded.
+ */
+public class FileRegion {
+  private final ByteBuffer head;
+  private final FileChannel file;
+  private final long end;
+  private final ByteBuffer tail;
+  private final Runnable onRelease;
+  private long position;
+
+  /**
+   * Constructs the frame of a message carrying {@code count} bytes of {@code file}.
+   *
+   * @param message   the message, encoded around the content
+   * @param file      the file the content is read from
+   * @param position  where the content starts in the file
+   * @param count     the length of the content
+   * @param onRelease called once the region is written or discarded
+   * @throws IOException if the message cannot be encoded
+   */
+  public FileRegion(Message message, FileChannel file, long position, int count,
+                    Runnable onRelease) throws IOException {
+    byte[][] frame = FrameCodec.encodeAroundFile(message, count);
+    this.head = ByteBuffer.wrap(frame[0]);
+    this.tail = ByteBuffer.wrap(frame[1]);
+    this.file = file;
+    this.position = position;
+    this.end = position + count;
+    this.onRelease = onRelease;
+  }
+
+  /**
+   * Writes as much of the frame as the channel accepts; a blocking channel takes all of it.
+   *
+   * @return true once the whole frame is written
+   */
+  public boolean writeTo(WritableByteChannel channel) throws IOException {
+    if (head.hasRemaining()) {
+      channel.write(head);
+      if (head.hasRemaining()) {
+        return false;
+      }
+    }
+    while (position < end) {
+      long n = file.transferTo(position, end - position, channel);
+      if (n == 0) {
+        if (position >= file.size()) {
+          throw new EOFException("File ended early");
+        }
+        return false; // 发送缓冲区已满
+      }
+      position += n;
+    }
+    channel.write(tail);
+    return !tail.hasRemaining();
+  }
+
+  /**
+   * Reads the whole frame into memory, for queues that have to keep it on disk. Only valid
+   * before any of it was written.
+   */
+  public byte[] toFrame() throws IOException {
+    int headLength = head.capacity();
+    byte[] frame = new byte[headLength + (int) (end - position) + tail.capacity()];
+    System.arraycopy(head.array(), 0, frame, 0, headLength);
+    ByteBuffer content = ByteBuffer.wrap(frame, headLength, (int) (end - position));
+    while (content.hasRemaining()) {
+      if (file.read(content, position + content.position() - headLength) < 0) {
+        throw new EOFException("File ended early");
+      }
+    }
+    System.arraycopy(tail.array(), 0, frame, frame.length - tail.capacity(), tail.capacity());
+    return frame;
+  }
+
+  /**
+   * Called exactly once, when the region is written or will never be.
+   */
+  public void release() {
+    onRelease.run();
+  }
+}
@@ -0,0 +1,272 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * All groups known to the server, indexed by name and by member.
+ * Reads are lock-free; writes are serialized so both indexes always agree.
+ *
+ * <p>The directory also caches each group as it is sent to a member logging in, so that a
+ * login storm encodes a popular group once rather than once per member. A cached group is
+ * dropped whenever the group gets a message or is replaced, and the least recently sent ones
+ * are dropped beyond a fixed number of groups.
+ */
+public class GroupDirectory {
+  private final ConcurrentHashMap<String, Group> groupsByName = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<Group>> groupsByMember = new ConcurrentHashMap<>();
+  private final Map<String, BroadcastFrame> loginFrames;
+  private final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<>();
+  // 已提交到日志但还没加入目录的新群组名, 防止两个连接同时创建同名群组
+  private final Set<String> reservedNames = ConcurrentHashMap.newKeySet();
+  private final int recentLimit;
+  private final int loginMessages;
+  private final ServerMetrics metrics;
+
+  /**
+   * The last sequence number and timestamp given to a message of one group. They are kept
+   * apart from the messages, which may be trimmed or lack a number, and saved in the
+   * snapshot.
+   */
+  private static final class Sequence {
+    final ReentrantLock lock = new ReentrantLock();
+    long seq;
+    long timestamp;
+  }
+
+  /**
+   * @param recentLimit     how many of the newest messages each group keeps in memory
+   * @param loginMessages   how many of the newest messages are sent with a group on login
+   * @param loginCacheSize  how many groups the login cache holds at most
+   * @param metrics         where hits and misses of the login cache are counted
+   */
+  public GroupDirectory(int recentLimit, int loginMessages, int loginCacheSize,
+      ServerMetrics metrics) {
+    this.recentLimit = recentLimit;
+    this.loginMessages = loginMessages;
+    this.metrics = metrics;
+    // 按访问顺序排列, 超出容量时去掉最久没有发送过的群组
+    this.loginFrames = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, BroadcastFrame> eldest) {
+        return size() > loginCacheSize;
+      }
+    });
+  }
+
+  /**
+   * Adds a group, replacing any previous group with the same name.
+   */
+  public synchronized void add(Group group) {
+    Group previous = groupsByName.put(group.getGroupName(), group);
+    if (previous != null) {
+      synchronized (previous) {
+        loginFrames.remove(previous.getGroupName());
+      }
+      for (String member : previous.getGroupMembers()) {
+        Set<Group> groups = groupsByMember.get(member);
+        if (groups != null) {
+          groups.remove(previous);
+          if (groups.isEmpty()) {
+            groupsByMember.remove(member);
+          }
+        }
+      }
+    }
+    for (String member : group.getGroupMembers()) {
+      groupsByMember.computeIfAbsent(member, key -> ConcurrentHashMap.newKeySet()).add(group);
+    }
+  }
+
+  /**
+   * Reserves the name of a group a client creates, until {@link #release} once it was added
+   * or could not be logged.
+   *
+   * @return false if a group of that name exists or is being created
+   */
+  public synchronized boolean reserve(String groupName) {
+    return !groupsByName.containsKey(groupName) && reservedNames.add(groupName);
+  }
+
+  public void release(String groupName) {
+    reservedNames.remove(groupName);
+  }
+
+  /**
+   * Appends a message to a group's in-memory tail, dropping the oldest ones beyond the limit;
+   * the full history lives in the {@link HistoryStore}. Readers that copy or encode the tail
+   * synchronize on the group as well. The message must have been stamped or observed; this
+   * does not take the sequence lock, since it runs on the log writer while appenders hold it.
+   */
+  public void addMessage(Group group, Message message) {
+    synchronized (group) {
+      loginFrames.remove(group.getGroupName());
+      group.addMessage(message);
+      List<Message> messages = group.getGroupMessages();
+      if (messages.size() > recentLimit) {
+        messages.subList(0, messages.size() - recentLimit).clear();
+      }
+    }
+  }
+
+  /**
+   * Gives a group message the next sequence number of its group and replaces its
+   * client-supplied timestamp with a server one that is strictly greater than the previous
+   * message's, so that the timestamp identifies the message within its group and can serve as
+   * a history cursor. Callers that log the message hold {@link #sequenceLock} until it is
+   * appended, so that the log has each group's messages in sequence order.
+   */
+  public void stamp(Group group, Message message) {
+    Sequence sequence = sequenceOf(group.getGroupName());
+    sequence.lock.lock();
+    try {
+      sequence.seq++;
+      sequence.timestamp = Math.max(System.currentTimeMillis(), sequence.timestamp + 1);
+      message.setSeq(sequence.seq);
+      message.setTimestamp(sequence.timestamp);
+    } finally {
+      sequence.lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the lock that orders the messages of a group, held while stamping and logging
+   * them. It is not the group's monitor, so readers of the group never wait for the log.
+   */
+  public ReentrantLock sequenceLock(Group group) {
+    return sequenceOf(group.getGroupName()).lock;
+  }
+
+  /**
+   * Moves a group's sequence past a message that was stamped before, e.g. one replayed from
+   * the log or read from the history store, so that numbers are never given out twice.
+   */
+  public void observe(String groupName, Message message) {
+    if (message.getSeq() == null && message.getTimestamp() == null) {
+      return;
+    }
+    advance(groupName, message.getSeq() == null ? 0 : message.getSeq(),
+        message.getTimestamp() == null ? 0 : message.getTimestamp());
+  }
+
+  /**
+   * Moves a group's sequence to at least the given number and timestamp.
+   */
+  public void advance(String groupName, long seq, long timestamp) {
+    Sequence sequence = sequenceOf(groupName);
+    sequence.lock.lock();
+    try {
+      sequence.seq = Math.max(sequence.seq, seq);
+      sequence.timestamp = Math.max(sequence.timestamp, timestamp);
+    } finally {
+      sequence.lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the last sequence number and timestamp given out in a group, zeros if none.
+   */
+  public long[] sequenceOf(Group group) {
+    Sequence sequence = sequenceOf(group.getGroupName());
+    sequence.lock.lock();
+    try {
+      return new long[] {sequence.seq, sequence.timestamp};
+    } finally {
+      sequence.lock.unlock();
+    }
+  }
+
+  private Sequence sequenceOf(String groupName) {
+    return sequences.computeIfAbsent(groupName, name -> new Sequence());
+  }
+
+  /**
+   * Replaces a group's in-memory tail with its newest messages from the history store.
+   */
+  public void setRecent(Group group, List<Message> recent) {
+    for (Message message : recent) {
+      observe(group.getGroupName(), message);
+    }
+    synchronized (group) {
+      loginFrames.remove(group.getGroupName());
+      group.setGroupMessages(new ArrayList<>(recent));
+    }
+  }
+
+  /**
+   * Copies a group's metadata and membership together with its newest
+   * {@code recentMessages} messages.
+   */
+  public static Group copyOf(Group group, int recentMessages) {
+    synchronized (group) {
+      Group copy = new Group(group.getCreator(), group.getGroupName(),
+          new ArrayList<>(group.getGroupMembers()), group.getGroupType(),
+          group.isHasUnreadMessages());
+      List<Message> messages = group.getGroupMessages();
+      for (int i = Math.max(0, messages.size() - recentMessages); i < messages.size(); i++) {
+        copy.addMessage(messages.get(i));
+      }
+      return copy;
+    }
+  }
+
+  /**
+   * Returns a group as sent to a member on login, with its newest messages. The copy is
+   * taken under the group's monitor, so it never mixes states; the frame is encoded outside
+   * of it, at most once per wire format, and shared until the group changes.
+   */
+  public BroadcastFrame loginFrameOf(Group group) {
+    BroadcastFrame frame = loginFrames.get(group.getGroupName());
+    if (frame != null) {
+      metrics.getGroupFrameHits().increment();
+      return frame;
+    }
+    metrics.getGroupFrameMisses().increment();
+    synchronized (group) {
+      frame = new BroadcastFrame(copyOf(group, loginMessages));
+      // 群组已被替换时不缓存, 否则会盖住新群组
+      if (groupsByName.get(group.getGroupName()) == group) {
+        loginFrames.put(group.getGroupName(), frame);
+      }
+      return frame;
+    }
+  }
+
+  public void addAll(Collection<Group> groups) {
+    for (Group group : groups) {
+      add(group);
+    }
+  }
+
+  /**
+   * Returns the group with the given name, or null if there is none.
+   */
+  public Group get(String groupName) {
+    return groupsByName.get(groupName);
+  }
+
+  /**
+   * Returns the groups the user is a member of.
+   */
+  public Set<Group> groupsOf(String member) {
+    Set<Group> groups = groupsByMember.get(member);
+    return groups == null ? Collections.emptySet() : Collections.unmodifiableSet(groups);
+  }
+
+  public Collection<Group> all() {
+    return Collections.unmodifiableCollection(groupsByName.values());
+  }
+
+  public int size() {
+    return groupsByName.size();
+  }
+}
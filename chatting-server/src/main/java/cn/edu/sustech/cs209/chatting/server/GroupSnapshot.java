@@ -0,0 +1,111 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.BinaryCodec;
+import cn.edu.sustech.cs209.chatting.common.Group;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Point-in-time copy of group metadata and membership, written so that the message log
+ * behind it can be compacted. Message history is not included; it lives in the
+ * {@link HistoryStore}.
+ *
+ * <p>Layout: {@code magic:int count:int (length:int group seq:long timestamp:long)* crc:int},
+ * each group encoded with {@link BinaryCodec} and followed by the last sequence number and
+ * timestamp given out in it; the CRC covers everything before it. Snapshots of the first
+ * layout, without sequences, are still read. The file is written to a temporary name,
+ * fsynced and renamed, so a crash leaves either the old or the new snapshot.
+ */
+public final class GroupSnapshot {
+  private static final int MAGIC_V1 = 0x43485331; // "CHS1"
+  private static final int MAGIC = 0x43485332; // "CHS2", 加上每个群组的序号
+
+  private GroupSnapshot() {
+  }
+
+  public static void write(File file, GroupDirectory directory) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    List<Group> copies = new ArrayList<>(directory.size());
+    for (Group group : directory.all()) {
+      copies.add(GroupDirectory.copyOf(group, 0));
+    }
+    out.writeInt(MAGIC);
+    out.writeInt(copies.size());
+    ByteArrayOutputStream groupBytes = new ByteArrayOutputStream(256);
+    for (Group copy : copies) {
+      groupBytes.reset();
+      BinaryCodec.encode(copy, new DataOutputStream(groupBytes));
+      out.writeInt(groupBytes.size());
+      groupBytes.writeTo(out);
+      long[] sequence = directory.sequenceOf(copy);
+      out.writeLong(sequence[0]);
+      out.writeLong(sequence[1]);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeInt((int) crc.getValue());
+
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(temp)) {
+      bytes.writeTo(fos);
+      fos.getFD().sync();
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a snapshot into the directory. Nothing is added unless the whole file is intact.
+   *
+   * @return the number of groups read
+   */
+  public static int read(File file, GroupDirectory directory) throws IOException {
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    if (bytes.length < 12) {
+      throw new StreamCorruptedException("Snapshot too short: " + file);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - 4);
+    ByteBuffer in = ByteBuffer.wrap(bytes, 0, bytes.length - 4);
+    int magic = in.getInt();
+    if ((magic != MAGIC && magic != MAGIC_V1)
+        || ByteBuffer.wrap(bytes).getInt(bytes.length - 4) != (int) crc.getValue()) {
+      throw new StreamCorruptedException("Corrupted snapshot: " + file);
+    }
+    try {
+      int count = in.getInt();
+      List<Group> groups = new ArrayList<>();
+      List<long[]> sequences = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        int length = in.getInt();
+        ByteBuffer group = in.slice();
+        group.limit(length);
+        groups.add((Group) BinaryCodec.decode(group));
+        in.position(in.position() + length);
+        sequences.add(magic == MAGIC ? new long[] {in.getLong(), in.getLong()} : null);
+      }
+      for (int i = 0; i < groups.size(); i++) {
+        directory.add(groups.get(i));
+        if (sequences.get(i) != null) {
+          directory.advance(groups.get(i).getGroupName(), sequences.get(i)[0],
+              sequences.get(i)[1]);
+        }
+      }
+      return groups.size();
+    } catch (BufferUnderflowException | IllegalArgumentException | ClassCastException e) {
+      throw new StreamCorruptedException("Corrupted snapshot: " + file + ": " + e);
+    }
+  }
+}
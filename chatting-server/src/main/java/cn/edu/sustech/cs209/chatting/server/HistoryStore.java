@@ -0,0 +1,716 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.BinaryCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Disk-backed archive of group messages, so the heap only has to hold a recent tail.
+ *
+ * <p>Every group has its own directory of segment files. A segment starts with a magic number,
+ * followed by records {@code length:int crc:int key:long lsn:long payload}, where the payload
+ * is the {@link BinaryCodec} encoding of the message, the key is its timestamp, clamped so
+ * that keys never decrease within a group, and the CRC-32C covers the key, LSN and payload.
+ * Next to each segment a sparse index stores the key and offset of roughly
+ * one record every {@value #INDEX_INTERVAL} bytes; range reads binary-search it and then scan
+ * a memory-mapped view of the segment.
+ *
+ * <p>The active segment is appended to through a mapping that starts at
+ * {@value #INITIAL_WINDOW} bytes and doubles as the segment fills, so the file is zero past
+ * its last record until the segment is sealed. A group's files are opened on its first
+ * append or read, and only the {@code openGroups} most recently used groups keep them open.
+ *
+ * <p>The archive is derived from the message log and is not fsynced on its own. Records
+ * carry their log sequence number, so replaying the log again does not duplicate them. Pages
+ * of the mapping may reach the disk in any order, so on opening, every record of the active
+ * segment is checked and the segment is cut at the first bad one; the replay refills it.
+ */
+public class HistoryStore {
+  static final int HEADER_LENGTH = 4 + 4 + 8 + 8;
+  static final int MAGIC = 0xCA5A0003;
+  static final int MAGIC_LENGTH = 4;
+  // 加校验和之前的记录头, 没有 crc
+  private static final int LEGACY_HEADER_LENGTH = 4 + 8 + 8;
+  static final int INDEX_INTERVAL = 4096;
+  static final int INITIAL_WINDOW = 64 * 1024;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String INDEX_SUFFIX = ".idx";
+
+  private final File directory;
+  private final long segmentBytes;
+  private final int openGroups;
+  private final ConcurrentHashMap<String, GroupHistory> histories = new ConcurrentHashMap<>();
+  // 文件打开着的群组, 按使用顺序排列
+  private final LinkedHashMap<String, GroupHistory> opened = new LinkedHashMap<>(16, 0.75f, true);
+
+  @FunctionalInterface
+  private interface HistoryAction<T> {
+    T apply(GroupHistory history) throws IOException;
+  }
+
+  public HistoryStore(File directory, long segmentBytes, int openGroups) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.openGroups = Math.max(1, openGroups);
+  }
+
+  /**
+   * Archives a message of the given group. Records with an LSN the group has already seen
+   * are ignored; an LSN of 0 marks messages that predate the message log.
+   */
+  public void append(String groupName, long lsn, Message message) throws IOException {
+    withHistory(groupName, history -> {
+      history.append(lsn, message);
+      return null;
+    });
+  }
+
+  /**
+   * Imports history that only exists in a legacy groups.txt, unless the group has an archive
+   * already.
+   */
+  public void importLegacy(String groupName, List<Message> messages) throws IOException {
+    withHistory(groupName, history -> {
+      if (history.isEmpty()) {
+        for (Message message : messages) {
+          history.append(0, message);
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Returns up to {@code limit} messages with a key below {@code beforeTimestamp}, oldest
+   * first.
+   */
+  public List<Message> before(String groupName, long beforeTimestamp, int limit)
+      throws IOException {
+    return withHistory(groupName, history -> history.before(beforeTimestamp, limit));
+  }
+
+  /**
+   * Returns up to {@code limit} messages with a key above {@code afterTimestamp}, oldest
+   * first.
+   */
+  public List<Message> after(String groupName, long afterTimestamp, int limit)
+      throws IOException {
+    return withHistory(groupName, history -> history.after(afterTimestamp, limit));
+  }
+
+  /**
+   * Returns the newest {@code limit} messages of a group, oldest first.
+   */
+  public List<Message> recent(String groupName, int limit) throws IOException {
+    return before(groupName, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   * Forces everything archived so far to disk, before the message log behind it is
+   * compacted.
+   */
+  public void flush() throws IOException {
+    for (GroupHistory history : histories.values()) {
+      history.flush();
+    }
+  }
+
+  public void close() {
+    for (GroupHistory history : histories.values()) {
+      history.release();
+    }
+    histories.clear();
+    synchronized (opened) {
+      opened.clear();
+    }
+  }
+
+  /**
+   * Runs {@code action} on a group's history with its files open, then closes the files of
+   * the least recently used group if too many are open.
+   */
+  private <T> T withHistory(String groupName, HistoryAction<T> action) throws IOException {
+    GroupHistory history = histories.computeIfAbsent(groupName,
+        name -> new GroupHistory(name, new File(directory, directoryName(name))));
+    GroupHistory evicted = null;
+    history.lock.lock();
+    try {
+      history.load();
+      synchronized (opened) {
+        opened.put(groupName, history);
+        if (opened.size() > openGroups) {
+          Iterator<GroupHistory> eldest = opened.values().iterator();
+          evicted = eldest.next();
+          eldest.remove();
+        }
+      }
+      return action.apply(history);
+    } finally {
+      history.lock.unlock();
+      // 不持有本群组的锁时才去拿别的群组的锁, 避免互相等待
+      if (evicted != null) {
+        evicted.release();
+      }
+    }
+  }
+
+  /**
+   * Number of groups whose files are open.
+   */
+  int openGroupCount() {
+    int count = 0;
+    for (GroupHistory history : histories.values()) {
+      if (history.loaded) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Fills in the header of a record whose payload follows it.
+   */
+  private static void fillHeader(ByteBuffer record, long key, long lsn) {
+    record.putInt(0, record.limit() - HEADER_LENGTH);
+    record.putLong(8, key);
+    record.putLong(16, lsn);
+    CRC32C crc = new CRC32C();
+    crc.update(record.array(), 8, record.limit() - 8);
+    record.putInt(4, (int) crc.getValue());
+  }
+
+  private static String directoryName(String groupName) {
+    // 群组名形如 "[alice, bob]", 编码后才能作为目录名
+    return URLEncoder.encode(groupName, StandardCharsets.UTF_8).replace(".", "%2E");
+  }
+
+  private final class GroupHistory {
+    private final String name;
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // 以下状态只在文件打开时有效, 每次打开时从文件重新得到
+    private volatile boolean loaded = false;
+    private boolean dirty = false;
+    private long lastLsn;
+    private long lastKey;
+    private long nextSegmentId;
+
+    GroupHistory(String name, File directory) {
+      this.name = name;
+      this.directory = directory;
+    }
+
+    /**
+     * Opens the group's segments unless they are open. Called with the lock held.
+     */
+    void load() throws IOException {
+      if (loaded) {
+        return;
+      }
+      lastLsn = 0;
+      lastKey = Long.MIN_VALUE;
+      nextSegmentId = 1;
+      directory.mkdirs();
+      File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+      if (files == null) {
+        throw new IOException("Cannot list " + directory);
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        if (!hasMagic(file)) {
+          upgrade(file);
+        }
+      }
+      int count = files.length;
+      // 刚滚动出的新段还没写入就崩溃时没有记录, 去掉它让上一段继续作为活跃段
+      while (count > 1 && isBlank(files[count - 1])) {
+        String name = files[count - 1].getName();
+        files[count - 1].delete();
+        new File(directory, name.replace(SEGMENT_SUFFIX, INDEX_SUFFIX)).delete();
+        count--;
+      }
+      for (int i = 0; i < count; i++) {
+        String name = files[i].getName();
+        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        Segment segment = new Segment(files[i], indexFile(id));
+        segment.open(i == count - 1);
+        segments.add(segment);
+        nextSegmentId = id + 1;
+      }
+      loaded = true;
+    }
+
+    boolean isEmpty() {
+      lock.lock();
+      try {
+        return segments.isEmpty() || segments.get(segments.size() - 1).size <= MAGIC_LENGTH;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void append(long lsn, Message message) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(new byte[HEADER_LENGTH]);
+      BinaryCodec.encode(message, out);
+      ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+      lock.lock();
+      try {
+        if (lsn != 0 && lsn <= lastLsn) {
+          return;
+        }
+        long timestamp = message.getTimestamp() == null ? 0 : message.getTimestamp();
+        long key = Math.max(lastKey, timestamp);
+        fillHeader(record, key, lsn);
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || (active.size > MAGIC_LENGTH
+            && active.size + record.limit() > segmentBytes)) {
+          if (active != null) {
+            active.seal();
+          }
+          active = newSegment();
+        }
+        active.append(record, key);
+        dirty = true;
+        lastKey = key;
+        if (lsn != 0) {
+          lastLsn = lsn;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    List<Message> before(long beforeKey, int limit) throws IOException {
+      Deque<Message> result = new ArrayDeque<>(Math.max(0, limit));
+      lock.lock();
+      try {
+        for (int i = segments.size() - 1; i >= 0 && result.size() < limit; i--) {
+          segments.get(i).readBefore(beforeKey, limit - result.size(), result);
+        }
+      } finally {
+        lock.unlock();
+      }
+      return new ArrayList<>(result);
+    }
+
+    List<Message> after(long afterKey, int limit) throws IOException {
+      List<Message> result = new ArrayList<>();
+      lock.lock();
+      try {
+        for (int i = 0; i < segments.size() && result.size() < limit; i++) {
+          // 下一段的第一个键都不大于 afterKey 时, 这一段整段都可以跳过
+          if (i + 1 < segments.size() && segments.get(i + 1).firstKey() <= afterKey) {
+            continue;
+          }
+          segments.get(i).readAfter(afterKey, limit - result.size(), result);
+        }
+      } finally {
+        lock.unlock();
+      }
+      return result;
+    }
+
+    void flush() throws IOException {
+      lock.lock();
+      try {
+        if (dirty && !segments.isEmpty()) {
+          segments.get(segments.size() - 1).force();
+        }
+        dirty = false;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Forces what was appended and closes the group's files and mappings; the next append
+     * or read opens them again.
+     */
+    void release() {
+      lock.lock();
+      try {
+        if (!loaded) {
+          return;
+        }
+        // 关闭前落盘, flush 之后才压缩的消息日志里可能已经没有这些记录了
+        flush();
+      } catch (IOException e) {
+        System.err.println("Error flushing history of " + name + ": " + e.getMessage());
+      } finally {
+        for (Segment segment : segments) {
+          segment.close();
+        }
+        segments.clear();
+        loaded = false;
+        lock.unlock();
+      }
+    }
+
+    private Segment newSegment() throws IOException {
+      long id = nextSegmentId++;
+      Segment segment = new Segment(new File(directory, String.format("%020d", id)
+          + SEGMENT_SUFFIX), indexFile(id));
+      segment.open(true);
+      segments.add(segment);
+      return segment;
+    }
+
+    private File indexFile(long id) {
+      return new File(directory, String.format("%020d", id) + INDEX_SUFFIX);
+    }
+
+    private boolean isBlank(File file) throws IOException {
+      return file.length() < MAGIC_LENGTH + 4 || readInt(file, MAGIC_LENGTH) == 0;
+    }
+
+    private boolean hasMagic(File file) throws IOException {
+      return file.length() >= MAGIC_LENGTH && readInt(file, 0) == MAGIC;
+    }
+
+    private int readInt(File file, long position) throws IOException {
+      try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        ByteBuffer value = ByteBuffer.allocate(4);
+        while (value.hasRemaining()) {
+          in.read(value, position + value.position());
+        }
+        return value.getInt(0);
+      }
+    }
+
+    /**
+     * Rewrites a segment from before records had checksums, and drops its index, which
+     * {@link Segment#open} rebuilds.
+     */
+    private void upgrade(File file) throws IOException {
+      ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.capacity() + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      while (in.remaining() >= LEGACY_HEADER_LENGTH) {
+        int length = in.getInt(in.position());
+        if (length <= 0 || length > in.remaining() - LEGACY_HEADER_LENGTH) {
+          break;
+        }
+        in.getInt();
+        long key = in.getLong();
+        long lsn = in.getLong();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length);
+        in.get(record.array(), HEADER_LENGTH, length);
+        fillHeader(record, key, lsn);
+        out.write(record.array());
+      }
+      File temp = new File(file.getPath() + ".tmp");
+      Files.write(temp.toPath(), bytes.toByteArray());
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      String name = file.getName();
+      new File(directory, name.replace(SEGMENT_SUFFIX, INDEX_SUFFIX)).delete();
+    }
+
+    private final class Segment {
+      private final File file;
+      private final File indexFile;
+      private FileChannel channel;
+      private FileChannel indexChannel;
+      private MappedByteBuffer mapped;
+      private long size;
+      private long lastIndexedOffset = -INDEX_INTERVAL;
+      private long[] indexKeys = new long[16];
+      private long[] indexOffsets = new long[16];
+      private int indexCount;
+
+      Segment(File file, File indexFile) {
+        this.file = file;
+        this.indexFile = indexFile;
+      }
+
+      /**
+       * Loads the sparse index and scans past its last entry to find the end of the last
+       * intact record and the group's last LSN. The active (last) segment is scanned from its
+       * start instead, cut at the first record whose checksum does not match, and then mapped
+       * for appending.
+       */
+      void open(boolean active) throws IOException {
+        size = file.length();
+        int loaded = 0;
+        if (!active && indexFile.exists()) {
+          ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+          while (index.remaining() >= 16) {
+            long key = index.getLong();
+            long offset = index.getLong();
+            if (offset >= size) {
+              break;
+            }
+            addIndexEntry(key, offset);
+          }
+          loaded = indexCount;
+        }
+        channel = active
+            ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)
+            : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (active && size < MAGIC_LENGTH) {
+          ByteBuffer magic = ByteBuffer.allocate(MAGIC_LENGTH).putInt(0, MAGIC);
+          while (magic.hasRemaining()) {
+            channel.write(magic, magic.position());
+          }
+          size = MAGIC_LENGTH;
+        }
+        long offset = indexCount == 0 ? MAGIC_LENGTH : indexOffsets[indexCount - 1];
+        if (offset < size) {
+          ByteBuffer view = channel.map(FileChannel.MapMode.READ_ONLY, offset, size - offset);
+          CRC32C crc = new CRC32C();
+          while (view.remaining() >= HEADER_LENGTH) {
+            int position = view.position();
+            int length = view.getInt(position);
+            if (length <= 0 || length > view.remaining() - HEADER_LENGTH) {
+              break;
+            }
+            ByteBuffer covered = view.duplicate();
+            covered.position(position + 8).limit(position + HEADER_LENGTH + length);
+            crc.reset();
+            crc.update(covered);
+            if ((int) crc.getValue() != view.getInt(position + 4)) {
+              break;
+            }
+            long key = view.getLong(position + 8);
+            long lsn = view.getLong(position + 16);
+            if (offset + position - lastIndexedOffset >= INDEX_INTERVAL) {
+              addIndexEntry(key, offset + position);
+            }
+            lastKey = Math.max(lastKey, key);
+            lastLsn = Math.max(lastLsn, lsn);
+            view.position(position + HEADER_LENGTH + length);
+          }
+          offset += view.position();
+        }
+        if (!active) {
+          size = offset;
+          if (indexCount > loaded) {
+            writeIndex(FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)).close();
+          }
+          close();
+          return;
+        }
+        // 截掉残缺或校验不过的记录, 映射时再补零, 以免之后追加的记录后面留着旧数据
+        if (offset < size) {
+          channel.truncate(offset);
+          size = offset;
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, window(size));
+        // 索引可能落后于数据, 重写一遍保证与扫描结果一致
+        indexChannel = writeIndex(FileChannel.open(indexFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING));
+      }
+
+      /**
+       * Size of the mapping that holds {@code bytes}: at least {@value #INITIAL_WINDOW} bytes
+       * and no more than a segment, unless a single record is larger.
+       */
+      private long window(long bytes) {
+        long window = INITIAL_WINDOW;
+        while (window < bytes) {
+          window *= 2;
+        }
+        return Math.max(bytes, Math.min(window, segmentBytes));
+      }
+
+      private FileChannel writeIndex(FileChannel out) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(indexCount * 16);
+        for (int i = 0; i < indexCount; i++) {
+          index.putLong(indexKeys[i]).putLong(indexOffsets[i]);
+        }
+        index.flip();
+        while (index.hasRemaining()) {
+          out.write(index);
+        }
+        return out;
+      }
+
+      void append(ByteBuffer record, long key) throws IOException {
+        long offset = size;
+        if (offset + record.limit() > mapped.capacity()) {
+          // 映射随段增长而加倍, 比一段还大的记录按需要的大小映射
+          mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+              window(Math.max(offset + record.limit(), 2L * mapped.capacity())));
+        }
+        mapped.put((int) offset, record, 0, record.limit());
+        size += record.limit();
+        if (offset - lastIndexedOffset >= INDEX_INTERVAL) {
+          addIndexEntry(key, offset);
+          ByteBuffer entry = ByteBuffer.allocate(16).putLong(key).putLong(offset);
+          entry.flip();
+          while (entry.hasRemaining()) {
+            indexChannel.write(entry);
+          }
+        }
+      }
+
+      /**
+       * Prepends up to {@code limit} records with a key below {@code beforeKey} to
+       * {@code result}, newest last.
+       */
+      void readBefore(long beforeKey, int limit, Deque<Message> result) throws IOException {
+        if (indexCount == 0 || indexKeys[0] >= beforeKey) {
+          return;
+        }
+        ByteBuffer view = map();
+        // 键单调不减, 第一个键 >= beforeKey 的索引项之后都不用看
+        int end = lowerBound(beforeKey);
+        long endOffset = end < indexCount ? indexOffsets[end] : size;
+        int start = Math.max(0, end - 1);
+        while (true) {
+          List<Message> window = new ArrayList<>();
+          long offset = indexOffsets[start];
+          while (offset < endOffset) {
+            int length = view.getInt((int) offset);
+            long key = view.getLong((int) offset + 8);
+            if (key >= beforeKey) {
+              break;
+            }
+            ByteBuffer payload = view.duplicate();
+            payload.position((int) offset + HEADER_LENGTH);
+            payload.limit((int) offset + HEADER_LENGTH + length);
+            window.add((Message) BinaryCodec.decode(payload.slice()));
+            offset += HEADER_LENGTH + length;
+          }
+          if (window.size() >= limit || start == 0) {
+            for (int i = window.size() - 1; i >= Math.max(0, window.size() - limit); i--) {
+              result.addFirst(window.get(i));
+            }
+            return;
+          }
+          // 窗口内的记录不够, 向前多取几个索引间隔再扫描
+          start = Math.max(0, start - 2 * (end - start));
+        }
+      }
+
+      /**
+       * Appends up to {@code limit} records with a key above {@code afterKey} to
+       * {@code result}, oldest first.
+       */
+      void readAfter(long afterKey, int limit, List<Message> result) throws IOException {
+        if (indexCount == 0) {
+          return;
+        }
+        ByteBuffer view = map();
+        int start = afterKey == Long.MAX_VALUE ? indexCount - 1
+            : Math.max(0, lowerBound(afterKey + 1) - 1);
+        long offset = indexOffsets[start];
+        int added = 0;
+        while (offset < size && added < limit) {
+          int length = view.getInt((int) offset);
+          long key = view.getLong((int) offset + 8);
+          if (key > afterKey) {
+            ByteBuffer payload = view.duplicate();
+            payload.position((int) offset + HEADER_LENGTH);
+            payload.limit((int) offset + HEADER_LENGTH + length);
+            result.add((Message) BinaryCodec.decode(payload.slice()));
+            added++;
+          }
+          offset += HEADER_LENGTH + length;
+        }
+      }
+
+      long firstKey() {
+        return indexCount == 0 ? Long.MAX_VALUE : indexKeys[0];
+      }
+
+      private int lowerBound(long key) {
+        int low = 0;
+        int high = indexCount;
+        while (low < high) {
+          int mid = (low + high) >>> 1;
+          if (indexKeys[mid] < key) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        return low;
+      }
+
+      /**
+       * Returns the mapping of this segment, mapping a sealed one on its first read. Only the
+       * first {@code size} bytes hold records.
+       */
+      private ByteBuffer map() throws IOException {
+        if (mapped == null) {
+          try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+          }
+        }
+        return mapped;
+      }
+
+      private void addIndexEntry(long key, long offset) {
+        if (indexCount == indexKeys.length) {
+          indexKeys = Arrays.copyOf(indexKeys, indexCount * 2);
+          indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+        }
+        indexKeys[indexCount] = key;
+        indexOffsets[indexCount] = offset;
+        indexCount++;
+        lastIndexedOffset = offset;
+      }
+
+      void force() throws IOException {
+        if (channel != null && indexChannel != null) {
+          mapped.force();
+          indexChannel.force(false);
+        }
+      }
+
+      /**
+       * Stops appending to this segment; reads keep using its mapping, and a restart finds its
+       * end by scanning from the last index entry.
+       */
+      void seal() throws IOException {
+        force();
+        close();
+      }
+
+      void close() {
+        try {
+          if (channel != null) {
+            channel.close();
+          }
+          if (indexChannel != null) {
+            indexChannel.close();
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          channel = null;
+          indexChannel = null;
+        }
+      }
+    }
+  }
+}
@@ -3,7 +3,12 @@ package cn.edu.sustech.cs209.chatting.server;
 public class Main {
   public static void main(String[] args) {
     System.out.println("Starting server");
-    ChatServer chatServer = new ChatServer(8888);
+    ServerConfig config = ServerConfig.fromSystemProperties();
+    if (args.length > 0) {
+      // 第一个参数可以直接指定运行模式, 例如 nio / blocking
+      config.setMode(ServerMode.parse(args[0]));
+    }
+    ChatServer chatServer = new ChatServer(config);
     chatServer.startServer();
   }
 }
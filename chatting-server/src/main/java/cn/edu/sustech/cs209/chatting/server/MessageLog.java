@@ -0,0 +1,403 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.BinaryCodec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead, append-only log of accepted groups and messages.
+ *
+ * <p>Each record is {@code length:int crc:int lsn:long payload}, where the payload is a
+ * {@link BinaryCodec} encoding and the CRC covers the LSN and payload. Appending costs the
+ * same however long the history is; a record cut short by a crash is dropped on recovery.
+ *
+ * <p>Except in {@link DurabilityMode#SYNC} mode, records are handed to a background writer
+ * that commits them in batches with one write and one fsync per batch.
+ *
+ * <p>The log is a sequence of files named after the first LSN they may hold. {@link #rotate}
+ * starts a new file so that older ones can be deleted once a snapshot covers them.
+ */
+public class MessageLog {
+  static final int HEADER_LENGTH = 4 + 4 + 8;
+  private static final int MAX_BATCH = 1024;
+  private static final String PREFIX = "messages-";
+  private static final String SUFFIX = ".log";
+
+  private final File directory;
+  private final DurabilityMode durability;
+  private final long commitWindowNanos;
+  private final ServerMetrics metrics;
+  private final Visitor committedListener;
+  // ReentrantLock 而不是 synchronized, 避免写盘时钉住虚拟线程
+  // appendLock 分配 LSN 并入队, writeLock 保护当前文件; 两者都要时先拿 appendLock
+  private final ReentrantLock appendLock = new ReentrantLock();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+  private File file;
+  private FileChannel channel;
+  private Thread writer;
+  private volatile boolean running = false;
+  // 写失败且无法截掉残留时记下原因, 之后拒绝追加, 否则新记录会跟在残缺的记录后面
+  private volatile IOException failure;
+  private long nextLsn = 1;
+
+  /**
+   * Receives the records of the log in order during {@link #open}.
+   */
+  @FunctionalInterface
+  public interface Visitor {
+    void apply(long lsn, Object record);
+  }
+
+  private static final class PendingRecord {
+    final Object record;
+    final ByteBuffer buffer;
+    final long lsn;
+    final long enqueuedAt = System.nanoTime();
+    final CompletableFuture<Long> committed = new CompletableFuture<>();
+
+    PendingRecord(Object record, ByteBuffer buffer, long lsn) {
+      this.record = record;
+      this.buffer = buffer;
+      this.lsn = lsn;
+    }
+  }
+
+  /**
+   * @param committedListener called in LSN order for every record once it is committed,
+   *     before its future completes and before the file it is in can be rotated away
+   */
+  public MessageLog(File directory, DurabilityMode durability, long commitWindowMillis,
+                    ServerMetrics metrics, Visitor committedListener) {
+    this.directory = directory;
+    this.durability = durability;
+    this.commitWindowNanos = TimeUnit.MILLISECONDS.toNanos(commitWindowMillis);
+    this.metrics = metrics;
+    this.committedListener = committedListener;
+  }
+
+  /**
+   * Replays every intact record of every log file, truncates a torn tail and opens the newest
+   * file for appending.
+   *
+   * @return the number of records replayed
+   */
+  public long open(Visitor visitor) throws IOException {
+    directory.mkdirs();
+    File legacy = new File(directory, "messages.log");
+    if (legacy.exists() && !legacy.renameTo(fileFor(1))) {
+      throw new IOException("Cannot migrate " + legacy);
+    }
+    List<File> files = files();
+    long records = 0;
+    long validLength = 0;
+    for (File logFile : files) {
+      validLength = 0;
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(logFile), 64 * 1024))) {
+        CRC32 crc = new CRC32();
+        while (true) {
+          int length;
+          int checksum;
+          long lsn;
+          byte[] payload;
+          try {
+            length = in.readInt();
+            checksum = in.readInt();
+            lsn = in.readLong();
+            if (length < 0 || length > logFile.length()) {
+              break;
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+          } catch (EOFException e) {
+            break;
+          }
+          crc.reset();
+          updateLong(crc, lsn);
+          crc.update(payload);
+          if ((int) crc.getValue() != checksum) {
+            break;
+          }
+          visitor.apply(lsn, BinaryCodec.decode(ByteBuffer.wrap(payload)));
+          nextLsn = Math.max(nextLsn, lsn + 1);
+          validLength += HEADER_LENGTH + length;
+          records++;
+        }
+      }
+    }
+    file = files.isEmpty() ? fileFor(nextLsn) : files.get(files.size() - 1);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    if (channel.size() > validLength) {
+      System.err.println("Truncating torn tail of " + file + " at offset " + validLength);
+      channel.truncate(validLength);
+    }
+    channel.position(validLength);
+    if (durability != DurabilityMode.SYNC) {
+      running = true;
+      writer = new Thread(this::writeBatches, "message-log-writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+    return records;
+  }
+
+  /**
+   * Appends one Message or Group.
+   *
+   * @return a future completed with the record's log sequence number once the record is
+   *     committed according to the durability mode
+   */
+  public CompletableFuture<Long> append(Object record) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write(new byte[HEADER_LENGTH]);
+    BinaryCodec.encode(record, out);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    appendLock.lock();
+    try {
+      if (failure != null) {
+        throw new IOException("Message log is unusable after a failed write", failure);
+      }
+      long lsn = nextLsn++;
+      seal(buffer, lsn);
+      if (durability == DurabilityMode.SYNC) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+          long position = channel.position();
+          try {
+            write(new ByteBuffer[] {buffer});
+            channel.force(false);
+          } catch (IOException e) {
+            discardFrom(position, e);
+            return CompletableFuture.failedFuture(e);
+          }
+          committedListener.apply(lsn, record);
+        } finally {
+          writeLock.unlock();
+        }
+        metrics.recordCommit(1, System.nanoTime() - start);
+        return CompletableFuture.completedFuture(lsn);
+      }
+      // 在锁内入队, 保证队列顺序与 LSN 顺序一致
+      PendingRecord pendingRecord = new PendingRecord(record, buffer, lsn);
+      pending.add(pendingRecord);
+      if (durability == DurabilityMode.ASYNC) {
+        pendingRecord.committed.complete(lsn);
+      }
+      return pendingRecord.committed;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  private void writeBatches() {
+    List<PendingRecord> batch = new ArrayList<>();
+    while (running || !pending.isEmpty()) {
+      try {
+        PendingRecord first = pending.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        // 等到提交窗口结束, 让同一窗口内的记录共享一次 fsync
+        long deadline = first.enqueuedAt + commitWindowNanos;
+        while (batch.size() < MAX_BATCH) {
+          long remaining = deadline - System.nanoTime();
+          PendingRecord next = remaining > 0
+              ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        commit(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void commit(List<PendingRecord> batch) {
+    long start = System.nanoTime();
+    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = batch.get(i).buffer;
+    }
+    writeLock.lock();
+    try {
+      long position = channel.position();
+      try {
+        if (failure != null) {
+          throw new IOException("Message log is unusable after a failed write", failure);
+        }
+        write(buffers);
+        channel.force(false);
+      } catch (IOException e) {
+        System.err.println("Error committing message log batch: " + e.getMessage());
+        discardFrom(position, e);
+        for (PendingRecord record : batch) {
+          record.committed.completeExceptionally(e);
+        }
+        return;
+      }
+      for (PendingRecord record : batch) {
+        committedListener.apply(record.lsn, record.record);
+      }
+    } catch (IOException e) {
+      // 读取位置失败, 还什么都没写
+      for (PendingRecord record : batch) {
+        record.committed.completeExceptionally(e);
+      }
+      return;
+    } finally {
+      writeLock.unlock();
+    }
+    metrics.recordCommit(batch.size(), System.nanoTime() - start);
+    // 在锁外完成 future, 转发等回调不占用写锁
+    for (PendingRecord record : batch) {
+      record.committed.complete(record.lsn);
+    }
+  }
+
+  /**
+   * Closes the current file and continues in a new one. Every record in the returned files
+   * has already been passed to the committed listener.
+   *
+   * @return the older log files, oldest first
+   */
+  public List<File> rotate() throws IOException {
+    appendLock.lock();
+    try {
+      writeLock.lock();
+      try {
+        List<File> sealed = files();
+        File next = fileFor(nextLsn);
+        if (next.equals(file)) {
+          // 上次轮转之后还没有新记录
+          sealed.remove(file);
+          return sealed;
+        }
+        channel.force(false);
+        channel.close();
+        file = next;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        return sealed;
+      } finally {
+        writeLock.unlock();
+      }
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Deletes log files returned by {@link #rotate} once a snapshot covers them.
+   */
+  public void delete(List<File> sealed) {
+    for (File logFile : sealed) {
+      if (!logFile.delete()) {
+        System.err.println("Cannot delete " + logFile);
+      }
+    }
+  }
+
+  private List<File> files() {
+    File[] files = directory.listFiles((dir, name) ->
+        name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+    List<File> result = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+    // 文件名中的 LSN 补齐到固定宽度, 按名字排序即按 LSN 排序
+    result.sort(null);
+    return result;
+  }
+
+  private File fileFor(long firstLsn) {
+    return new File(directory, PREFIX + String.format("%020d", firstLsn) + SUFFIX);
+  }
+
+  private void write(ByteBuffer[] buffers) throws IOException {
+    ByteBuffer last = buffers[buffers.length - 1];
+    while (last.hasRemaining()) {
+      channel.write(buffers);
+    }
+  }
+
+  /**
+   * Cuts off whatever a failed write left of its records, so that nothing after them is
+   * hidden behind a torn record, where recovery stops, and records whose appenders were told
+   * they failed do not come back. If that fails too, the log refuses further appends.
+   * Called with the write lock held.
+   */
+  private void discardFrom(long position, IOException cause) {
+    try {
+      channel.truncate(position);
+      channel.position(position);
+    } catch (IOException e) {
+      System.err.println("Cannot truncate " + file + " after a failed write: " + e.getMessage());
+      cause.addSuppressed(e);
+      failure = cause;
+    }
+  }
+
+  private static void seal(ByteBuffer buffer, long lsn) {
+    int length = buffer.limit() - HEADER_LENGTH;
+    CRC32 crc = new CRC32();
+    updateLong(crc, lsn);
+    crc.update(buffer.array(), HEADER_LENGTH, length);
+    buffer.putInt(0, length);
+    buffer.putInt(4, (int) crc.getValue());
+    buffer.putLong(8, lsn);
+  }
+
+  /**
+   * Commits everything still queued and closes the file.
+   */
+  public void close() throws IOException {
+    running = false;
+    if (writer != null) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    writeLock.lock();
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private static void updateLong(CRC32 crc, long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (value >>> shift));
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by a {@link NioEventLoop} instead of a dedicated thread.
+ * Reading, frame decoding and socket writes all happen on the owning event loop;
+ * other threads only enqueue frames. Steps that block on the disk run on the server's file
+ * worker, and the connection is not read meanwhile.
+ */
+public class NioClientHandler extends ClientHandler {
+  private static final int INITIAL_READ_BUFFER = 16 * 1024;
+
+  private final SocketChannel channel;
+  private final NioEventLoop eventLoop;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private SelectionKey key;
+  private ByteBuffer currentWrite;
+  private FileRegion currentRegion;
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+  private boolean readPaused; // 只在事件循环中访问
+
+  public NioClientHandler(ChatServer server, SocketChannel channel, NioEventLoop eventLoop) {
+    super(server);
+    this.channel = channel;
+    this.eventLoop = eventLoop;
+  }
+
+  void setKey(SelectionKey key) {
+    this.key = key;
+  }
+
+  @Override
+  protected void onFrameQueued() {
+    if (eventLoop.inEventLoop()) {
+      flushWrites();
+    } else if (flushScheduled.compareAndSet(false, true)) {
+      eventLoop.requestFlush(this);
+    }
+  }
+
+  @Override
+  protected boolean canSendFileRegions() {
+    return getWireFormat() == WireFormat.BINARY;
+  }
+
+  @Override
+  public void closeConnection(String reason) {
+    System.out.println("Closing connection of " + getClientName() + ": " + reason);
+    if (eventLoop.inEventLoop()) {
+      close();
+    } else {
+      eventLoop.execute(this::close);
+    }
+  }
+
+  /**
+   * Reads whatever is available and dispatches every complete frame. Event loop only.
+   */
+  void onReadable() {
+    try {
+      int n = channel.read(readBuffer);
+      if (n < 0) {
+        System.out.println("Client disconnected: " + describe());
+        close();
+        return;
+      }
+      dispatchFrames();
+    } catch (ClassNotFoundException e) {
+      System.out.println("Class not found");
+      close();
+    } catch (IOException e) {
+      System.out.println("Client disconnected: " + describe());
+      close();
+    }
+  }
+
+  /**
+   * Handles every complete frame in the read buffer, stopping early when one of them runs a
+   * blocking step. Event loop only.
+   */
+  private void dispatchFrames() throws IOException, ClassNotFoundException {
+    readBuffer.flip();
+    while (!readPaused && readBuffer.remaining() >= FrameCodec.HEADER_LENGTH) {
+      int length = readBuffer.getInt(readBuffer.position());
+      FrameCodec.checkLength(length);
+      if (readBuffer.remaining() < FrameCodec.HEADER_LENGTH + length) {
+        if (readBuffer.capacity() < FrameCodec.HEADER_LENGTH + length) {
+          readBuffer = grow(readBuffer, FrameCodec.HEADER_LENGTH + length);
+        }
+        break;
+      }
+      int start = readBuffer.position() + FrameCodec.HEADER_LENGTH;
+      readBuffer.position(start + length);
+      handleFrame(readBuffer.array(), start, length);
+    }
+    readBuffer.compact();
+  }
+
+  @Override
+  protected void runBlocking(Executor executor, BlockingStep io, BlockingStep then) {
+    // 在磁盘操作完成前不再读这个连接, 之后的帧等它完成再处理
+    readPaused = true;
+    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    executor.execute(() -> {
+      IOException failure = null;
+      try {
+        io.run();
+      } catch (IOException e) {
+        failure = e;
+      }
+      IOException error = failure;
+      eventLoop.execute(() -> resume(error, then));
+    });
+  }
+
+  private void resume(IOException error, BlockingStep then) {
+    if (closed.get()) {
+      return;
+    }
+    try {
+      if (error != null) {
+        throw error;
+      }
+      then.run();
+      readPaused = false;
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      dispatchFrames();
+    } catch (ClassNotFoundException e) {
+      System.out.println("Class not found");
+      close();
+    } catch (IOException e) {
+      System.out.println("Client disconnected: " + describe());
+      close();
+    }
+  }
+
+  /**
+   * Writes queued frames until the socket buffer fills up. Event loop only.
+   */
+  void flushWrites() {
+    flushScheduled.set(false);
+    if (closed.get()) {
+      return;
+    }
+    try {
+      while (true) {
+        if (currentWrite == null && currentRegion == null) {
+          Object frame = outbound.poll();
+          if (frame == null) {
+            break;
+          }
+          if (frame instanceof FileRegion) {
+            currentRegion = (FileRegion) frame;
+          } else {
+            currentWrite = ByteBuffer.wrap((byte[]) frame);
+          }
+        }
+        boolean written;
+        if (currentRegion != null) {
+          written = currentRegion.writeTo(channel);
+          if (written) {
+            currentRegion.release();
+            currentRegion = null;
+          }
+        } else {
+          channel.write(currentWrite);
+          written = !currentWrite.hasRemaining();
+          if (written) {
+            currentWrite = null;
+          }
+        }
+        if (!written) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    } catch (IOException e) {
+      System.out.println("Client disconnected: " + describe());
+      close();
+    }
+  }
+
+  void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    outbound.close();
+    if (currentRegion != null) {
+      currentRegion.release();
+      currentRegion = null;
+    }
+    onDisconnect();
+  }
+
+  @Override
+  public Socket getSocket() {
+    return channel.socket();
+  }
+
+  private String describe() {
+    Socket socket = channel.socket();
+    return socket.getInetAddress() == null ? "unknown" : socket.getInetAddress().getHostAddress();
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+    ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+    bigger.put(buffer);
+    bigger.flip();
+    return bigger;
+  }
+}
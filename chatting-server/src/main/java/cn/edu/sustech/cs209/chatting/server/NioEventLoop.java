@@ -0,0 +1,122 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many {@link NioClientHandler}s.
+ */
+public class NioEventLoop implements Runnable {
+  private final ChatServer server;
+  private final Selector selector;
+  private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+  private final Queue<NioClientHandler> pendingFlushes = new ConcurrentLinkedQueue<>();
+  private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+  private volatile Thread thread;
+  private volatile boolean running = true;
+
+  public NioEventLoop(ChatServer server) throws IOException {
+    this.server = server;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Hands a freshly accepted channel to this loop. Safe to call from any thread.
+   */
+  public void register(SocketChannel channel) {
+    pendingChannels.add(channel);
+    selector.wakeup();
+  }
+
+  void requestFlush(NioClientHandler handler) {
+    pendingFlushes.add(handler);
+    selector.wakeup();
+  }
+
+  /**
+   * Runs a task on the event loop thread.
+   */
+  void execute(Runnable task) {
+    pendingTasks.add(task);
+    selector.wakeup();
+  }
+
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  @Override
+  public void run() {
+    thread = Thread.currentThread();
+    try {
+      while (running) {
+        selector.select();
+        registerPendingChannels();
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+          task.run();
+        }
+        NioClientHandler flush;
+        while ((flush = pendingFlushes.poll()) != null) {
+          flush.flushWrites();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          NioClientHandler handler = (NioClientHandler) key.attachment();
+          if (key.isValid() && key.isReadable()) {
+            handler.onReadable();
+          }
+          if (key.isValid() && key.isWritable()) {
+            handler.flushWrites();
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      if (running) {
+        e.printStackTrace();
+      }
+    } finally {
+      for (SelectionKey key : new ArrayList<>(selector.keys())) {
+        ((NioClientHandler) key.attachment()).close();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void registerPendingChannels() {
+    SocketChannel channel;
+    while ((channel = pendingChannels.poll()) != null) {
+      try {
+        channel.configureBlocking(false);
+        NioClientHandler handler = new NioClientHandler(server, channel, this);
+        handler.setKey(channel.register(selector, SelectionKey.OP_READ, handler));
+        server.addClient(handler);
+      } catch (IOException e) {
+        e.printStackTrace();
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // 已经无法使用的连接，直接丢弃
+        }
+      }
+    }
+  }
+
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+}
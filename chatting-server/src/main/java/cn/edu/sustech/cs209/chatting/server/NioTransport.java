@@ -0,0 +1,43 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Selector-based transport: the calling thread accepts connections and spreads them
+ * round-robin over a fixed set of {@link NioEventLoop} threads.
+ */
+public class NioTransport {
+  private final NioEventLoop[] eventLoops;
+  private int next = 0;
+
+  public NioTransport(ChatServer server, int threads) throws IOException {
+    eventLoops = new NioEventLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      eventLoops[i] = new NioEventLoop(server);
+      Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Accepts connections until the server channel is closed.
+   */
+  public void serve(ServerSocketChannel serverChannel) throws IOException {
+    while (true) {
+      SocketChannel channel = serverChannel.accept();
+      System.out.println("New client connected: "
+          + channel.socket().getInetAddress().getHostAddress());
+      eventLoops[next].register(channel);
+      next = (next + 1) % eventLoops.length;
+    }
+  }
+
+  public void shutdown() {
+    for (NioEventLoop eventLoop : eventLoops) {
+      eventLoop.shutdown();
+    }
+  }
+}
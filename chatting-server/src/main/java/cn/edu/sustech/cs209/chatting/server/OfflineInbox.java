@@ -0,0 +1,520 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.BinaryCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable per-user queue of messages that could not be delivered because the recipient was
+ * offline; drained when the user logs in.
+ *
+ * <p>Each user has one append-only file of {@code length:int crc:int enqueuedAt:long payload}
+ * records. An inbox holds the newest {@code capacity} messages: a full inbox keeps appending,
+ * and the file is compacted down to the newest messages once it holds twice as many, so a
+ * message costs one append however full the inbox is. Messages older than the time-to-live
+ * are skipped when the inbox is read and dropped when it is trimmed or compacted.
+ *
+ * <p>Reading an inbox does not empty it: messages are trimmed once they have been handed to
+ * the session, so a crash or a dropped connection during delivery does not lose them.
+ * Forcing an inbox to disk is done by a writer thread, which batches the fsyncs of messages
+ * queued in the meantime. Group messages fanned out to offline members are appended by the
+ * same thread, in one write per recipient for everything queued since its last write.
+ */
+public class OfflineInbox {
+  static final int HEADER_LENGTH = 4 + 4 + 8;
+  private static final String SUFFIX = ".inbox";
+
+  private final File directory;
+  private final int capacity;
+  private final long ttlMillis;
+  private final ServerMetrics metrics;
+  private final ConcurrentHashMap<String, UserInbox> inboxes = new ConcurrentHashMap<>();
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "inbox-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * A queued message and its position in the inbox, which {@link #trim} is given once the
+   * message has been delivered.
+   */
+  static final class Entry {
+    final long enqueuedAt;
+    final Message message;
+    long position;
+
+    Entry(long enqueuedAt, Message message) {
+      this.enqueuedAt = enqueuedAt;
+      this.message = message;
+    }
+
+    Message getMessage() {
+      return message;
+    }
+
+    long getPosition() {
+      return position;
+    }
+  }
+
+  private final class UserInbox {
+    final File file;
+    // ReentrantLock 而不是 synchronized, 避免写盘时钉住虚拟线程
+    final ReentrantLock lock = new ReentrantLock();
+    // 文件中的记录数, 可能超过容量, 压缩前最旧的那些已不算在收件箱里
+    int records;
+    // 文件中第一条记录的位置; 只在内存中, 读出的位置在重启前有效
+    long base;
+    final List<CompletableFuture<Void>> unforced = new ArrayList<>();
+    // 等写线程追加的消息
+    final List<Entry> pending = new ArrayList<>();
+
+    UserInbox(File file) throws IOException {
+      this.file = file;
+      this.records = file.exists() ? read().size() : 0;
+    }
+
+    int depth() {
+      return Math.min(records, capacity);
+    }
+
+    /**
+     * Reads every intact record, truncating a torn tail.
+     */
+    List<Entry> read() throws IOException {
+      List<Entry> entries = new ArrayList<>();
+      if (!file.exists()) {
+        return entries;
+      }
+      ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      CRC32 crc = new CRC32();
+      while (in.remaining() >= HEADER_LENGTH) {
+        int start = in.position();
+        int length = in.getInt();
+        int checksum = in.getInt();
+        long enqueuedAt = in.getLong();
+        if (length < 0 || length > in.remaining()) {
+          in.position(start);
+          break;
+        }
+        crc.reset();
+        crc.update(in.array(), start + 8, 8 + length);
+        if ((int) crc.getValue() != checksum) {
+          in.position(start);
+          break;
+        }
+        ByteBuffer payload = in.slice();
+        payload.limit(length);
+        Entry entry = new Entry(enqueuedAt, (Message) BinaryCodec.decode(payload));
+        entry.position = base + entries.size();
+        entries.add(entry);
+        in.position(in.position() + length);
+      }
+      if (in.position() < file.length()) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+          channel.truncate(in.position());
+        }
+      }
+      return entries;
+    }
+
+    void append(List<Entry> entries, boolean force) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      CRC32 crc = new CRC32();
+      for (Entry entry : entries) {
+        int start = bytes.size();
+        out.write(new byte[HEADER_LENGTH]);
+        BinaryCodec.encode(entry.message, out);
+        byte[] record = bytes.toByteArray();
+        ByteBuffer header = ByteBuffer.wrap(record, start, HEADER_LENGTH);
+        header.putInt(record.length - start - HEADER_LENGTH);
+        header.putInt(0);
+        header.putLong(entry.enqueuedAt);
+        crc.reset();
+        crc.update(record, start + 8, record.length - start - 8);
+        ByteBuffer.wrap(record, start + 4, 4).putInt((int) crc.getValue());
+        bytes.reset();
+        bytes.write(record);
+      }
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        if (force) {
+          channel.force(false);
+        }
+      }
+    }
+
+    /**
+     * Rewrites the file with the given entries only.
+     */
+    void rewrite(List<Entry> entries) throws IOException {
+      File temp = new File(file.getPath() + ".tmp");
+      Files.deleteIfExists(temp.toPath());
+      UserInbox writer = new UserInbox(temp);
+      writer.append(entries, true);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  public OfflineInbox(File directory, int capacity, long ttlMillis, ServerMetrics metrics) {
+    this.directory = directory;
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Loads the depth of every existing inbox, so that metrics are right from the start.
+   */
+  public void open() throws IOException {
+    directory.mkdirs();
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      throw new IOException("Cannot list " + directory);
+    }
+    for (File file : files) {
+      UserInbox inbox = new UserInbox(file);
+      inboxes.put(file.getName(), inbox);
+    }
+  }
+
+  /**
+   * Queues a message for a user while {@code offline} says the user has no session. It is
+   * checked under the inbox lock, and a session reads the inbox only after registering, so
+   * a user logging in meanwhile either is seen here or finds the message in its inbox.
+   * The message is not forced to disk; see {@link #force}.
+   *
+   * @return false if the user turned out to be online and nothing was queued
+   */
+  public boolean offer(String username, Message message, BooleanSupplier offline)
+      throws IOException {
+    UserInbox inbox = inboxOf(username);
+    inbox.lock.lock();
+    try {
+      if (!offline.getAsBoolean()) {
+        return false;
+      }
+      append(inbox, List.of(new Entry(System.currentTimeMillis(), message)));
+      return true;
+    } finally {
+      inbox.lock.unlock();
+    }
+  }
+
+  /**
+   * Like {@link #offer}, but leaves the append to the writer thread, so that the caller does
+   * not wait for the file; messages are not forced to disk either. The writer checks
+   * {@code offline} again, and hands the messages to {@code online} in order if the user has
+   * logged in by then. Until it has, later messages for the user are queued behind them too,
+   * so that none overtakes them.
+   *
+   * @return false if the user is online with nothing queued, and the caller delivers
+   */
+  public boolean offerLater(String username, Message message, BooleanSupplier offline,
+                            Consumer<List<Message>> online) throws IOException {
+    UserInbox inbox = inboxes.get(key(username));
+    if (inbox == null) {
+      if (!offline.getAsBoolean()) {
+        return false;
+      }
+      inbox = inboxOf(username);
+    }
+    UserInbox queued = inbox;
+    inbox.lock.lock();
+    try {
+      if (inbox.pending.isEmpty() && !offline.getAsBoolean()) {
+        return false;
+      }
+      inbox.pending.add(new Entry(System.currentTimeMillis(), message));
+      if (inbox.pending.size() == 1) {
+        writer.execute(() -> appendPending(queued, offline, online));
+      }
+      return true;
+    } finally {
+      inbox.lock.unlock();
+    }
+  }
+
+  private void appendPending(UserInbox inbox, BooleanSupplier offline,
+                             Consumer<List<Message>> online) {
+    inbox.lock.lock();
+    try {
+      List<Entry> entries = new ArrayList<>(inbox.pending);
+      if (offline.getAsBoolean()) {
+        append(inbox, entries);
+      } else {
+        List<Message> messages = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+          messages.add(entry.message);
+        }
+        // 持锁交给会话, 之后的消息看到队列为空时, 这些已经在会话的发送队列里了
+        online.accept(messages);
+      }
+    } catch (IOException e) {
+      // 群消息在消息日志里还有, 客户端同步时能补上
+      System.err.println("Error appending to inbox " + inbox.file + ": " + e.getMessage());
+    } finally {
+      inbox.pending.clear();
+      inbox.lock.unlock();
+    }
+  }
+
+  /**
+   * Appends entries and drops the oldest ones past the capacity. Called with the lock held.
+   */
+  private void append(UserInbox inbox, List<Entry> entries) throws IOException {
+    inbox.append(entries, false);
+    inbox.records += entries.size();
+    if (inbox.records > capacity) {
+      // 最旧的不再算在收件箱里, 文件攒到两倍容量时才压缩
+      metrics.getInboxDropped().add(Math.min(entries.size(), inbox.records - capacity));
+      if (inbox.records >= 2 * capacity) {
+        compact(inbox);
+      }
+    }
+  }
+
+  /**
+   * Forces a user's inbox to disk on the writer thread, for messages whose sole copy is the
+   * inbox; group messages are already durable in the message log. Requests made while one is
+   * pending share its fsync.
+   *
+   * @return a future completed once everything queued before the call is on disk
+   */
+  public CompletableFuture<Void> force(String username) throws IOException {
+    UserInbox inbox = inboxOf(username);
+    CompletableFuture<Void> forced = new CompletableFuture<>();
+    inbox.lock.lock();
+    try {
+      inbox.unforced.add(forced);
+      if (inbox.unforced.size() == 1) {
+        writer.execute(() -> forceNow(inbox));
+      }
+    } finally {
+      inbox.lock.unlock();
+    }
+    return forced;
+  }
+
+  private void forceNow(UserInbox inbox) {
+    List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    FileChannel channel = null;
+    IOException failure = null;
+    inbox.lock.lock();
+    try {
+      waiting.addAll(inbox.unforced);
+      inbox.unforced.clear();
+      // 文件已被删除说明消息都投递了; 被重写的文件在重写时已落盘
+      if (inbox.file.exists()) {
+        channel = FileChannel.open(inbox.file.toPath(), StandardOpenOption.WRITE);
+      }
+    } catch (IOException e) {
+      failure = e;
+    } finally {
+      inbox.lock.unlock();
+    }
+    if (channel != null) {
+      // 在锁外 fsync, 写收件箱的线程不用等
+      try (FileChannel forcing = channel) {
+        forcing.force(false);
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    for (CompletableFuture<Void> forced : waiting) {
+      if (failure == null) {
+        forced.complete(null);
+      } else {
+        forced.completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * Returns the unexpired messages queued for the user, oldest first, without removing
+   * them; {@link #trim} removes them once delivered.
+   */
+  public List<Entry> peek(String username) throws IOException {
+    UserInbox inbox = inboxes.get(key(username));
+    if (inbox == null) {
+      return new ArrayList<>();
+    }
+    inbox.lock.lock();
+    try {
+      if (inbox.records == 0) {
+        return new ArrayList<>();
+      }
+      List<Entry> entries = inbox.read();
+      return dropExpired(entries.subList(Math.max(0, entries.size() - capacity),
+          entries.size()));
+    } finally {
+      inbox.lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the messages before {@code position}, i.e. everything up to and including a
+   * delivered entry if given its position plus one. Messages queued since they were read
+   * stay.
+   */
+  public void trim(String username, long position) throws IOException {
+    UserInbox inbox = inboxes.get(key(username));
+    if (inbox == null) {
+      return;
+    }
+    inbox.lock.lock();
+    try {
+      long trimmed = Math.min(position - inbox.base, inbox.records);
+      if (trimmed <= 0) {
+        return;
+      }
+      if (trimmed == inbox.records) {
+        Files.deleteIfExists(inbox.file.toPath());
+      } else {
+        List<Entry> entries = inbox.read();
+        inbox.rewrite(entries.subList((int) trimmed, entries.size()));
+      }
+      inbox.base += trimmed;
+      inbox.records -= (int) trimmed;
+    } finally {
+      inbox.lock.unlock();
+    }
+  }
+
+  /**
+   * Puts back messages that were delivered but never confirmed by the client. They are
+   * appended, so that positions read before stay valid, and forced to disk in the
+   * background.
+   */
+  public void restore(String username, List<Message> messages) throws IOException {
+    if (messages.isEmpty()) {
+      return;
+    }
+    UserInbox inbox = inboxOf(username);
+    inbox.lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      List<Entry> entries = new ArrayList<>();
+      for (Message message : messages) {
+        entries.add(new Entry(now, message));
+      }
+      append(inbox, entries);
+    } finally {
+      inbox.lock.unlock();
+    }
+    force(username).whenComplete((ignored, error) -> {
+      if (error != null) {
+        System.err.println("Error forcing inbox of " + username + ": " + error.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Rewrites an inbox with its newest unexpired messages only. Called with the lock held.
+   */
+  private void compact(UserInbox inbox) throws IOException {
+    List<Entry> entries = inbox.read();
+    int dropped = Math.max(0, entries.size() - capacity);
+    // 只去掉开头的过期消息, 保留下来的消息位置才能连续
+    long deadline = System.currentTimeMillis() - ttlMillis;
+    int expired = 0;
+    while (dropped < entries.size() && entries.get(dropped).enqueuedAt < deadline) {
+      dropped++;
+      expired++;
+    }
+    metrics.getInboxExpired().add(expired);
+    inbox.rewrite(entries.subList(dropped, entries.size()));
+    inbox.base += dropped;
+    inbox.records = entries.size() - dropped;
+  }
+
+  /**
+   * Waits for pending fsyncs.
+   */
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Total number of queued messages over all users.
+   */
+  public long totalDepth() {
+    long total = 0;
+    for (UserInbox inbox : inboxes.values()) {
+      total += inbox.depth();
+    }
+    return total;
+  }
+
+  /**
+   * Number of users with at least one queued message.
+   */
+  public int nonEmptyInboxes() {
+    int count = 0;
+    for (UserInbox inbox : inboxes.values()) {
+      if (inbox.depth() > 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private List<Entry> dropExpired(List<Entry> entries) {
+    long deadline = System.currentTimeMillis() - ttlMillis;
+    List<Entry> live = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      if (entry.enqueuedAt >= deadline) {
+        live.add(entry);
+      }
+    }
+    metrics.getInboxExpired().add(entries.size() - live.size());
+    return live;
+  }
+
+  private UserInbox inboxOf(String username) throws IOException {
+    String key = key(username);
+    UserInbox inbox = inboxes.get(key);
+    if (inbox == null) {
+      inboxes.putIfAbsent(key, new UserInbox(new File(directory, key)));
+      inbox = inboxes.get(key);
+    }
+    return inbox;
+  }
+
+  private static String key(String username) {
+    return URLEncoder.encode(username, StandardCharsets.UTF_8).replace(".", "%2E") + SUFFIX;
+  }
+}
@@ -0,0 +1,334 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Any thread may offer; exactly one writer drains it, so frames never interleave.
+ *
+ * <p>An item is either a frame as {@code byte[]} or a {@link FileRegion}, whose content is
+ * still on disk; a region that is dropped or spilled is released here.
+ *
+ * <p>Frames that overflow with {@link OverflowPolicy#SPILL_TO_DISK} wait behind the ones in
+ * memory. The lock only guards memory: a task on the spill executor writes them to the
+ * spill file and reads them back once the writer has made room, then calls
+ * {@code onRefill}, so that neither offering nor polling waits for the disk.
+ */
+public class OutboundQueue {
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final File spillDirectory;
+  private final ServerMetrics metrics;
+  private final Executor spillExecutor;
+  private final Runnable onRefill;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final ArrayDeque<Object> frames = new ArrayDeque<>();
+  // 等溢出任务写入溢出文件的帧, 排在文件里的帧后面
+  private final ArrayDeque<Object> overflow = new ArrayDeque<>();
+  // 排在内存队列后面的帧数: overflow 里的, 正在写的和文件里的
+  private int behind = 0;
+  // 溢出任务是否在运行; 溢出文件只由它读写
+  private boolean moving = false;
+  private SpillFile spill;
+  private IOException spillFailure;
+  private boolean closed = false;
+
+  public OutboundQueue(int capacity, OverflowPolicy policy, File spillDirectory,
+                       ServerMetrics metrics, Executor spillExecutor, Runnable onRefill) {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.spillDirectory = spillDirectory;
+    this.metrics = metrics;
+    this.spillExecutor = spillExecutor;
+    this.onRefill = onRefill;
+  }
+
+  /**
+   * Queues a frame, applying the overflow policy if the queue is full.
+   *
+   * @return false if the policy says the client has to be disconnected
+   */
+  public boolean offer(byte[] frame) {
+    return offerItem(frame);
+  }
+
+  /**
+   * Queues a frame sent from a file, applying the overflow policy if the queue is full.
+   *
+   * @return false if the policy says the client has to be disconnected
+   */
+  public boolean offer(FileRegion region) {
+    return offerItem(region);
+  }
+
+  private boolean offerItem(Object frame) {
+    boolean start;
+    lock.lock();
+    try {
+      if (closed) {
+        release(frame);
+        return true;
+      }
+      if (spillFailure != null) {
+        release(frame);
+        return false;
+      }
+      if (behind > 0) {
+        // 已经有帧溢出, 新帧也必须排在它们后面
+        start = spill(frame);
+      } else if (frames.size() < capacity) {
+        frames.add(frame);
+        notEmpty.signal();
+        return true;
+      } else {
+        switch (policy) {
+          case DROP_OLDEST:
+            release(frames.poll());
+            frames.add(frame);
+            metrics.getFramesDropped().increment();
+            return true;
+          case SPILL_TO_DISK:
+            start = spill(frame);
+            break;
+          default:
+            return false;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (start) {
+      spillExecutor.execute(this::moveFrames);
+    }
+    return true;
+  }
+
+  /**
+   * Puts a frame behind the others for the spill task. Called with the lock held.
+   *
+   * @return whether the spill task has to be started
+   */
+  private boolean spill(Object frame) {
+    overflow.add(frame);
+    behind++;
+    metrics.getFramesSpilled().increment();
+    return startMoving();
+  }
+
+  private boolean startMoving() {
+    if (moving) {
+      return false;
+    }
+    moving = true;
+    return true;
+  }
+
+  /**
+   * The spill task: writes overflowing frames to the spill file and moves frames back into
+   * memory while there is room, doing the file I/O without the lock.
+   */
+  private void moveFrames() {
+    boolean refilled = false;
+    // 队列关闭或写文件失败后 moving 保持为 true, 溢出文件由这里删除
+    boolean discard = false;
+    List<Object> batch = new ArrayList<>();
+    while (true) {
+      int room;
+      lock.lock();
+      try {
+        if (closed) {
+          discard = true;
+          break;
+        }
+        batch.addAll(overflow);
+        overflow.clear();
+        room = capacity - frames.size();
+        int onDisk = spill == null ? 0 : spill.pending();
+        if (batch.isEmpty() && (onDisk == 0 || room == 0)) {
+          moving = false;
+          break;
+        }
+      } finally {
+        lock.unlock();
+      }
+      List<Object> moved = new ArrayList<>();
+      try {
+        for (Object frame : batch) {
+          if (room > moved.size() && (spill == null || spill.pending() == 0)) {
+            // 文件是空的, 还有空位的话不必绕道磁盘
+            moved.add(frame);
+            continue;
+          }
+          if (spill == null) {
+            spill = new SpillFile(spillDirectory);
+          }
+          if (frame instanceof FileRegion) {
+            FileRegion region = (FileRegion) frame;
+            try {
+              spill.append(region.toFrame());
+            } finally {
+              region.release();
+            }
+          } else {
+            spill.append((byte[]) frame);
+          }
+        }
+        batch.clear();
+        while (room > moved.size() && spill != null && spill.pending() > 0) {
+          moved.add(spill.next());
+        }
+      } catch (IOException e) {
+        System.err.println("Error spilling outbound frames: " + e.getMessage());
+        lock.lock();
+        try {
+          spillFailure = e;
+          notEmpty.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        discard = true;
+        break;
+      }
+      lock.lock();
+      try {
+        if (closed) {
+          moved.forEach(OutboundQueue::release);
+          discard = true;
+          break;
+        }
+        frames.addAll(moved);
+        behind -= moved.size();
+        if (!moved.isEmpty()) {
+          notEmpty.signal();
+          refilled = true;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    batch.forEach(OutboundQueue::release);
+    if (discard) {
+      deleteSpill();
+    }
+    if (refilled) {
+      onRefill.run();
+    }
+  }
+
+  /**
+   * Returns the next frame or {@link FileRegion} without blocking, or null if there is none.
+   * The caller releases a region once it is written.
+   *
+   * @throws IOException if frames were lost because spilling them failed
+   */
+  public Object poll() throws IOException {
+    Object frame;
+    boolean start = false;
+    lock.lock();
+    try {
+      if (spillFailure != null) {
+        throw new IOException("Outbound frames lost", spillFailure);
+      }
+      frame = frames.poll();
+      if (behind > 0 && frames.size() <= capacity / 2 && !closed) {
+        // 内存里的帧过半发出后就开始从文件读回来
+        start = startMoving();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (start) {
+      spillExecutor.execute(this::moveFrames);
+    }
+    return frame;
+  }
+
+  /**
+   * Waits for the next frame or {@link FileRegion}.
+   *
+   * @return the frame, or null once the queue has been closed
+   */
+  public Object take() throws InterruptedException, IOException {
+    lock.lock();
+    try {
+      while (!closed && spillFailure == null && frames.isEmpty()) {
+        notEmpty.await();
+      }
+      if (closed) {
+        return null;
+      }
+    } finally {
+      lock.unlock();
+    }
+    // 在锁外取, 以免持锁启动溢出任务
+    return poll();
+  }
+
+  public boolean isEmpty() {
+    return depth() == 0;
+  }
+
+  /**
+   * Number of frames waiting, in memory and on disk.
+   */
+  public int depth() {
+    lock.lock();
+    try {
+      return frames.size() + behind;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      for (Object frame : frames) {
+        release(frame);
+      }
+      frames.clear();
+      for (Object frame : overflow) {
+        release(frame);
+      }
+      overflow.clear();
+      // 溢出任务还在运行的话由它删除溢出文件
+      if (!moving) {
+        deleteSpill();
+      }
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void deleteSpill() {
+    if (spill != null) {
+      spill.delete();
+      spill = null;
+    }
+  }
+
+  private static void release(Object frame) {
+    if (frame instanceof FileRegion) {
+      ((FileRegion) frame).release();
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+/**
+ * What a session's outbound queue does when the client reads slower than it is sent to.
+ */
+public enum OverflowPolicy {
+  DROP_OLDEST,   // 丢弃最早的帧
+  DISCONNECT,    // 断开慢客户端
+  SPILL_TO_DISK; // 溢出到磁盘文件, 之后按顺序发送
+
+  public static OverflowPolicy parse(String value) {
+    return OverflowPolicy.valueOf(value.trim().toUpperCase());
+  }
+}
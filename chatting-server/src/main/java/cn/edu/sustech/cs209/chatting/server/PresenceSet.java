@@ -0,0 +1,87 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The users online, with a version that every join or leave bumps. The latest changes are
+ * kept in a bounded log, so that a client holding an older version is sent only what changed
+ * since; a client too far behind gets the whole set again.
+ *
+ * <p>Versions are only meaningful within one run of the server, which the epoch identifies.
+ * A snapshot is {@code "epoch\tversion"} followed by one username per line; a delta is the
+ * epoch followed by one {@code "version\t+name"} or {@code "version\t-name"} line per change.
+ */
+public class PresenceSet {
+  private final long epoch = System.currentTimeMillis();
+  private final Set<String> online = new HashSet<>();
+  private final ArrayDeque<String> changes = new ArrayDeque<>();
+  private final int historyLimit;
+  private long version;
+
+  /**
+   * @param historyLimit how many of the latest changes are kept for deltas
+   */
+  public PresenceSet(int historyLimit) {
+    this.historyLimit = historyLimit;
+  }
+
+  public synchronized void join(String name) {
+    if (online.add(name)) {
+      record('+', name);
+    }
+  }
+
+  public synchronized void leave(String name) {
+    if (online.remove(name)) {
+      record('-', name);
+    }
+  }
+
+  private void record(char sign, String name) {
+    version++;
+    changes.addLast(version + "\t" + sign + name);
+    if (changes.size() > historyLimit) {
+      changes.removeFirst();
+    }
+  }
+
+  public long getEpoch() {
+    return epoch;
+  }
+
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  public synchronized String snapshot() {
+    StringBuilder data = new StringBuilder().append(epoch).append('\t').append(version);
+    for (String name : online) {
+      data.append('\n').append(name);
+    }
+    return data.toString();
+  }
+
+  /**
+   * Returns the changes after version {@code from} up to {@code to}.
+   *
+   * @return the delta, or null if the log no longer reaches back to {@code from}
+   */
+  public synchronized String delta(long from, long to) {
+    long oldest = version - changes.size();
+    if (from < oldest || from > to || to > version) {
+      return null;
+    }
+    StringBuilder data = new StringBuilder().append(epoch);
+    Iterator<String> iterator = changes.iterator();
+    for (long v = oldest + 1; v <= to; v++) {
+      String change = iterator.next();
+      if (v > from) {
+        data.append('\n').append(change);
+      }
+    }
+    return data.toString();
+  }
+}
@@ -0,0 +1,454 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.io.File;
+
+/**
+ * Startup options of the chat server, read from {@code -Dchatting.*} system properties.
+ */
+public class ServerConfig {
+  private String host = "10.25.0.92";
+  private int port = 8888;
+  private ServerMode mode = ServerMode.BLOCKING;
+  private int eventLoopThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+  private int outboundCapacity = 1024;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+  private File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "chatting-spill");
+  private int metricsIntervalSeconds = 0;
+  private WireFormat wireFormat = WireFormat.BINARY;
+  private File dataDirectory = new File("chatting-server/src/main/resources");
+  private DurabilityMode durability = DurabilityMode.GROUP_COMMIT;
+  private int commitWindowMillis = 2;
+  private int historyRecentLimit = 100;
+  private int historySegmentBytes = 16 * 1024 * 1024;
+  private int historyOpenGroups = 256;
+  private int historyPageSize = 50;
+  private int historyLoginMessages = 20;
+  private int loginCacheGroups = 4096;
+  private int syncMaxMessages = 500;
+  private int snapshotIntervalSeconds = 300;
+  private int inboxCapacity = 1000;
+  private int inboxTtlHours = 168;
+  private int inboxBatchSize = 100;
+  private int dedupWindow = 1024;
+  private int dedupTtlMinutes = 10;
+  private int credentialIterations = 100_000;
+  private long fileMaxBytes = 1L << 30;
+  private int thumbnailSize = 200;
+  private int presenceIntervalMillis = 250;
+  private int presenceHistory = 1024;
+  private int heartbeatIntervalSeconds = 30;
+  private int idleTimeoutSeconds = 90;
+
+  public static ServerConfig fromSystemProperties() {
+    ServerConfig config = new ServerConfig();
+    config.setHost(System.getProperty("chatting.host", config.getHost()));
+    config.setPort(Integer.getInteger("chatting.port", config.getPort()));
+    String mode = System.getProperty("chatting.mode");
+    if (mode != null) {
+      config.setMode(ServerMode.parse(mode));
+    }
+    config.setEventLoopThreads(Integer.getInteger("chatting.eventLoops",
+        config.getEventLoopThreads()));
+    config.setOutboundCapacity(Integer.getInteger("chatting.outbound.capacity",
+        config.getOutboundCapacity()));
+    String policy = System.getProperty("chatting.outbound.policy");
+    if (policy != null) {
+      config.setOverflowPolicy(OverflowPolicy.parse(policy));
+    }
+    String spillDirectory = System.getProperty("chatting.outbound.spillDir");
+    if (spillDirectory != null) {
+      config.setSpillDirectory(new File(spillDirectory));
+    }
+    config.setMetricsIntervalSeconds(Integer.getInteger("chatting.metrics.interval",
+        config.getMetricsIntervalSeconds()));
+    config.setWireFormat(WireFormat.fromSystemProperties());
+    String dataDirectory = System.getProperty("chatting.dataDir");
+    if (dataDirectory != null) {
+      config.setDataDirectory(new File(dataDirectory));
+    }
+    String durability = System.getProperty("chatting.log.durability");
+    if (durability != null) {
+      config.setDurability(DurabilityMode.parse(durability));
+    }
+    config.setCommitWindowMillis(Integer.getInteger("chatting.log.commitWindowMs",
+        config.getCommitWindowMillis()));
+    config.setHistoryRecentLimit(Integer.getInteger("chatting.history.recent",
+        config.getHistoryRecentLimit()));
+    config.setHistorySegmentBytes(Integer.getInteger("chatting.history.segmentBytes",
+        config.getHistorySegmentBytes()));
+    config.setHistoryOpenGroups(Integer.getInteger("chatting.history.openGroups",
+        config.getHistoryOpenGroups()));
+    config.setHistoryPageSize(Integer.getInteger("chatting.history.pageSize",
+        config.getHistoryPageSize()));
+    config.setHistoryLoginMessages(Integer.getInteger("chatting.history.loginMessages",
+        config.getHistoryLoginMessages()));
+    config.setLoginCacheGroups(Integer.getInteger("chatting.history.loginCache",
+        config.getLoginCacheGroups()));
+    config.setSyncMaxMessages(Integer.getInteger("chatting.sync.maxMessages",
+        config.getSyncMaxMessages()));
+    config.setSnapshotIntervalSeconds(Integer.getInteger("chatting.snapshot.interval",
+        config.getSnapshotIntervalSeconds()));
+    config.setInboxCapacity(Integer.getInteger("chatting.inbox.capacity",
+        config.getInboxCapacity()));
+    config.setInboxTtlHours(Integer.getInteger("chatting.inbox.ttlHours",
+        config.getInboxTtlHours()));
+    config.setInboxBatchSize(Integer.getInteger("chatting.inbox.batch",
+        config.getInboxBatchSize()));
+    config.setDedupWindow(Integer.getInteger("chatting.dedup.window", config.getDedupWindow()));
+    config.setDedupTtlMinutes(Integer.getInteger("chatting.dedup.ttlMinutes",
+        config.getDedupTtlMinutes()));
+    config.setCredentialIterations(Integer.getInteger("chatting.credentials.iterations",
+        config.getCredentialIterations()));
+    config.setFileMaxBytes(Long.getLong("chatting.file.maxBytes", config.getFileMaxBytes()));
+    config.setThumbnailSize(Integer.getInteger("chatting.thumbnail.size",
+        config.getThumbnailSize()));
+    config.setPresenceIntervalMillis(Integer.getInteger("chatting.presence.intervalMs",
+        config.getPresenceIntervalMillis()));
+    config.setPresenceHistory(Integer.getInteger("chatting.presence.history",
+        config.getPresenceHistory()));
+    config.setHeartbeatIntervalSeconds(Integer.getInteger("chatting.heartbeat.interval",
+        config.getHeartbeatIntervalSeconds()));
+    config.setIdleTimeoutSeconds(Integer.getInteger("chatting.heartbeat.idleTimeout",
+        config.getIdleTimeoutSeconds()));
+    return config;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  public ServerMode getMode() {
+    return mode;
+  }
+
+  public void setMode(ServerMode mode) {
+    this.mode = mode;
+  }
+
+  public int getEventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  public void setEventLoopThreads(int eventLoopThreads) {
+    this.eventLoopThreads = eventLoopThreads;
+  }
+
+  public int getOutboundCapacity() {
+    return outboundCapacity;
+  }
+
+  public void setOutboundCapacity(int outboundCapacity) {
+    this.outboundCapacity = outboundCapacity;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  public void setSpillDirectory(File spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  public int getMetricsIntervalSeconds() {
+    return metricsIntervalSeconds;
+  }
+
+  public void setMetricsIntervalSeconds(int metricsIntervalSeconds) {
+    this.metricsIntervalSeconds = metricsIntervalSeconds;
+  }
+
+  /**
+   * Format used towards a client until it has sent its first frame.
+   */
+  public WireFormat getWireFormat() {
+    return wireFormat;
+  }
+
+  public void setWireFormat(WireFormat wireFormat) {
+    this.wireFormat = wireFormat;
+  }
+
+  /**
+   * Where groups, credentials and the message log are stored.
+   */
+  public File getDataDirectory() {
+    return dataDirectory;
+  }
+
+  public void setDataDirectory(File dataDirectory) {
+    this.dataDirectory = dataDirectory;
+  }
+
+  public DurabilityMode getDurability() {
+    return durability;
+  }
+
+  public void setDurability(DurabilityMode durability) {
+    this.durability = durability;
+  }
+
+  /**
+   * How long the message log gathers records into one batch before fsync.
+   */
+  public int getCommitWindowMillis() {
+    return commitWindowMillis;
+  }
+
+  public void setCommitWindowMillis(int commitWindowMillis) {
+    this.commitWindowMillis = commitWindowMillis;
+  }
+
+  /**
+   * How many of the newest messages of each group are kept in memory.
+   */
+  public int getHistoryRecentLimit() {
+    return historyRecentLimit;
+  }
+
+  public void setHistoryRecentLimit(int historyRecentLimit) {
+    this.historyRecentLimit = historyRecentLimit;
+  }
+
+  /**
+   * Size at which a group's history segment is sealed and a new one started.
+   */
+  public int getHistorySegmentBytes() {
+    return historySegmentBytes;
+  }
+
+  public void setHistorySegmentBytes(int historySegmentBytes) {
+    this.historySegmentBytes = historySegmentBytes;
+  }
+
+  /**
+   * Groups whose history files stay open between reads and appends; the least recently
+   * used ones are closed beyond that.
+   */
+  public int getHistoryOpenGroups() {
+    return historyOpenGroups;
+  }
+
+  public void setHistoryOpenGroups(int historyOpenGroups) {
+    this.historyOpenGroups = historyOpenGroups;
+  }
+
+  /**
+   * Messages per page in reply to a history request.
+   */
+  public int getHistoryPageSize() {
+    return historyPageSize;
+  }
+
+  public void setHistoryPageSize(int historyPageSize) {
+    this.historyPageSize = historyPageSize;
+  }
+
+  /**
+   * Newest messages of each group sent along with the group on login.
+   */
+  public int getHistoryLoginMessages() {
+    return historyLoginMessages;
+  }
+
+  public void setHistoryLoginMessages(int historyLoginMessages) {
+    this.historyLoginMessages = historyLoginMessages;
+  }
+
+  /**
+   * Groups whose login frame is cached; the least recently sent ones are dropped beyond that.
+   */
+  public int getLoginCacheGroups() {
+    return loginCacheGroups;
+  }
+
+  public void setLoginCacheGroups(int loginCacheGroups) {
+    this.loginCacheGroups = loginCacheGroups;
+  }
+
+  /**
+   * Most missed messages of one group resent on reconnect; beyond that the group is sent
+   * again with its newest messages, as on login.
+   */
+  public int getSyncMaxMessages() {
+    return syncMaxMessages;
+  }
+
+  public void setSyncMaxMessages(int syncMaxMessages) {
+    this.syncMaxMessages = syncMaxMessages;
+  }
+
+  /**
+   * Seconds between group snapshots, after which the message log is compacted; 0 only
+   * snapshots on shutdown.
+   */
+  public int getSnapshotIntervalSeconds() {
+    return snapshotIntervalSeconds;
+  }
+
+  public void setSnapshotIntervalSeconds(int snapshotIntervalSeconds) {
+    this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+  }
+
+  /**
+   * Most messages kept for one offline user; the oldest are dropped beyond that.
+   */
+  public int getInboxCapacity() {
+    return inboxCapacity;
+  }
+
+  public void setInboxCapacity(int inboxCapacity) {
+    this.inboxCapacity = inboxCapacity;
+  }
+
+  /**
+   * Hours after which an undelivered message expires.
+   */
+  public int getInboxTtlHours() {
+    return inboxTtlHours;
+  }
+
+  public void setInboxTtlHours(int inboxTtlHours) {
+    this.inboxTtlHours = inboxTtlHours;
+  }
+
+  /**
+   * Queued messages handed to a session at a time when it logs in.
+   */
+  public int getInboxBatchSize() {
+    return inboxBatchSize;
+  }
+
+  public void setInboxBatchSize(int inboxBatchSize) {
+    this.inboxBatchSize = inboxBatchSize;
+  }
+
+  /**
+   * Ids of recently accepted messages remembered per user to drop retransmissions.
+   */
+  public int getDedupWindow() {
+    return dedupWindow;
+  }
+
+  public void setDedupWindow(int dedupWindow) {
+    this.dedupWindow = dedupWindow;
+  }
+
+  /**
+   * Minutes a user may stay offline before the ids of their messages are forgotten.
+   */
+  public int getDedupTtlMinutes() {
+    return dedupTtlMinutes;
+  }
+
+  public void setDedupTtlMinutes(int dedupTtlMinutes) {
+    this.dedupTtlMinutes = dedupTtlMinutes;
+  }
+
+  /**
+   * PBKDF2 iterations of a newly hashed password; checking a password at login costs as
+   * many.
+   */
+  public int getCredentialIterations() {
+    return credentialIterations;
+  }
+
+  public void setCredentialIterations(int credentialIterations) {
+    this.credentialIterations = credentialIterations;
+  }
+
+  /**
+   * Largest file accepted through a chunked upload.
+   */
+  public long getFileMaxBytes() {
+    return fileMaxBytes;
+  }
+
+  public void setFileMaxBytes(long fileMaxBytes) {
+    this.fileMaxBytes = fileMaxBytes;
+  }
+
+  /**
+   * Longest side, in pixels, of the thumbnails sent with image messages.
+   */
+  public int getThumbnailSize() {
+    return thumbnailSize;
+  }
+
+  public void setThumbnailSize(int thumbnailSize) {
+    this.thumbnailSize = thumbnailSize;
+  }
+
+  /**
+   * How long connection count changes are gathered before the count is sent to every client.
+   */
+  public int getPresenceIntervalMillis() {
+    return presenceIntervalMillis;
+  }
+
+  public void setPresenceIntervalMillis(int presenceIntervalMillis) {
+    this.presenceIntervalMillis = presenceIntervalMillis;
+  }
+
+  /**
+   * How many of the latest joins and leaves are kept, so that a client that is behind by no
+   * more than that is sent a delta rather than the whole list of online users.
+   */
+  public int getPresenceHistory() {
+    return presenceHistory;
+  }
+
+  public void setPresenceHistory(int presenceHistory) {
+    this.presenceHistory = presenceHistory;
+  }
+
+  /**
+   * Seconds a connection may be silent before the server sends it a heartbeat.
+   */
+  public int getHeartbeatIntervalSeconds() {
+    return heartbeatIntervalSeconds;
+  }
+
+  public void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
+    this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+  }
+
+  /**
+   * Seconds a connection may be silent before it is closed as dead; 0 never closes it.
+   */
+  public int getIdleTimeoutSeconds() {
+    return idleTimeoutSeconds;
+  }
+
+  public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+    this.idleTimeoutSeconds = idleTimeoutSeconds;
+  }
+
+  @Override
+  public String toString() {
+    return "ServerConfig{" + "host=" + host + ", port=" + port + ", mode=" + mode
+        + ", eventLoopThreads=" + eventLoopThreads + ", outboundCapacity=" + outboundCapacity
+        + ", overflowPolicy=" + overflowPolicy + ", durability=" + durability
+        + ", commitWindowMillis=" + commitWindowMillis + '}';
+  }
+}
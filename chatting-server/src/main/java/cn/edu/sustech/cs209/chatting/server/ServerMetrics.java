@@ -0,0 +1,155 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters reported periodically by {@link ChatServer} when {@code chatting.metrics.interval} is set.
+ */
+public class ServerMetrics {
+  private final LongAdder framesDropped = new LongAdder();
+  private final LongAdder framesSpilled = new LongAdder();
+  private final LongAdder slowConsumerDisconnects = new LongAdder();
+  private final LongAdder commitBatches = new LongAdder();
+  private final LongAdder committedRecords = new LongAdder();
+  private final LongAdder commitNanos = new LongAdder();
+  private final LongAccumulator maxCommitNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder inboxDelivered = new LongAdder();
+  private final LongAdder inboxExpired = new LongAdder();
+  private final LongAdder inboxDropped = new LongAdder();
+  private final LongAdder duplicatesDropped = new LongAdder();
+  private final LongAdder duplicateBlobs = new LongAdder();
+  private final LongAdder duplicateBlobBytes = new LongAdder();
+  private final LongAdder groupFrameHits = new LongAdder();
+  private final LongAdder groupFrameMisses = new LongAdder();
+  private final LongAdder presenceBroadcasts = new LongAdder();
+  private final LongAdder presenceFrames = new LongAdder();
+  private final LongAdder presenceSnapshots = new LongAdder();
+  private final LongAdder presenceDeltas = new LongAdder();
+  private final LongAdder heartbeatsSent = new LongAdder();
+  private final LongAdder idleSessionsReaped = new LongAdder();
+  private final LongAdder thumbnails = new LongAdder();
+  private final LongAdder thumbnailSourceBytes = new LongAdder();
+  private final LongAdder thumbnailBytes = new LongAdder();
+
+  public LongAdder getFramesDropped() {
+    return framesDropped;
+  }
+
+  public LongAdder getFramesSpilled() {
+    return framesSpilled;
+  }
+
+  public LongAdder getSlowConsumerDisconnects() {
+    return slowConsumerDisconnects;
+  }
+
+  public LongAdder getInboxDelivered() {
+    return inboxDelivered;
+  }
+
+  public LongAdder getInboxExpired() {
+    return inboxExpired;
+  }
+
+  public LongAdder getInboxDropped() {
+    return inboxDropped;
+  }
+
+  public LongAdder getDuplicatesDropped() {
+    return duplicatesDropped;
+  }
+
+  public LongAdder getGroupFrameHits() {
+    return groupFrameHits;
+  }
+
+  public LongAdder getGroupFrameMisses() {
+    return groupFrameMisses;
+  }
+
+  /**
+   * Records an attachment that was not stored or uploaded again because the same content
+   * is already in the blob store.
+   */
+  public void recordDuplicateBlob(long bytes) {
+    duplicateBlobs.increment();
+    duplicateBlobBytes.add(bytes);
+  }
+
+  public LongAdder getPresenceSnapshots() {
+    return presenceSnapshots;
+  }
+
+  public LongAdder getPresenceDeltas() {
+    return presenceDeltas;
+  }
+
+  public LongAdder getHeartbeatsSent() {
+    return heartbeatsSent;
+  }
+
+  public LongAdder getIdleSessionsReaped() {
+    return idleSessionsReaped;
+  }
+
+  /**
+   * Records one broadcast of the connection count and the changes of the online users,
+   * {@code frames} frames in all.
+   */
+  public void recordPresenceBroadcast(int frames) {
+    presenceBroadcasts.increment();
+    presenceFrames.add(frames);
+  }
+
+  /**
+   * Records a thumbnail of {@code bytes} made from an image of {@code sourceBytes}.
+   */
+  public void recordThumbnail(long sourceBytes, long bytes) {
+    thumbnails.increment();
+    thumbnailSourceBytes.add(sourceBytes);
+    thumbnailBytes.add(bytes);
+  }
+
+  /**
+   * Records one message log commit of {@code records} records that took {@code nanos} to
+   * write and fsync.
+   */
+  public void recordCommit(int records, long nanos) {
+    commitBatches.increment();
+    committedRecords.add(records);
+    commitNanos.add(nanos);
+    maxCommitNanos.accumulate(nanos);
+  }
+
+  @Override
+  public String toString() {
+    long batches = commitBatches.sum();
+    return "framesDropped=" + framesDropped.sum()
+        + ", framesSpilled=" + framesSpilled.sum()
+        + ", slowConsumerDisconnects=" + slowConsumerDisconnects.sum()
+        + ", commitBatches=" + batches
+        + ", avgBatchSize=" + (batches == 0 ? 0 : committedRecords.sum() / batches)
+        + ", avgCommitMicros=" + (batches == 0 ? 0
+            : TimeUnit.NANOSECONDS.toMicros(commitNanos.sum() / batches))
+        + ", maxCommitMicros=" + TimeUnit.NANOSECONDS.toMicros(maxCommitNanos.get())
+        + ", inboxDelivered=" + inboxDelivered.sum()
+        + ", inboxExpired=" + inboxExpired.sum()
+        + ", inboxDropped=" + inboxDropped.sum()
+        + ", duplicatesDropped=" + duplicatesDropped.sum()
+        + ", duplicateBlobs=" + duplicateBlobs.sum()
+        + ", duplicateBlobBytes=" + duplicateBlobBytes.sum()
+        + ", groupFrameHits=" + groupFrameHits.sum()
+        + ", groupFrameMisses=" + groupFrameMisses.sum()
+        + ", presenceBroadcasts=" + presenceBroadcasts.sum()
+        + ", presenceFrames=" + presenceFrames.sum()
+        + ", presenceSnapshots=" + presenceSnapshots.sum()
+        + ", presenceDeltas=" + presenceDeltas.sum()
+        + ", heartbeatsSent=" + heartbeatsSent.sum()
+        + ", idleSessionsReaped=" + idleSessionsReaped.sum()
+        + ", thumbnails=" + thumbnails.sum()
+        + ", thumbnailSourceBytes=" + thumbnailSourceBytes.sum()
+        + ", thumbnailBytes=" + thumbnailBytes.sum();
+  }
+}
@@ -0,0 +1,14 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+/**
+ * How the server runs its connections.
+ */
+public enum ServerMode {
+  BLOCKING, // 每个连接一个阻塞线程
+  VIRTUAL,  // 每个连接一个虚拟线程 (JDK 21+)
+  NIO;      // Selector 事件循环
+
+  public static ServerMode parse(String value) {
+    return ServerMode.valueOf(value.trim().toUpperCase());
+  }
+}
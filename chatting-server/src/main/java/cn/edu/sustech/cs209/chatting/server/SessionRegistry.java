@@ -0,0 +1,91 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Live connections of the server, indexed by the username they logged in as.
+ * Lookups never lock; register/unregister are atomic per username. A user's first session
+ * and last session coming and going are recorded in the {@link PresenceSet}.
+ */
+public class SessionRegistry {
+  private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+  private final ConcurrentHashMap<String, Set<ClientHandler>> sessionsByName =
+      new ConcurrentHashMap<>();
+  private final PresenceSet presence;
+
+  public SessionRegistry(PresenceSet presence) {
+    this.presence = presence;
+  }
+
+  /**
+   * Tracks a connection that has not logged in yet.
+   */
+  public void connect(ClientHandler session) {
+    connections.add(session);
+  }
+
+  /**
+   * Forgets a connection and, if it was logged in, its username binding.
+   */
+  public void disconnect(ClientHandler session) {
+    connections.remove(session);
+    unregister(session.getClientName(), session);
+  }
+
+  public void register(String name, ClientHandler session) {
+    sessionsByName.compute(name, (key, sessions) -> {
+      if (sessions == null) {
+        sessions = new CopyOnWriteArraySet<>();
+        presence.join(name);
+      }
+      sessions.add(session);
+      return sessions;
+    });
+  }
+
+  public void unregister(String name, ClientHandler session) {
+    if (name == null) {
+      return;
+    }
+    sessionsByName.computeIfPresent(name, (key, sessions) -> {
+      sessions.remove(session);
+      if (sessions.isEmpty()) {
+        presence.leave(name);
+        return null;
+      }
+      return sessions;
+    });
+  }
+
+  /**
+   * Returns every live session of a user, or an empty set if the user is offline.
+   */
+  public Set<ClientHandler> sessionsOf(String name) {
+    Set<ClientHandler> sessions = sessionsByName.get(name);
+    return sessions == null ? Collections.emptySet() : sessions;
+  }
+
+  public boolean isOnline(String name) {
+    return sessionsByName.containsKey(name);
+  }
+
+  public Set<String> onlineUsers() {
+    return Collections.unmodifiableSet(sessionsByName.keySet());
+  }
+
+  public Collection<ClientHandler> connections() {
+    return Collections.unmodifiableSet(connections);
+  }
+
+  public PresenceSet getPresence() {
+    return presence;
+  }
+
+  public int connectionCount() {
+    return connections.size();
+  }
+}
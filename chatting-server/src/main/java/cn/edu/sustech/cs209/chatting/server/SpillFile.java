@@ -0,0 +1,91 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * FIFO of frames on disk, used by {@link OutboundQueue} when a client falls too far behind.
+ * Not thread-safe; only the owning queue's spill task uses it.
+ */
+class SpillFile {
+  private static final String PREFIX = "outbound-";
+  private static final String SUFFIX = ".spill";
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private long readPosition = 0;
+  private long writePosition = 0;
+  private int pending = 0;
+
+  SpillFile(File directory) throws IOException {
+    directory.mkdirs();
+    file = File.createTempFile(PREFIX, SUFFIX, directory);
+    raf = new RandomAccessFile(file, "rw");
+  }
+
+  /**
+   * Deletes the spill files a previous run left behind; a spill file only lives as long as
+   * its session, which {@link #delete()} ends.
+   *
+   * @return the number of files deleted
+   */
+  static int sweep(File directory) {
+    File[] leftovers = directory.listFiles(
+        (dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+    int deleted = 0;
+    if (leftovers != null) {
+      for (File leftover : leftovers) {
+        if (leftover.delete()) {
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  void append(byte[] frame) throws IOException {
+    raf.seek(writePosition);
+    raf.write(frame);
+    writePosition += frame.length;
+    pending++;
+  }
+
+  /**
+   * Reads the oldest spilled frame, or returns null if nothing is spilled.
+   */
+  byte[] next() throws IOException {
+    if (pending == 0) {
+      return null;
+    }
+    raf.seek(readPosition);
+    int length = raf.readInt();
+    byte[] frame = new byte[4 + length];
+    frame[0] = (byte) (length >>> 24);
+    frame[1] = (byte) (length >>> 16);
+    frame[2] = (byte) (length >>> 8);
+    frame[3] = (byte) length;
+    raf.readFully(frame, 4, length);
+    readPosition += frame.length;
+    if (--pending == 0) {
+      // 全部读完后从头复用文件
+      readPosition = 0;
+      writePosition = 0;
+      raf.setLength(0);
+    }
+    return frame;
+  }
+
+  int pending() {
+    return pending;
+  }
+
+  void delete() {
+    try {
+      raf.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    file.delete();
+  }
+}
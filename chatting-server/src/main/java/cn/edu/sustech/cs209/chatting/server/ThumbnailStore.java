@@ -0,0 +1,160 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Small previews of image attachments, sent inline with image messages so that members only
+ * download the original when they open it. A thumbnail is made once per blob and kept in
+ * {@code dataDir/thumbnails}, named like the blob.
+ *
+ * <p>Thumbnails are made on their own thread: decoding a large image takes long enough to
+ * stall a connection's reader or an event loop.
+ */
+public class ThumbnailStore {
+  private static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "jpg", "jpeg", "gif", "bmp");
+
+  private final File directory;
+  private final BlobStore blobs;
+  private final int size;
+  private final ServerMetrics metrics;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "thumbnails");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Constructs the store.
+   *
+   * @param directory where the thumbnails are kept
+   * @param blobs     the blobs the thumbnails are made from
+   * @param size      the longest side of a thumbnail, in pixels
+   * @param metrics   where made thumbnails are counted
+   */
+  public ThumbnailStore(File directory, BlobStore blobs, int size, ServerMetrics metrics) {
+    this.directory = directory;
+    this.blobs = blobs;
+    this.size = size;
+    this.metrics = metrics;
+  }
+
+  public void open() throws IOException {
+    directory.mkdirs();
+    if (!directory.isDirectory()) {
+      throw new IOException("Cannot create " + directory);
+    }
+  }
+
+  /**
+   * Tells from its name whether an attachment gets a thumbnail.
+   */
+  public static boolean isImage(String fileName) {
+    if (fileName == null) {
+      return false;
+    }
+    int dot = fileName.lastIndexOf('.');
+    return dot >= 0
+        && IMAGE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Returns the thumbnail of a blob, making it first if needed.
+   *
+   * @return the encoded thumbnail, or null if the blob is missing or not a readable image
+   */
+  public CompletableFuture<byte[]> thumbnailOf(String hash) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return load(hash);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, executor);
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private byte[] load(String hash) throws IOException {
+    File thumbnail = new File(directory, hash);
+    if (thumbnail.isFile()) {
+      return Files.readAllBytes(thumbnail.toPath());
+    }
+    File blob = blobs.get(hash);
+    if (blob == null) {
+      return null;
+    }
+    byte[] made = make(blob);
+    if (made == null) {
+      return null;
+    }
+    File temp = File.createTempFile(hash, ".tmp", directory);
+    Files.write(temp.toPath(), made);
+    try {
+      Files.move(temp.toPath(), thumbnail.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      Files.deleteIfExists(temp.toPath());
+    }
+    metrics.recordThumbnail(blob.length(), made.length);
+    return made;
+  }
+
+  private byte[] make(File blob) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(blob)) {
+      Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+      if (readers == null || !readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+        // 大图隔行隔列读取, 不必整张解码进内存; 留一倍余量再缩放, 画质更好
+        int step = Math.max(1, longest / (size * 2));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        BufferedImage source = reader.read(0, param);
+        double scale = Math.min(1.0,
+            (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        boolean alpha = source.getColorModel().hasAlpha();
+        BufferedImage scaled = new BufferedImage(width, height,
+            alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(scaled, alpha ? "png" : "jpg", out);
+        return out.toByteArray();
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Cannot make a thumbnail of " + blob.getName() + ": " + e);
+        return null;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for deadlines that are many, coarse and mostly cancelled or pushed back,
+ * like the idle timeouts of connections. Scheduling and cancelling are O(1), and a tick only
+ * visits the timeouts hashed to its slot, however many are pending.
+ *
+ * <p>The wheel does not run by itself: {@link #advance()} is called periodically, and catches
+ * up on every tick that elapsed since the previous call. Expired tasks run on the calling
+ * thread, so they should be short.
+ */
+public class TimerWheel {
+  private final long tickNanos;
+  private final int mask;
+  private final Timeout[] slots;
+  private final long start = System.nanoTime();
+  private long tick; // 下一个要处理的刻度
+  private int pending;
+
+  /**
+   * A scheduled task, kept in a doubly linked list per slot so that it can be cancelled in
+   * constant time.
+   */
+  public final class Timeout {
+    private final Runnable task;
+    private final int slot;
+    private long rounds;
+    private Timeout previous;
+    private Timeout next;
+    private boolean done;
+
+    private Timeout(Runnable task, int slot, long rounds) {
+      this.task = task;
+      this.slot = slot;
+      this.rounds = rounds;
+    }
+
+    /**
+     * Cancels the task if it has not run yet.
+     */
+    public void cancel() {
+      synchronized (TimerWheel.this) {
+        if (!done) {
+          unlink(this);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param tickDuration the resolution of the wheel
+   * @param unit         the unit of {@code tickDuration}
+   * @param slotCount    the number of slots, rounded up to a power of two
+   */
+  public TimerWheel(long tickDuration, TimeUnit unit, int slotCount) {
+    this.tickNanos = unit.toNanos(tickDuration);
+    int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+    this.slots = new Timeout[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Runs {@code task} once {@code delay} has elapsed, rounded up to the next tick.
+   */
+  public synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    long elapsed = System.nanoTime() - start + unit.toNanos(delay);
+    long deadline = Math.max(tick, (elapsed + tickNanos - 1) / tickNanos);
+    Timeout timeout = new Timeout(task, (int) (deadline & mask), (deadline - tick) / slots.length);
+    timeout.next = slots[timeout.slot];
+    if (timeout.next != null) {
+      timeout.next.previous = timeout;
+    }
+    slots[timeout.slot] = timeout;
+    pending++;
+    return timeout;
+  }
+
+  /**
+   * Processes every tick that elapsed since the previous call and runs the expired tasks.
+   */
+  public void advance() {
+    List<Timeout> expired = new ArrayList<>();
+    synchronized (this) {
+      long due = (System.nanoTime() - start) / tickNanos;
+      for (; tick <= due; tick++) {
+        Timeout timeout = slots[(int) (tick & mask)];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.rounds == 0) {
+            unlink(timeout);
+            expired.add(timeout);
+          } else {
+            timeout.rounds--;
+          }
+          timeout = next;
+        }
+      }
+    }
+    for (Timeout timeout : expired) {
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public synchronized int pending() {
+    return pending;
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.previous != null) {
+      timeout.previous.next = timeout.next;
+    } else {
+      slots[timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.previous = timeout.previous;
+    }
+    timeout.previous = null;
+    timeout.next = null;
+    timeout.done = true;
+    pending--;
+  }
+}
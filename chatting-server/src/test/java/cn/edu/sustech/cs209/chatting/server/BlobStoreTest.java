@@ -0,0 +1,44 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlobStoreTest {
+  @TempDir
+  Path directory;
+
+  @Test
+  void readersAreRecordedOnceAndSurviveReopening() throws Exception {
+    BlobStore blobs = new BlobStore(directory.toFile(), 1 << 20, new ServerMetrics());
+    blobs.open();
+    String hash = blobs.put("content".getBytes(StandardCharsets.UTF_8));
+    assertNotNull(blobs.get(hash));
+    assertTrue(blobs.readersOf(hash).isEmpty());
+
+    blobs.addReader(hash, "user:alice");
+    blobs.addReader(hash, "group:g1");
+    blobs.addReader(hash, "user:alice");
+
+    BlobStore reopened = new BlobStore(directory.toFile(), 1 << 20, new ServerMetrics());
+    reopened.open();
+    assertEquals(Set.of("user:alice", "group:g1"), reopened.readersOf(hash));
+    // 记录可下载的人的文件不能被当成内容
+    assertEquals(hash, reopened.put("content".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void invalidHashesHaveNoReaders() throws Exception {
+    BlobStore blobs = new BlobStore(directory.toFile(), 1 << 20, new ServerMetrics());
+    blobs.open();
+    assertTrue(blobs.readersOf("../../etc/passwd").isEmpty());
+    assertFalse(BlobStore.isValidHash("user:alice"));
+  }
+}
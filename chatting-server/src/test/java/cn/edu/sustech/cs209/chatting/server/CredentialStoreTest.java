@@ -0,0 +1,102 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CredentialStoreTest {
+  @TempDir
+  Path directory;
+
+  private File file() {
+    return directory.resolve("users.log").toFile();
+  }
+
+  private CredentialStore open() throws Exception {
+    CredentialStore store = new CredentialStore(file(), 1000);
+    store.open(directory.resolve("usersCredentials.txt").toFile());
+    return store;
+  }
+
+  private static boolean register(CredentialStore store, String username, String password)
+      throws Exception {
+    return store.register(username, password).get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void registeredUsersSurviveReopening() throws Exception {
+    CredentialStore store = open();
+    assertTrue(register(store, "alice", "secret"));
+    assertTrue(register(store, "bob", "hunter2"));
+    assertTrue(store.validate("alice", "secret"));
+    assertFalse(store.validate("alice", "hunter2"));
+    store.close();
+
+    store = open();
+    assertTrue(store.validate("alice", "secret"));
+    assertTrue(store.validate("bob", "hunter2"));
+    assertFalse(store.validate("carol", "secret"));
+    store.close();
+    // 文件里只有哈希, 没有口令原文
+    String content = new String(Files.readAllBytes(file().toPath()), StandardCharsets.ISO_8859_1);
+    assertFalse(content.contains("secret"));
+  }
+
+  @Test
+  void existingNamesCannotBeRegisteredAgain() throws Exception {
+    CredentialStore store = open();
+    assertTrue(register(store, "alice", "secret"));
+    assertFalse(register(store, "alice", "other"));
+    assertTrue(store.validate("alice", "secret"));
+    assertFalse(store.validate("alice", "other"));
+    store.close();
+  }
+
+  @Test
+  void plainTextFileIsHashedAndCompacted() throws Exception {
+    // 旧格式: 没有文件头, 口令是明文, 同一个用户可能有多条记录
+    try (FileOutputStream out = new FileOutputStream(file())) {
+      out.write(plainRecord("alice", "old"));
+      out.write(plainRecord("bob", "hunter2"));
+      out.write(plainRecord("alice", "secret"));
+    }
+    CredentialStore store = open();
+    assertTrue(store.validate("alice", "secret"));
+    assertFalse(store.validate("alice", "old"));
+    assertTrue(store.validate("bob", "hunter2"));
+    store.close();
+
+    String content = new String(Files.readAllBytes(file().toPath()), StandardCharsets.ISO_8859_1);
+    assertFalse(content.contains("secret"));
+    assertEquals(CredentialStore.MAGIC, ByteBuffer.wrap(Files.readAllBytes(file().toPath()))
+        .getInt());
+    store = open();
+    assertTrue(store.validate("alice", "secret"));
+    store.close();
+  }
+
+  private static byte[] plainRecord(String username, String password) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(username);
+    out.writeUTF(password);
+    byte[] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return ByteBuffer.allocate(CredentialStore.HEADER_LENGTH + payload.length)
+        .putInt(payload.length).putInt((int) crc.getValue()).put(payload).array();
+  }
+}
@@ -0,0 +1,119 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import cn.edu.sustech.cs209.chatting.common.Command;
+import cn.edu.sustech.cs209.chatting.common.FrameCodec;
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.GroupType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import cn.edu.sustech.cs209.chatting.common.WireFormat;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the table routing control messages by opcode, and that frames decoded by a session
+ * reach the handler it lists.
+ */
+class DispatchTableTest {
+  // 客户端发给服务器的控制命令; 其余的只由服务器发出, 或像 HEARTBEAT 一样只需要刷新空闲时间
+  private static final Set<Command> FROM_CLIENTS = EnumSet.of(Command.REGISTER, Command.LOGIN,
+      Command.CLIENT_NAME, Command.ALL_CLIENT_NAMES, Command.HISTORY_REQUEST, Command.RESUME,
+      Command.SYNC, Command.ACK, Command.FILE_UPLOAD, Command.FILE_CHUNK, Command.FILE_DOWNLOAD,
+      Command.PRESENCE_SUBSCRIBE, Command.THUMBNAIL);
+
+  /**
+   * A session without a transport, whose outbound queue is read by the test.
+   */
+  private static final class StubSession extends ClientHandler {
+    StubSession(ChatServer server) {
+      super(server);
+    }
+
+    Object poll() throws Exception {
+      return outbound.poll();
+    }
+
+    @Override
+    protected boolean canSendFileRegions() {
+      return false;
+    }
+
+    @Override
+    public void closeConnection(String reason) {
+      throw new AssertionError(reason);
+    }
+
+    @Override
+    public Socket getSocket() {
+      return null;
+    }
+  }
+
+  @Test
+  void everyOpcodeRoundTrips() {
+    for (Command command : Command.values()) {
+      assertSame(command, Command.fromCode(command.getCode()));
+    }
+    assertNull(Command.fromCode((byte) Command.values().length));
+    assertNull(Command.fromCode((byte) -1));
+  }
+
+  @Test
+  void onlyCommandsSentByClientsHaveHandlers() {
+    for (Command command : Command.values()) {
+      if (FROM_CLIENTS.contains(command)) {
+        assertNotNull(ClientHandler.handlerOf(command), command.name());
+      } else {
+        assertNull(ClientHandler.handlerOf(command), command.name());
+      }
+    }
+  }
+
+  @Test
+  void decodedFramesReachTheirHandler() throws Exception {
+    StubSession session = new StubSession(new ChatServer(new ServerConfig()));
+    for (WireFormat format : WireFormat.values()) {
+      handle(session, new Message(1L, "alice", "Server", null, Command.ALL_CLIENT_NAMES),
+          format);
+      Object frame = session.poll();
+      byte[] bytes = (byte[]) frame;
+      Message reply = (Message) FrameCodec.decode(bytes, FrameCodec.HEADER_LENGTH,
+          bytes.length - FrameCodec.HEADER_LENGTH);
+      assertEquals(Command.ALL_CLIENT_NAMES_RESULT, reply.getCommand());
+      assertEquals("alice", reply.getSendTo());
+
+      // 只由服务器发出的命令没有处理者, 什么也不回复
+      handle(session, new Message(1L, "alice", "Server", "Success", Command.LOGIN_RESULT),
+          format);
+      assertNull(session.poll());
+    }
+  }
+
+  @Test
+  void groupFromAConnectionNotLoggedInIsRejected() throws Exception {
+    StubSession session = new StubSession(new ChatServer(new ServerConfig()));
+    byte[] frame = FrameCodec.encode(new Group("alice", "g1",
+        new ArrayList<>(List.of("alice", "mallory")), GroupType.GROUP, false),
+        WireFormat.BINARY);
+    session.handleFrame(frame, FrameCodec.HEADER_LENGTH, frame.length - FrameCodec.HEADER_LENGTH);
+    byte[] bytes = (byte[]) session.poll();
+    Message reply = (Message) FrameCodec.decode(bytes, FrameCodec.HEADER_LENGTH,
+        bytes.length - FrameCodec.HEADER_LENGTH);
+    assertEquals(Command.GROUP_REJECTED, reply.getCommand());
+    assertEquals("g1", reply.getSendTo());
+  }
+
+  private static void handle(ClientHandler session, Message message, WireFormat format)
+      throws Exception {
+    byte[] frame = FrameCodec.encode(message, format);
+    session.handleFrame(frame, FrameCodec.HEADER_LENGTH, frame.length - FrameCodec.HEADER_LENGTH);
+  }
+}
@@ -0,0 +1,142 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.GroupType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GroupDirectoryTest {
+  @TempDir
+  Path directory;
+
+  private static GroupDirectory newDirectory() {
+    return new GroupDirectory(100, 20, 100, new ServerMetrics());
+  }
+
+  private static Group newGroup(String name) {
+    return new Group("alice", name, new ArrayList<>(List.of("alice", "bob")), GroupType.GROUP,
+        false);
+  }
+
+  private static Message post(GroupDirectory groups, Group group, String text) {
+    Message message = new Message(0L, "alice", group.getGroupName(), text);
+    groups.stamp(group, message);
+    groups.addMessage(group, message);
+    return message;
+  }
+
+  @Test
+  void stampedMessagesAreNumberedInOrder() {
+    GroupDirectory groups = newDirectory();
+    Group group = newGroup("g1");
+    groups.add(group);
+    Message first = post(groups, group, "a");
+    Message second = post(groups, group, "b");
+    assertEquals(1L, first.getSeq());
+    assertEquals(2L, second.getSeq());
+    assertTrue(second.getTimestamp() > first.getTimestamp());
+  }
+
+  @Test
+  void unnumberedTailDoesNotRestartTheSequence() {
+    GroupDirectory groups = newDirectory();
+    Group group = newGroup("g1");
+    groups.add(group);
+    Message numbered = new Message(1000L, "bob", "g1", "old");
+    numbered.setSeq(41L);
+    Message legacy = new Message(999L, "bob", "g1", "no seq");
+    groups.setRecent(group, List.of(numbered, legacy));
+    assertEquals(42L, post(groups, group, "next").getSeq());
+  }
+
+  @Test
+  void snapshotKeepsTheSequences() throws Exception {
+    GroupDirectory groups = newDirectory();
+    Group group = newGroup("g1");
+    groups.add(group);
+    for (int i = 0; i < 5; i++) {
+      post(groups, group, "m" + i);
+    }
+    long[] sequence = groups.sequenceOf(group);
+    File file = directory.resolve("snapshot.bin").toFile();
+    GroupSnapshot.write(file, groups);
+
+    // 快照不含消息, 恢复后的尾部是空的
+    GroupDirectory restored = newDirectory();
+    assertEquals(1, GroupSnapshot.read(file, restored));
+    Group copy = restored.get("g1");
+    assertNotNull(copy);
+    assertEquals(List.of("alice", "bob"), copy.getGroupMembers());
+    assertEquals(sequence[0], restored.sequenceOf(copy)[0]);
+    assertEquals(6L, post(restored, copy, "after restart").getSeq());
+  }
+
+  @Test
+  void corruptSnapshotAddsNothing() throws Exception {
+    GroupDirectory groups = newDirectory();
+    groups.add(newGroup("g1"));
+    groups.add(newGroup("g2"));
+    File file = directory.resolve("snapshot.bin").toFile();
+    GroupSnapshot.write(file, groups);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(20);
+      raf.write(raf.read() ^ 0xff);
+    }
+    GroupDirectory restored = newDirectory();
+    assertThrows(StreamCorruptedException.class, () -> GroupSnapshot.read(file, restored));
+    assertEquals(0, restored.size());
+  }
+
+  @Test
+  void loginCacheDropsLeastRecentlySentGroups() {
+    ServerMetrics metrics = new ServerMetrics();
+    GroupDirectory groups = new GroupDirectory(100, 20, 2, metrics);
+    Group g1 = newGroup("g1");
+    Group g2 = newGroup("g2");
+    Group g3 = newGroup("g3");
+    groups.addAll(List.of(g1, g2, g3));
+    BroadcastFrame first = groups.loginFrameOf(g1);
+    groups.loginFrameOf(g2);
+    assertSame(first, groups.loginFrameOf(g1));
+    // g2 最久没有发送过, 缓存 g3 时被挤出去
+    groups.loginFrameOf(g3);
+    assertSame(first, groups.loginFrameOf(g1));
+    groups.loginFrameOf(g2);
+    assertEquals(2, metrics.getGroupFrameHits().sum());
+    assertEquals(4, metrics.getGroupFrameMisses().sum());
+    // 缓存 g2 时挤出的是 g3 而不是刚发送过的 g1
+    assertSame(first, groups.loginFrameOf(g1));
+    groups.loginFrameOf(g3);
+    assertEquals(5, metrics.getGroupFrameMisses().sum());
+  }
+
+  @Test
+  void namesOfExistingOrPendingGroupsCannotBeReserved() {
+    GroupDirectory groups = newDirectory();
+    groups.add(newGroup("g1"));
+    assertFalse(groups.reserve("g1"));
+    assertTrue(groups.reserve("g2"));
+    // 提交前另一个连接也想创建 g2
+    assertFalse(groups.reserve("g2"));
+    groups.add(newGroup("g2"));
+    groups.release("g2");
+    assertFalse(groups.reserve("g2"));
+    assertTrue(groups.reserve("g3"));
+    groups.release("g3"); // 写日志失败
+    assertTrue(groups.reserve("g3"));
+  }
+}
@@ -0,0 +1,164 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import cn.edu.sustech.cs209.chatting.common.BinaryCodec;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryStoreTest {
+  @TempDir
+  Path directory;
+
+  private HistoryStore open() {
+    // 每段只放得下几条记录, 测试里会多次滚动
+    return new HistoryStore(directory.toFile(), 256, 16);
+  }
+
+  private static void append(HistoryStore store, int from, int to) throws Exception {
+    for (int i = from; i < to; i++) {
+      store.append("g1", i, new Message(1000L + i, "alice", "g1", "m" + i));
+    }
+  }
+
+  private static List<String> texts(List<Message> messages) {
+    List<String> texts = new ArrayList<>();
+    for (Message message : messages) {
+      texts.add(message.getData());
+    }
+    return texts;
+  }
+
+  @Test
+  void segmentsReadBackAfterReopening() throws Exception {
+    HistoryStore store = open();
+    append(store, 1, 21);
+    assertEquals(List.of("m18", "m19", "m20"), texts(store.recent("g1", 3)));
+    store.close();
+
+    store = open();
+    assertEquals(List.of("m18", "m19", "m20"), texts(store.recent("g1", 3)));
+    assertEquals(List.of("m1", "m2"), texts(store.after("g1", 0, 2)));
+    // 重放已归档的记录不会重复
+    append(store, 15, 25);
+    assertEquals(24, store.after("g1", 0, 100).size());
+    assertEquals(List.of("m23", "m24"), texts(store.recent("g1", 2)));
+    store.close();
+  }
+
+  @Test
+  void recordLargerThanASegmentIsKept() throws Exception {
+    HistoryStore store = open();
+    append(store, 1, 3);
+    String large = "x".repeat(1000);
+    store.append("g1", 3, new Message(1003L, "alice", "g1", large));
+    append(store, 4, 6);
+    store.close();
+
+    store = open();
+    assertEquals(List.of("m2", large, "m4", "m5"), texts(store.recent("g1", 4)));
+    store.close();
+  }
+
+  @Test
+  void badRecordAtTheEndOfTheActiveSegmentIsDroppedAndReplayed() throws Exception {
+    HistoryStore store = open();
+    append(store, 1, 3);
+    store.close();
+    // 映射的页没有按顺序落盘: 最后一条记录的内容坏了
+    File segment = segments("g1").get(segments("g1").size() - 1);
+    ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+    int offset = HistoryStore.MAGIC_LENGTH;
+    while (content.getInt(offset) > 0) {
+      offset += HistoryStore.HEADER_LENGTH + content.getInt(offset);
+    }
+    content.put(offset - 1, (byte) (content.get(offset - 1) ^ 1));
+    Files.write(segment.toPath(), content.array());
+
+    store = open();
+    assertEquals(List.of("m1"), texts(store.recent("g1", 10)));
+    // 重放消息日志时补回来
+    append(store, 1, 4);
+    assertEquals(List.of("m1", "m2", "m3"), texts(store.recent("g1", 10)));
+    store.close();
+  }
+
+  @Test
+  void segmentsWithoutChecksumsAreUpgraded() throws Exception {
+    File group = directory.resolve("g1").toFile();
+    group.mkdirs();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (int i = 1; i <= 3; i++) {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      BinaryCodec.encode(new Message(1000L + i, "alice", "g1", "m" + i),
+          new DataOutputStream(payload));
+      // 旧格式: length:int key:long lsn:long payload, 没有文件头
+      out.writeInt(payload.size());
+      out.writeLong(1000L + i);
+      out.writeLong(i);
+      out.write(payload.toByteArray());
+    }
+    File segment = new File(group, String.format("%020d", 1) + ".seg");
+    Files.write(segment.toPath(), bytes.toByteArray());
+
+    HistoryStore store = open();
+    assertEquals(List.of("m1", "m2", "m3"), texts(store.recent("g1", 10)));
+    append(store, 2, 5);
+    assertEquals(List.of("m1", "m2", "m3", "m4"), texts(store.after("g1", 0, 10)));
+    store.close();
+    assertEquals(HistoryStore.MAGIC,
+        ByteBuffer.wrap(Files.readAllBytes(segments("g1").get(0).toPath())).getInt());
+  }
+
+  @Test
+  void activeSegmentIsMappedInGrowingWindows() throws Exception {
+    HistoryStore store = new HistoryStore(directory.toFile(), 1 << 20, 16);
+    append(store, 1, 4);
+    assertEquals(HistoryStore.INITIAL_WINDOW, segments("g1").get(0).length());
+    String large = "x".repeat(HistoryStore.INITIAL_WINDOW);
+    store.append("g1", 4, new Message(1004L, "alice", "g1", large));
+    assertEquals(2 * HistoryStore.INITIAL_WINDOW, segments("g1").get(0).length());
+    store.close();
+
+    store = new HistoryStore(directory.toFile(), 1 << 20, 16);
+    assertEquals(List.of("m3", large), texts(store.recent("g1", 2)));
+    store.close();
+  }
+
+  @Test
+  void leastRecentlyUsedGroupsAreClosed() throws Exception {
+    HistoryStore store = new HistoryStore(directory.toFile(), 256, 2);
+    for (String group : List.of("g1", "g2", "g3")) {
+      store.append(group, 1, new Message(1001L, "alice", group, group + "-1"));
+    }
+    assertEquals(2, store.openGroupCount());
+    // 关闭过的群组再次使用时重新打开, 之前追加的记录还在, 重复的 LSN 仍被忽略
+    store.append("g1", 1, new Message(1001L, "alice", "g1", "g1-1"));
+    store.append("g1", 2, new Message(1002L, "alice", "g1", "g1-2"));
+    assertEquals(List.of("g1-1", "g1-2"), texts(store.recent("g1", 10)));
+    assertEquals(List.of("g2-1"), texts(store.recent("g2", 10)));
+    assertEquals(2, store.openGroupCount());
+    store.close();
+    assertEquals(0, store.openGroupCount());
+  }
+
+  private List<File> segments(String group) {
+    File[] files = directory.resolve(group).toFile()
+        .listFiles((dir, name) -> name.endsWith(".seg"));
+    List<File> segments = new ArrayList<>(Arrays.asList(files));
+    Collections.sort(segments);
+    return segments;
+  }
+}
@@ -0,0 +1,44 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import cn.edu.sustech.cs209.chatting.common.Command;
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reads the groups.txt written by the first version of the server, which existing
+ * deployments still import on their first start.
+ */
+class LegacyGroupsTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void checkedInGroupsStillDeserialize() throws Exception {
+    Set<Group> groups;
+    try (InputStream in = LegacyGroupsTest.class.getResourceAsStream("/groups.txt");
+         ObjectInputStream ois = new ObjectInputStream(in)) {
+      groups = (Set<Group>) ois.readObject();
+    }
+    assertFalse(groups.isEmpty());
+    int messages = 0;
+    for (Group group : groups) {
+      assertNotNull(group.getGroupName());
+      assertNotNull(group.getGroupType());
+      assertFalse(group.getGroupMembers().isEmpty());
+      for (Message message : group.getGroupMessages()) {
+        // 旧消息没有后来加的字段
+        assertEquals(Command.CHAT, message.getCommand());
+        assertEquals(null, message.getSeq());
+        messages++;
+      }
+    }
+    assertFalse(messages == 0);
+  }
+}
@@ -0,0 +1,111 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import cn.edu.sustech.cs209.chatting.common.Group;
+import cn.edu.sustech.cs209.chatting.common.GroupType;
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+  @TempDir
+  Path directory;
+
+  private MessageLog newLog(DurabilityMode durability, List<Long> committed) {
+    return new MessageLog(directory.toFile(), durability, 1, new ServerMetrics(),
+        (lsn, record) -> committed.add(lsn));
+  }
+
+  private List<Object> replay() throws Exception {
+    List<Object> records = new ArrayList<>();
+    MessageLog log = newLog(DurabilityMode.SYNC, new ArrayList<>());
+    log.open((lsn, record) -> records.add(record));
+    log.close();
+    return records;
+  }
+
+  private static Message message(int i) {
+    Message message = new Message(1000L + i, "alice", "g1", "m" + i);
+    message.setSeq((long) i);
+    return message;
+  }
+
+  @Test
+  void committedRecordsReplayInOrder() throws Exception {
+    List<Long> committed = new ArrayList<>();
+    MessageLog log = newLog(DurabilityMode.GROUP_COMMIT, committed);
+    log.open((lsn, record) -> { });
+    List<CompletableFuture<Long>> futures = new ArrayList<>();
+    futures.add(log.append(new Group("alice", "g1", new ArrayList<>(List.of("alice", "bob")),
+        GroupType.GROUP, false)));
+    for (int i = 1; i <= 3; i++) {
+      futures.add(log.append(message(i)));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      assertEquals(i + 1L, futures.get(i).get());
+    }
+    log.close();
+    assertEquals(List.of(1L, 2L, 3L, 4L), committed);
+
+    List<Object> records = replay();
+    assertEquals(4, records.size());
+    assertEquals("g1", ((Group) records.get(0)).getGroupName());
+    for (int i = 1; i <= 3; i++) {
+      assertEquals("m" + i, ((Message) records.get(i)).getData());
+    }
+  }
+
+  @Test
+  void tornTailIsTruncatedAndAppendsContinue() throws Exception {
+    MessageLog log = newLog(DurabilityMode.SYNC, new ArrayList<>());
+    log.open((lsn, record) -> { });
+    log.append(message(1)).get();
+    log.append(message(2)).get();
+    log.close();
+    File[] files = directory.toFile().listFiles();
+    assertEquals(1, files.length);
+    long intact = files[0].length();
+    try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+      // 半条记录: 长度和校验和之后就断了
+      out.write(new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 0, 0});
+    }
+
+    List<Long> lsns = new ArrayList<>();
+    log = newLog(DurabilityMode.SYNC, new ArrayList<>());
+    log.open((lsn, record) -> lsns.add(lsn));
+    assertEquals(List.of(1L, 2L), lsns);
+    assertEquals(intact, files[0].length());
+    assertEquals(3L, log.append(message(3)).get());
+    log.close();
+
+    List<Object> records = replay();
+    assertEquals(3, records.size());
+    assertEquals("m3", ((Message) records.get(2)).getData());
+  }
+
+  @Test
+  void rotatedFilesReplayUntilDeleted() throws Exception {
+    MessageLog log = newLog(DurabilityMode.SYNC, new ArrayList<>());
+    log.open((lsn, record) -> { });
+    log.append(message(1)).get();
+    List<File> sealed = log.rotate();
+    log.append(message(2)).get();
+    log.close();
+    assertEquals(1, sealed.size());
+    assertEquals(2, replay().size());
+
+    log.delete(sealed);
+    List<Object> records = replay();
+    assertEquals(1, records.size());
+    assertTrue(records.get(0) instanceof Message);
+    assertEquals("m2", ((Message) records.get(0)).getData());
+  }
+}
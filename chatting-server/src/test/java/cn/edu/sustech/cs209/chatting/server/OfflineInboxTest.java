@@ -0,0 +1,143 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import cn.edu.sustech.cs209.chatting.common.Message;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OfflineInboxTest {
+  @TempDir
+  Path directory;
+
+  private final ServerMetrics metrics = new ServerMetrics();
+
+  private OfflineInbox open(int capacity) throws Exception {
+    OfflineInbox inbox = new OfflineInbox(directory.toFile(), capacity,
+        TimeUnit.HOURS.toMillis(1), metrics);
+    inbox.open();
+    return inbox;
+  }
+
+  private static void offer(OfflineInbox inbox, String text) throws Exception {
+    assertTrue(inbox.offer("bob", new Message(0L, "alice", "bob", text), () -> true));
+  }
+
+  private static List<String> texts(List<OfflineInbox.Entry> entries) {
+    List<String> texts = new ArrayList<>();
+    for (OfflineInbox.Entry entry : entries) {
+      texts.add(entry.getMessage().getData());
+    }
+    return texts;
+  }
+
+  @Test
+  void messagesStayUntilTrimmed() throws Exception {
+    OfflineInbox inbox = open(10);
+    offer(inbox, "a");
+    offer(inbox, "b");
+    offer(inbox, "c");
+    inbox.force("bob").get(5, TimeUnit.SECONDS);
+    List<OfflineInbox.Entry> queued = inbox.peek("bob");
+    assertEquals(List.of("a", "b", "c"), texts(queued));
+    // 读出来不等于投递了
+    assertEquals(List.of("a", "b", "c"), texts(inbox.peek("bob")));
+
+    inbox.trim("bob", queued.get(1).getPosition() + 1);
+    assertEquals(List.of("c"), texts(inbox.peek("bob")));
+    inbox.close();
+    assertEquals(List.of("c"), texts(open(10).peek("bob")));
+  }
+
+  @Test
+  void messagesQueuedDuringDeliveryAreKept() throws Exception {
+    OfflineInbox inbox = open(10);
+    offer(inbox, "a");
+    offer(inbox, "b");
+    List<OfflineInbox.Entry> queued = inbox.peek("bob");
+    offer(inbox, "c");
+    inbox.trim("bob", queued.get(queued.size() - 1).getPosition() + 1);
+    assertEquals(List.of("c"), texts(inbox.peek("bob")));
+    assertEquals(1, inbox.totalDepth());
+  }
+
+  @Test
+  void nothingIsQueuedForAUserWhoCameOnline() throws Exception {
+    OfflineInbox inbox = open(10);
+    assertFalse(inbox.offer("bob", new Message(0L, "alice", "bob", "a"), () -> false));
+    assertTrue(inbox.peek("bob").isEmpty());
+  }
+
+  @Test
+  void messagesOfferedLaterAreAppendedByTheWriter() throws Exception {
+    OfflineInbox inbox = open(10);
+    for (String text : List.of("a", "b", "c")) {
+      assertTrue(inbox.offerLater("bob", new Message(0L, "alice", "bob", text), () -> true,
+          messages -> fail("bob is offline")));
+    }
+    inbox.close();
+    assertEquals(List.of("a", "b", "c"), texts(open(10).peek("bob")));
+  }
+
+  @Test
+  void messagesOfferedLaterGoToAUserWhoCameOnlineInOrder() throws Exception {
+    OfflineInbox inbox = open(10);
+    // 提交时还不在线, 写线程追加时已经登录
+    BooleanSupplier offline = () -> !Thread.currentThread().getName().equals("inbox-writer");
+    List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+    for (String text : List.of("a", "b", "c")) {
+      assertTrue(inbox.offerLater("bob", new Message(0L, "alice", "bob", text), offline,
+          messages -> delivered.addAll(texts(messages))));
+    }
+    inbox.close();
+    assertEquals(List.of("a", "b", "c"), delivered);
+    assertTrue(inbox.peek("bob").isEmpty());
+    assertFalse(inbox.offerLater("bob", new Message(0L, "alice", "bob", "d"), () -> false,
+        messages -> fail("nothing was queued")));
+  }
+
+  private static List<String> texts(Collection<Message> messages) {
+    List<String> texts = new ArrayList<>();
+    for (Message message : messages) {
+      texts.add(message.getData());
+    }
+    return texts;
+  }
+
+  @Test
+  void fullInboxKeepsTheNewestMessages() throws Exception {
+    OfflineInbox inbox = open(4);
+    for (int i = 0; i < 10; i++) {
+      offer(inbox, "m" + i);
+    }
+    assertEquals(List.of("m6", "m7", "m8", "m9"), texts(inbox.peek("bob")));
+    assertEquals(6, metrics.getInboxDropped().sum());
+    assertEquals(4, inbox.totalDepth());
+    inbox.close();
+    // 压缩前文件里多出来的消息重启后也不算
+    assertEquals(List.of("m6", "m7", "m8", "m9"), texts(open(4).peek("bob")));
+  }
+
+  @Test
+  void positionsStayValidAcrossCompaction() throws Exception {
+    OfflineInbox inbox = open(2);
+    offer(inbox, "a");
+    offer(inbox, "b");
+    List<OfflineInbox.Entry> queued = inbox.peek("bob");
+    // 第四条触发压缩, a 和 b 被挤出去
+    offer(inbox, "c");
+    offer(inbox, "d");
+    inbox.trim("bob", queued.get(queued.size() - 1).getPosition() + 1);
+    assertEquals(List.of("c", "d"), texts(inbox.peek("bob")));
+  }
+}
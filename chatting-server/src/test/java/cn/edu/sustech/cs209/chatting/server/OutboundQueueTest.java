@@ -0,0 +1,109 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboundQueueTest {
+  @TempDir
+  Path directory;
+
+  private static byte[] frame(int value) {
+    return new byte[] {0, 0, 0, 1, (byte) value};
+  }
+
+  // 在调用的线程上直接运行溢出任务
+  private OutboundQueue open(int capacity, OverflowPolicy policy) {
+    return new OutboundQueue(capacity, policy, directory.toFile(), new ServerMetrics(),
+        Runnable::run, () -> { });
+  }
+
+  private int spillFiles() {
+    File[] files = directory.toFile().listFiles();
+    return files == null ? 0 : files.length;
+  }
+
+  @Test
+  void spilledFramesComeBackInOrder() throws Exception {
+    OutboundQueue queue = open(2, OverflowPolicy.SPILL_TO_DISK);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(queue.offer(frame(i)));
+    }
+    assertEquals(5, queue.depth());
+    assertEquals(1, spillFiles());
+    for (int i = 0; i < 5; i++) {
+      assertArrayEquals(frame(i), (byte[]) queue.poll());
+    }
+    assertNull(queue.poll());
+  }
+
+  @Test
+  void spillFileIsOnlyTouchedByTheSpillTask() throws Exception {
+    ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    AtomicInteger refills = new AtomicInteger();
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.SPILL_TO_DISK,
+        directory.toFile(), new ServerMetrics(), tasks::add, refills::incrementAndGet);
+    for (int i = 0; i < 6; i++) {
+      assertTrue(queue.offer(frame(i)));
+    }
+    // 入队不写盘, 溢出的帧交给一个任务
+    assertEquals(0, spillFiles());
+    assertEquals(1, tasks.size());
+    tasks.poll().run();
+    assertEquals(1, spillFiles());
+    assertEquals(6, queue.depth());
+
+    assertArrayEquals(frame(0), (byte[]) queue.poll());
+    assertArrayEquals(frame(1), (byte[]) queue.poll());
+    // 读回来之前取不到, 读回来后通知发送方
+    assertNull(queue.poll());
+    assertEquals(1, tasks.size());
+    tasks.poll().run();
+    assertEquals(1, refills.get());
+    for (int i = 2; i < 6; i++) {
+      Object frame = queue.poll();
+      while (frame == null) {
+        tasks.poll().run();
+        frame = queue.poll();
+      }
+      assertArrayEquals(frame(i), (byte[]) frame);
+    }
+    assertEquals(0, queue.depth());
+  }
+
+  @Test
+  void closingTheQueueDeletesItsSpillFile() {
+    OutboundQueue queue = open(1, OverflowPolicy.SPILL_TO_DISK);
+    queue.offer(frame(1));
+    queue.offer(frame(2));
+    assertEquals(1, spillFiles());
+    queue.close();
+    assertEquals(0, spillFiles());
+  }
+
+  @Test
+  void sweepDeletesOnlyLeftoverSpillFiles() throws Exception {
+    Files.createFile(directory.resolve("outbound-1.spill"));
+    Files.createFile(directory.resolve("outbound-2.spill"));
+    Files.createFile(directory.resolve("notes.txt"));
+    assertEquals(2, SpillFile.sweep(directory.toFile()));
+    assertEquals(1, spillFiles());
+    assertEquals(0, SpillFile.sweep(directory.resolve("missing").toFile()));
+  }
+
+  @Test
+  void fullQueueAsksForDisconnect() {
+    OutboundQueue queue = open(1, OverflowPolicy.DISCONNECT);
+    assertTrue(queue.offer(frame(1)));
+    assertEquals(false, queue.offer(frame(2)));
+  }
+}
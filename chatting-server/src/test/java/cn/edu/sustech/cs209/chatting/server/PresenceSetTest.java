@@ -0,0 +1,58 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+class PresenceSetTest {
+
+  private static Set<String> namesOf(String snapshot) {
+    List<String> lines = Arrays.asList(snapshot.split("\n"));
+    return new TreeSet<>(lines.subList(1, lines.size()));
+  }
+
+  @Test
+  void joinsAndLeavesBumpTheVersion() {
+    PresenceSet presence = new PresenceSet(16);
+    presence.join("alice");
+    presence.join("bob");
+    presence.join("alice"); // 第二个会话, 不算变化
+    presence.leave("carol"); // 不在线
+    presence.leave("alice");
+    assertEquals(3, presence.getVersion());
+    String snapshot = presence.snapshot();
+    assertEquals(presence.getEpoch() + "\t3", snapshot.split("\n")[0]);
+    assertEquals(Set.of("bob"), namesOf(snapshot));
+  }
+
+  @Test
+  void deltaHoldsTheChangesBetweenVersions() {
+    PresenceSet presence = new PresenceSet(16);
+    presence.join("alice");
+    presence.join("bob");
+    presence.leave("alice");
+    presence.join("carol");
+    long epoch = presence.getEpoch();
+    assertEquals(epoch + "\n2\t+bob\n3\t-alice", presence.delta(1, 3));
+    assertEquals(epoch + "\n1\t+alice\n2\t+bob\n3\t-alice\n4\t+carol", presence.delta(0, 4));
+    assertEquals(String.valueOf(epoch), presence.delta(4, 4));
+  }
+
+  @Test
+  void deltaBeyondTheHistoryIsRefused() {
+    PresenceSet presence = new PresenceSet(2);
+    presence.join("alice");
+    presence.join("bob");
+    presence.join("carol");
+    // 只保留了版本 2 和 3
+    assertNull(presence.delta(0, 3));
+    assertEquals(presence.getEpoch() + "\n2\t+bob\n3\t+carol", presence.delta(1, 3));
+    assertNull(presence.delta(2, 4));
+    assertNull(presence.delta(3, 2));
+  }
+}
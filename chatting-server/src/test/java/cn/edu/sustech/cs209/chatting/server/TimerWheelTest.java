@@ -0,0 +1,89 @@
+package cn.edu.sustech.cs209.chatting.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+
+  @Test
+  void runsTaskOnceDue() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8);
+    AtomicInteger runs = new AtomicInteger();
+    wheel.schedule(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+    wheel.advance();
+    assertEquals(0, runs.get());
+    assertEquals(1, wheel.pending());
+    Thread.sleep(50);
+    wheel.advance();
+    wheel.advance();
+    assertEquals(1, runs.get());
+    assertEquals(0, wheel.pending());
+  }
+
+  @Test
+  void delaysLongerThanOneTurnWaitForTheirRound() throws InterruptedException {
+    // 4 个槽, 每格 5 ms, 转一圈 20 ms
+    TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 4);
+    AtomicInteger runs = new AtomicInteger();
+    wheel.schedule(runs::incrementAndGet, 60, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    while (runs.get() == 0) {
+      Thread.sleep(2);
+      wheel.advance();
+    }
+    long waited = System.nanoTime() - start;
+    assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(55), "ran after " + waited + " ns");
+  }
+
+  @Test
+  void cancelledTaskNeverRuns() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8);
+    AtomicInteger runs = new AtomicInteger();
+    TimerWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 10,
+        TimeUnit.MILLISECONDS);
+    timeout.cancel();
+    timeout.cancel();
+    assertEquals(0, wheel.pending());
+    Thread.sleep(30);
+    wheel.advance();
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  void cancelKeepsOtherTasksOfTheSlot() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(50, TimeUnit.MILLISECONDS, 8);
+    List<Integer> ran = new ArrayList<>();
+    List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      int task = i;
+      timeouts.add(wheel.schedule(() -> ran.add(task), 1, TimeUnit.MILLISECONDS));
+    }
+    // 同一个槽中的头, 中间和尾
+    timeouts.get(4).cancel();
+    timeouts.get(2).cancel();
+    timeouts.get(0).cancel();
+    Thread.sleep(120);
+    wheel.advance();
+    ran.sort(null);
+    assertEquals(List.of(1, 3), ran);
+  }
+
+  @Test
+  void failingTaskDoesNotStopTheOthers() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8);
+    AtomicInteger runs = new AtomicInteger();
+    wheel.schedule(() -> {
+      throw new IllegalStateException("expected by the test");
+    }, 1, TimeUnit.MILLISECONDS);
+    wheel.schedule(runs::incrementAndGet, 1, TimeUnit.MILLISECONDS);
+    Thread.sleep(20);
+    wheel.advance();
+    assertEquals(1, runs.get());
+  }
+}